@@ -1,10 +1,14 @@
 #!/usr/bin/env python
 
 import cgi
+import gzip
+import StringIO
 
 from google.appengine.api import users
+from google.appengine.ext import db
 from google.appengine.ext import webapp
 from google.appengine.ext.webapp.util import run_wsgi_app
+from django.utils import simplejson
 
 class MainPage(webapp.RequestHandler):
     def get(self):
@@ -29,9 +33,196 @@ class MainPage(webapp.RequestHandler):
         else:
             self.response.out.write("I don't know you weirdo, don't POST to me.")
 
+class BatchHandler(webapp.RequestHandler):
+    """Runs several form POSTs sent as one request by RequestBatcher.
+
+    The request carries 'count' and, for each sub request i, 'path<i>' (path
+    relative to the application root) and 'body<i>' (its form encoded body).
+    The response is one record per sub request, in order: a header line
+    'STATUS LENGTH CONTENT-TYPE\\n' followed by LENGTH bytes of body.
+    """
+
+    def post(self):
+        self.response.headers['Content-Type'] = 'application/octet-stream'
+        count = int(self.request.get('count', '0'))
+        for i in range(count):
+            path = '/' + self.request.get('path%d' % i)
+            body = self.request.get('body%d' % i).encode('utf-8')
+            status, content_type, reply = self.dispatch(path, body)
+            self.response.out.write('%d %d %s\n' % (status, len(reply),
+                                                    content_type))
+            self.response.out.write(reply)
+
+    def dispatch(self, path, body):
+        handler_class = BATCHABLE_HANDLERS.get(path)
+        if handler_class is None:
+            return 404, 'text/plain', 'No batchable handler for ' + path
+        # Sub requests run as the same user, with the batch's cookies.
+        environ = dict(self.request.environ)
+        environ['PATH_INFO'] = path
+        environ['REQUEST_METHOD'] = 'POST'
+        environ['CONTENT_TYPE'] = 'application/x-www-form-urlencoded'
+        environ['CONTENT_LENGTH'] = str(len(body))
+        environ['wsgi.input'] = StringIO.StringIO(body)
+        request = webapp.Request(environ)
+        response = webapp.Response()
+        handler = handler_class()
+        handler.initialize(request, response)
+        handler.post()
+        status = response.status
+        if callable(status):
+            status = status()
+        reply = response.out.getvalue()
+        if isinstance(reply, unicode):
+            reply = reply.encode('utf-8')
+        return (status, response.headers.get('Content-Type', 'text/plain'),
+                reply)
+
+class SyncCollection(db.Model):
+    """Collection of entities synced by SyncHandler, handing out versions.
+
+    The entities are its children, so a change and the version it gets are
+    written in one transaction, and versions are committed in order.
+    """
+    version = db.IntegerProperty(default=0)
+
+class SyncEntity(db.Model):
+    """Entity synced by SyncHandler. Its key name is 'id:' plus its id.
+
+    Deleted entities are kept with deleted set, so that clients which synced
+    them before hear about the deletion.
+    """
+    version = db.IntegerProperty(required=True)
+    deleted = db.BooleanProperty(default=False)
+    data = db.TextProperty()
+
+def sync_collection_key_name(name):
+    # Key names may not start with a digit.
+    return 'c:' + name
+
+def change_sync_entity(collection_name, entity_id, data):
+    """Writes data (None to delete) as the next version of an entity.
+
+    Must run in a transaction.
+    """
+    key_name = sync_collection_key_name(collection_name)
+    collection = SyncCollection.get_by_key_name(key_name)
+    if collection is None:
+        collection = SyncCollection(key_name=key_name)
+    collection.version += 1
+    entity = SyncEntity(parent=collection, key_name='id:' + entity_id,
+                        version=collection.version, deleted=data is None)
+    if data is not None:
+        entity.data = db.Text(simplejson.dumps(data))
+    db.put([collection, entity])
+    return collection.version
+
+class SyncHandler(webapp.RequestHandler):
+    """Serves the changes to a collection of entities, for SyncEngine.
+
+    GET with 'collection', 'limit' and 'cursor' returns a JSON object:
+    {"cursor": ..., "more": bool, "reset": bool, "changes": [{"id": ...,
+    "version": n, "deleted": bool, "data": {...}}, ...]} holding up to limit
+    changes made after cursor, oldest first. The cursor is the last version
+    sent. Without a cursor, or with one this handler does not understand,
+    the whole collection is sent with reset set, and deleted entities left
+    out. 'more' is set when there are further changes after the new cursor.
+
+    POST with 'collection', 'id' and either 'data' (a JSON object) or
+    'deleted=1' changes an entity, and returns {"version": n} with the
+    version it got.
+    """
+
+    def get(self):
+        collection = db.Key.from_path('SyncCollection',
+            sync_collection_key_name(self.request.get('collection')))
+        try:
+            limit = min(max(int(self.request.get('limit', '100')), 1), 500)
+        except ValueError:
+            limit = 100
+        cursor = self.request.get('cursor')
+        reset = not cursor.isdigit()
+        if reset:
+            since = 0
+        else:
+            since = int(cursor)
+        query = SyncEntity.all().ancestor(collection)
+        query.filter('version >', since).order('version')
+        entities = query.fetch(limit + 1)
+        more = len(entities) > limit
+        entities = entities[:limit]
+        if entities:
+            since = entities[-1].version
+        changes = []
+        for entity in entities:
+            if reset and entity.deleted:
+                continue
+            change = {'id': entity.key().name()[len('id:'):],
+                      'version': entity.version,
+                      'deleted': entity.deleted}
+            if not entity.deleted:
+                change['data'] = simplejson.loads(entity.data)
+            changes.append(change)
+        self.response.headers['Content-Type'] = 'application/json'
+        self.response.headers['Cache-Control'] = 'no-cache'
+        self.response.out.write(simplejson.dumps({'cursor': str(since),
+                                                  'more': more,
+                                                  'reset': reset,
+                                                  'changes': changes}))
+
+    def post(self):
+        collection_name = self.request.get('collection')
+        entity_id = self.request.get('id')
+        deleted = self.request.get('deleted') == '1'
+        data = None
+        if not deleted:
+            try:
+                data = simplejson.loads(self.request.get('data'))
+            except ValueError:
+                pass
+        if (not collection_name or not entity_id or
+                (not deleted and not isinstance(data, dict))):
+            self.error(400)
+            self.response.out.write('Need collection, id, and data or deleted.')
+            return
+        version = db.run_in_transaction(change_sync_entity, collection_name,
+                                        entity_id, data)
+        self.response.headers['Content-Type'] = 'application/json'
+        self.response.out.write(simplejson.dumps({'version': version}))
+
+# Handlers which may be called through BatchHandler, by path.
+BATCHABLE_HANDLERS = {
+    '/': MainPage,
+    '/_sync': SyncHandler,
+}
+
+class GzipRequestMiddleware(object):
+    """Inflates request bodies sent with Content-Encoding: gzip.
+
+    AppEngine gzips request bodies above AppEngineConfig's
+    requestCompressionThreshold, which is only safe for applications that
+    inflate them like this.
+    """
+
+    def __init__(self, app):
+        self.app = app
+
+    def __call__(self, environ, start_response):
+        if environ.get('HTTP_CONTENT_ENCODING', '').lower() == 'gzip':
+            length = int(environ.get('CONTENT_LENGTH') or 0)
+            compressed = StringIO.StringIO(environ['wsgi.input'].read(length))
+            body = gzip.GzipFile(fileobj=compressed).read()
+            environ['wsgi.input'] = StringIO.StringIO(body)
+            environ['CONTENT_LENGTH'] = str(len(body))
+            del environ['HTTP_CONTENT_ENCODING']
+        return self.app(environ, start_response)
+
 application = webapp.WSGIApplication(
-                                     [('/', MainPage)],
+                                     [('/', MainPage),
+                                      ('/_batch', BatchHandler),
+                                      ('/_sync', SyncHandler)],
                                      debug=True)
+application = GzipRequestMiddleware(application)
 
 def main():
     run_wsgi_app(application)
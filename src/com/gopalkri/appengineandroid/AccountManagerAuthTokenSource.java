@@ -0,0 +1,82 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * AuthTokenSource which gets tokens for a Google account from the
+ * AccountManager. getAuthToken blocks, so it must not be called on the UI
+ * thread. It never shows any UI itself: if the user has to grant access to
+ * the account, it throws a UserConsentRequiredException.
+ * 
+ * @author Gopal Sharma
+ */
+public class AccountManagerAuthTokenSource implements AuthTokenSource {
+
+	/**
+	 * Auth token type for App Engine.
+	 */
+	private static final String AUTH_TOKEN_TYPE = "ah";
+
+	/**
+	 * AccountManager to get tokens from.
+	 */
+	private final AccountManager mAccountManager;
+
+	/**
+	 * Account to get tokens for.
+	 */
+	private final Account mAccount;
+
+	/**
+	 * @param accountManager
+	 *            AccountManager to get tokens from.
+	 * @param account
+	 *            Account to get tokens for.
+	 */
+	public AccountManagerAuthTokenSource(AccountManager accountManager,
+			Account account) {
+		mAccountManager = accountManager;
+		mAccount = account;
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.AuthTokenSource#getAuthToken()
+	 */
+	public String getAuthToken() throws AccountException {
+		Bundle bundle;
+		try {
+			bundle = mAccountManager.getAuthToken(mAccount, AUTH_TOKEN_TYPE,
+					false, null, null).getResult();
+		} catch (Exception e) {
+			throw new AccountException("Failed to get auth token: " + e);
+		}
+		Intent intent = (Intent) bundle.get(AccountManager.KEY_INTENT);
+		if (intent != null) {
+			throw new UserConsentRequiredException(
+					"User has to grant access to account " + mAccount.name,
+					intent);
+		}
+		String authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
+		if (authToken == null) {
+			throw new AccountException("No auth token returned for account "
+					+ mAccount.name);
+		}
+		return authToken;
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.AuthTokenSource#invalidateAuthToken(java.lang.String)
+	 */
+	public void invalidateAuthToken(String authToken) {
+		mAccountManager.invalidateAuthToken(mAccount.type, authToken);
+	}
+
+}
@@ -0,0 +1,28 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import android.util.Log;
+
+/**
+ * AppEngineLog.Sink which logs to logcat.
+ * 
+ * @author Gopal Sharma
+ */
+public class AndroidLogSink implements AppEngineLog.Sink {
+
+	/**
+	 * @see com.gopalkri.appengineandroid.AppEngineLog.Sink#log(int,
+	 *      java.lang.String, java.lang.String, java.lang.Throwable)
+	 */
+	public void log(int level, String tag, String message, Throwable throwable) {
+		if (throwable != null) {
+			message = message + '\n' + Log.getStackTraceString(throwable);
+		}
+		Log.println(level, tag, message);
+	}
+
+}
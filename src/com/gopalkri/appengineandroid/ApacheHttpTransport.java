@@ -0,0 +1,237 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HttpTransport backed by a DefaultHttpClient with a pool of HTTP/1.1
+ * connections.
+ * 
+ * @author Gopal Sharma
+ */
+class ApacheHttpTransport implements HttpTransport {
+
+	private static final String TAG = "AppEngineAndroid";
+
+	/**
+	 * Http Client to perform various http requests. Backed by a thread safe
+	 * connection pool so that one instance can serve concurrent requests.
+	 */
+	private final DefaultHttpClient mHttpClient;
+
+	/**
+	 * Pooled connection manager used by mHttpClient.
+	 */
+	private final ThreadSafeClientConnManager mConnectionManager;
+
+	/**
+	 * Evicts expired and idle connections from mConnectionManager.
+	 */
+	private final IdleConnectionMonitor mIdleConnectionMonitor;
+
+	/**
+	 * Time an idle connection is kept alive when the server does not say.
+	 */
+	private final long mKeepAliveMillis;
+
+	private final long mConnectionPoolTimeoutMillis;
+
+	/**
+	 * @param config
+	 *            Configuration of the AppEngine instance.
+	 * @param metrics
+	 *            Metrics to report connection leases to.
+	 */
+	ApacheHttpTransport(AppEngineConfig config, AppEngineMetrics metrics) {
+		mKeepAliveMillis = config.getKeepAliveMillis();
+		mConnectionPoolTimeoutMillis = config.getConnectionPoolTimeoutMillis();
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		// Expect: 100-continue costs an extra round trip on every POST.
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		// App Engine only gzips responses for user agents mentioning gzip.
+		HttpProtocolParams.setUserAgent(params, AppEngine.USER_AGENT);
+		ConnManagerParams.setMaxTotalConnections(params, config
+				.getMaxTotalConnections());
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(config.getMaxConnectionsPerRoute()));
+		// Without timeouts a stalled connection on a flaky mobile network
+		// would hang its thread forever.
+		ConnManagerParams.setTimeout(params, mConnectionPoolTimeoutMillis);
+		HttpConnectionParams.setConnectionTimeout(params, config
+				.getConnectTimeoutMillis());
+		HttpConnectionParams.setSoTimeout(params, config
+				.getSocketTimeoutMillis());
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", createSSLSocketFactory(
+				config), 443));
+
+		mConnectionManager = new MeteredConnectionManager(params,
+				schemeRegistry, metrics);
+		mHttpClient = new DefaultHttpClient(mConnectionManager, params);
+		mHttpClient.setKeepAliveStrategy(new KeepAliveStrategy(
+				mKeepAliveMillis));
+		mHttpClient.setRedirectHandler(new LoginRedirectHandler());
+
+		mIdleConnectionMonitor = new IdleConnectionMonitor(mConnectionManager,
+				config.getIdleConnectionTimeoutMillis());
+		mIdleConnectionMonitor.start();
+	}
+
+	/**
+	 * Creates the socket factory for https connections, resuming TLS
+	 * sessions if possible.
+	 */
+	private static SocketFactory createSSLSocketFactory(AppEngineConfig config) {
+		try {
+			return new ResumingSSLSocketFactory(config
+					.getTlsSessionCacheSize(), (int) (config
+					.getTlsSessionTimeoutMillis() / 1000));
+		} catch (GeneralSecurityException e) {
+			AppEngineLog.w(TAG, "TLS session resumption not available.", e);
+			return SSLSocketFactory.getSocketFactory();
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.HttpTransport#execute(org.apache.http.client.methods.HttpUriRequest,
+	 *      org.apache.http.protocol.HttpContext)
+	 */
+	public HttpResponse execute(HttpUriRequest request, HttpContext context)
+			throws IOException {
+		return mHttpClient.execute(request, context);
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.HttpTransport#getCookieStore()
+	 */
+	public CookieStore getCookieStore() {
+		return mHttpClient.getCookieStore();
+	}
+
+	/**
+	 * Opens a pooled connection to the host of uri, including the TLS
+	 * handshake, unless there is an open one already.
+	 * 
+	 * @see com.gopalkri.appengineandroid.HttpTransport#warmUp(java.net.URI)
+	 */
+	public void warmUp(URI uri) throws IOException {
+		HttpGet request = new HttpGet(uri);
+		HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri
+				.getScheme());
+		HttpContext context = new BasicHttpContext();
+		ManagedClientConnection connection;
+		try {
+			// Use the route requests will use, so that they find the
+			// connection in the pool.
+			HttpRoute route = mHttpClient.getRoutePlanner().determineRoute(
+					target, request, context);
+			connection = mConnectionManager.requestConnection(route, null)
+					.getConnection(mConnectionPoolTimeoutMillis,
+							TimeUnit.MILLISECONDS);
+			try {
+				if (!connection.isOpen()) {
+					connection.open(route, context, mHttpClient.getParams());
+					connection.markReusable();
+				}
+			} finally {
+				mConnectionManager.releaseConnection(connection,
+						mKeepAliveMillis, TimeUnit.MILLISECONDS);
+			}
+		} catch (HttpException e) {
+			throw new IOException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while warming up.");
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.HttpTransport#shutdown()
+	 */
+	public void shutdown() {
+		mIdleConnectionMonitor.shutdown();
+		mConnectionManager.shutdown();
+	}
+
+	/**
+	 * Keeps connections alive for as long as the server asks, or for a
+	 * configured default if the server does not say.
+	 */
+	private static class KeepAliveStrategy implements
+			ConnectionKeepAliveStrategy {
+
+		/**
+		 * Keep alive duration used when the server does not specify one.
+		 */
+		private final long mDefaultKeepAliveMillis;
+
+		KeepAliveStrategy(long defaultKeepAliveMillis) {
+			mDefaultKeepAliveMillis = defaultKeepAliveMillis;
+		}
+
+		/**
+		 * @see org.apache.http.conn.ConnectionKeepAliveStrategy#getKeepAliveDuration(org.apache.http.HttpResponse,
+		 *      org.apache.http.protocol.HttpContext)
+		 */
+		public long getKeepAliveDuration(HttpResponse response,
+				HttpContext context) {
+			HeaderElementIterator it = new BasicHeaderElementIterator(response
+					.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement element = it.nextElement();
+				if ("timeout".equalsIgnoreCase(element.getName())
+						&& element.getValue() != null) {
+					try {
+						return Long.parseLong(element.getValue()) * 1000;
+					} catch (NumberFormatException e) {
+						// Fall through to the default.
+					}
+				}
+			}
+			return mDefaultKeepAliveMillis;
+		}
+	}
+}
@@ -6,22 +6,52 @@
 package com.gopalkri.appengineandroid;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.DefaultHttpClient;
-
-import android.util.Log;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 /**
  * @author Gopal Sharma.
@@ -32,9 +62,45 @@ public class AppEngine {
 	private static final String TAG = "AppEngineAndroid";
 
 	/**
-	 * Http Client to perform various http requests.
+	 * User-Agent sent with every request.
+	 */
+	static final String USER_AGENT = "AppEngineAndroid/1.0 (gzip)";
+
+	/**
+	 * Time after which a failed session refresh is tried again.
+	 */
+	private static final long SESSION_REFRESH_RETRY_MILLIS = 60 * 1000;
+
+	/**
+	 * Transport performing the http requests. Safe for use by concurrent
+	 * requests.
+	 */
+	private final HttpTransport mTransport;
+
+	/**
+	 * Negotiates compressed responses for requests sent through mTransport.
+	 */
+	private final CompressionInterceptor mCompressionInterceptor;
+
+	/**
+	 * Bounded pool of worker threads which perform asynchronous requests.
+	 */
+	private final ThreadPoolExecutor mAsyncExecutor;
+
+	/**
+	 * Executor on which asynchronous callbacks are delivered when the caller
+	 * does not choose one.
 	 */
-	private final DefaultHttpClient mHttpClient = new DefaultHttpClient();
+	private volatile Executor mCallbackExecutor = DIRECT_EXECUTOR;
+
+	/**
+	 * Executor which runs tasks on the calling thread.
+	 */
+	private static final Executor DIRECT_EXECUTOR = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
 
 	/**
 	 * App engine application's url. Ex: https://gopalkri-testing.appspot.com
@@ -42,19 +108,131 @@ public class AppEngine {
 	private final String mApplicationUrl;
 
 	/**
-	 * Lock to ensure only one thread accesses sInstance.
+	 * Name of the account requests are made as. Null if unknown.
+	 */
+	private final String mAccountName;
+
+	/**
+	 * Cache for responses to HTTP GET requests. Null if there is none.
+	 */
+	private volatile ResponseCache mResponseCache;
+
+	/**
+	 * Time a persisted session is trusted for when its SACSID cookie has no
+	 * expiry date.
+	 */
+	private final long mSessionMaxAgeMillis;
+
+	/**
+	 * Request body size above which bodies are gzipped. Negative to never
+	 * compress unless asked to per request.
+	 */
+	private final int mRequestCompressionThreshold;
+
+	/**
+	 * Byte counters for compressed and uncompressed traffic.
+	 */
+	private final CompressionStats mCompressionStats = new CompressionStats();
+
+	/**
+	 * Latencies, status codes, bytes and connection reuse of requests made.
+	 */
+	private final AppEngineMetrics mMetrics = new AppEngineMetrics(
+			mCompressionStats);
+
+	/**
+	 * Shares one request between concurrent identical GETs. Null unless
+	 * enabled in the configuration.
+	 */
+	private final SingleFlight mSingleFlight;
+
+	/**
+	 * Limit on the requests in flight, handing out slots by priority. The
+	 * limit adapts to the server if enabled in the configuration.
+	 */
+	private final ConcurrencyLimiter mLimiter;
+
+	/**
+	 * Where the session cookies are persisted. Null if they are not.
+	 */
+	private volatile SessionStore mSessionStore;
+
+	/**
+	 * Source of auth tokens used to log in again when the session is
+	 * rejected. Null if the session cannot be renewed transparently.
+	 */
+	private volatile AuthTokenSource mAuthTokenSource;
+
+	/**
+	 * Serializes logins, so that when many concurrent requests find the
+	 * session rejected only one of them logs in again.
+	 */
+	private final ReentrantLock mLoginLock = new ReentrantLock();
+
+	/**
+	 * Incremented after every successful login. A request which fails with a
+	 * rejected session only logs in again if no login has happened since it
+	 * started.
+	 */
+	private volatile int mSessionGeneration = 0;
+
+	/**
+	 * Policy deciding how failed requests are retried.
+	 */
+	private final RetryPolicy mRetryPolicy;
+
+	/**
+	 * Circuit breakers, by host.
+	 */
+	private final ConcurrentHashMap<String, CircuitBreaker> mCircuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private final int mCircuitBreakerThreshold;
+
+	private final long mCircuitBreakerOpenMillis;
+
+	private final int mConnectTimeoutMillis;
+
+	private final int mSocketTimeoutMillis;
+
+	private final long mConnectionPoolTimeoutMillis;
+
+	/**
+	 * Time budget of calls which do not set one, 0 for none.
+	 */
+	private final long mRequestDeadlineMillis;
+
+	/**
+	 * Aborts requests whose deadline has expired and refreshes the session
+	 * before it expires.
+	 */
+	private final ScheduledThreadPoolExecutor mScheduler;
+
+	/**
+	 * Time before the session expires at which it is refreshed, 0 for never.
+	 */
+	private final long mSessionRefreshLeadMillis;
+
+	/**
+	 * Time in milliseconds since the epoch at which the current session
+	 * expires.
 	 */
-	private static ReentrantLock sInstanceLock = new ReentrantLock();
+	private volatile long mSessionExpiry = 0;
 
 	/**
-	 * Whether or not AppEngine instance is ready for use.
+	 * Scheduled refresh of the current session, if any.
 	 */
-	private static boolean sReady = false;
+	private final AtomicReference<ScheduledFuture<?>> mRefreshTask = new AtomicReference<ScheduledFuture<?>>();
 
 	/**
-	 * Singleton instance of AppEngine.
+	 * Whether this instance has a session and is ready for use.
 	 */
-	private static AppEngine sInstance = null;
+	private volatile boolean mReady = false;
+
+	/**
+	 * Singleton instance of AppEngine, i.e. the one last set up by the
+	 * activities. Read without locking.
+	 */
+	private static final AtomicReference<AppEngine> sInstance = new AtomicReference<AppEngine>();
 
 	/**
 	 * Gets singleton instance of AppEngine. Returns null if the instance has
@@ -64,47 +242,204 @@ public class AppEngine {
 	 *         beeen constructed properly.
 	 */
 	public static AppEngine getInstance() {
-		AppEngine ret = null;
-		sInstanceLock.lock();
-		if (sReady) {
-			ret = sInstance;
-		}
-		sInstanceLock.unlock();
-		return ret;
+		AppEngine instance = sInstance.get();
+		return instance != null && instance.mReady ? instance : null;
 	}
 
 	/**
-	 * Creates new singleton instance of AppEngine.
+	 * Creates an instance of AppEngine which is neither registered nor the
+	 * singleton instance, ex: for use on a plain JVM for load generation or
+	 * server side calls. Set an AuthTokenSource and call login(), or set a
+	 * SessionStore and call resumeSession(), before making requests. The
+	 * caller owns the instance and has to shut it down. The activities and
+	 * AppEngineAuthenticator create their instances here too, and publish
+	 * them once they have logged in.
 	 * 
 	 * @param applicationUrl
 	 *            App engine application's url. Ex:
 	 *            https://gopalkri-testing.appspot.com
+	 * @param config
+	 *            Configuration for the new instance.
+	 * @param accountName
+	 *            Name of the account requests are made as. May be null.
 	 */
-	protected static AppEngine createInstance(String applicationUrl) {
-		AppEngine instance = new AppEngine(applicationUrl);
-		sInstanceLock.lock();
-		sInstance = instance;
-		sInstanceLock.unlock();
+	public static AppEngine newInstance(String applicationUrl,
+			AppEngineConfig config, String accountName) {
+		return new AppEngine(applicationUrl, config, accountName);
+	}
+
+	/**
+	 * Creates new singleton instance of AppEngine from a session saved in
+	 * sessionStore by an earlier login. The instance is only published if a
+	 * valid session was found, in which case it is ready for use right away
+	 * and no login handshake is needed.
+	 * 
+	 * @param applicationUrl
+	 *            App engine application's url. Ex:
+	 *            https://gopalkri-testing.appspot.com
+	 * @param config
+	 *            Configuration for the new instance.
+	 * @param accountName
+	 *            Name of the account the session belongs to.
+	 * @param sessionStore
+	 *            Store to restore the session from. It is also used to save
+	 *            the session after later logins.
+	 * @return The ready instance, or null if no valid session was stored.
+	 */
+	protected static AppEngine restoreInstance(String applicationUrl,
+			AppEngineConfig config, String accountName,
+			SessionStore sessionStore) {
+		if (!hasStoredSession(sessionStore)) {
+			// Spares setting up a connection pool and threads for nothing.
+			return null;
+		}
+		AppEngine instance = new AppEngine(applicationUrl, config,
+				accountName);
+		instance.setSessionStore(sessionStore);
+		if (!instance.resumeSession()) {
+			instance.shutdown();
+			return null;
+		}
+		publish(instance);
+		instance.warmUp();
 		return instance;
 	}
 
 	/**
-	 * Private constructor to ensure only one instance can ever be created.
+	 * @return Whether sessionStore holds an unexpired session. Only reads the
+	 *         store.
+	 */
+	private static boolean hasStoredSession(SessionStore sessionStore) {
+		try {
+			return sessionStore.load() != null;
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Failed to read stored session.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Registers instance and makes it the singleton instance. Only publish
+	 * an instance once it has logged in or resumed a session, as it replaces
+	 * and shuts down the one registered for the same application and
+	 * account.
+	 * 
+	 * @param instance
+	 *            New singleton instance.
+	 */
+	static void publish(AppEngine instance) {
+		AppEngineRegistry.register(instance);
+		sInstance.set(instance);
+	}
+
+	/**
+	 * Private constructor. Instances come from newInstance, which
+	 * AppEngineRegistry.getOrCreate and the activities use too, or from
+	 * restoreInstance. Several may exist at once, one per application and
+	 * account in the registry, and getInstance() returns the one published
+	 * last.
 	 * 
 	 * @param applicationUrl
 	 *            App engine application's url. Ex:
 	 *            https://gopalkri-testing.appspot.com
+	 * @param config
+	 *            Configuration for this instance.
+	 * @param accountName
+	 *            Name of the account requests are made as. May be null.
 	 */
-	private AppEngine(String applicationUrl) {
+	private AppEngine(String applicationUrl, AppEngineConfig config,
+			String accountName) {
 		if (applicationUrl.endsWith("/")) {
 			mApplicationUrl = applicationUrl;
 		} else {
 			mApplicationUrl = applicationUrl + "/";
 		}
+		mAccountName = accountName;
+		mSessionMaxAgeMillis = config.getSessionMaxAgeMillis();
+		mRequestCompressionThreshold = config.getRequestCompressionThreshold();
+		mRetryPolicy = config.getRetryPolicy() == null ? RetryPolicy
+				.noRetries() : config.getRetryPolicy();
+		mCircuitBreakerThreshold = config.getCircuitBreakerThreshold();
+		mCircuitBreakerOpenMillis = config.getCircuitBreakerOpenMillis();
+		mConnectTimeoutMillis = config.getConnectTimeoutMillis();
+		mSocketTimeoutMillis = config.getSocketTimeoutMillis();
+		mConnectionPoolTimeoutMillis = config.getConnectionPoolTimeoutMillis();
+		mRequestDeadlineMillis = config.getRequestDeadlineMillis();
+		mSessionRefreshLeadMillis = config.getSessionRefreshLeadMillis();
+		mSingleFlight = config.getSingleFlightGets() ? new SingleFlight(
+				mMetrics) : null;
+		mLimiter = new ConcurrencyLimiter(mMetrics, config
+				.getMaxConcurrentRequests(), config.getMaxQueuedRequests(),
+				mConnectionPoolTimeoutMillis, config.getAdaptiveConcurrency());
+
+		HttpTransport.Factory transportFactory = config.getTransportFactory();
+		if (transportFactory == null) {
+			transportFactory = HttpTransports.APACHE_HTTP_CLIENT;
+		}
+		mTransport = transportFactory.create(config, mMetrics);
+		mCompressionInterceptor = new CompressionInterceptor(
+				mCompressionStats, config.getAcceptCompressedResponses());
+
+		mAsyncExecutor = new ThreadPoolExecutor(config.getAsyncThreads(),
+				config.getAsyncThreads(), 0, TimeUnit.MILLISECONDS,
+				new PriorityTaskQueue(config.getAsyncQueueCapacity()),
+				new WorkerThreadFactory(
+						"AppEngineWorker-"));
+		mScheduler = new ScheduledThreadPoolExecutor(1,
+				new WorkerThreadFactory("AppEngineScheduler-"));
+	}
+
+	/**
+	 * Resolves the application's host and opens a connection to it,
+	 * including the TLS handshake, in the background, as far as the
+	 * transport allows (see HttpTransport.warmUp). Called right after an
+	 * instance is created, so that this overlaps with fetching the auth
+	 * token.
+	 */
+	public void warmUp() {
+		try {
+			mAsyncExecutor.execute(new Runnable() {
+				public void run() {
+					preconnect();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Busy or shut down. The first request will connect.
+		}
 	}
 
 	/**
-	 * Initializes and returns a BufferedReader with contents of response.
+	 * Has the transport get ready for requests to the application's host.
+	 */
+	private void preconnect() {
+		long start = System.nanoTime();
+		try {
+			mTransport.warmUp(URI.create(mApplicationUrl));
+			mMetrics.recordLoginPhase(AppEngineMetrics.PHASE_WARM_UP,
+					System.nanoTime() - start);
+		} catch (Exception e) {
+			AppEngineLog.w(TAG, "Failed to pre-connect to " + mApplicationUrl,
+					e);
+		}
+	}
+
+	/**
+	 * Shuts down this instance, closing all pooled connections. The instance
+	 * cannot be used after this.
+	 */
+	public void shutdown() {
+		mReady = false;
+		sInstance.compareAndSet(this, null);
+		AppEngineRegistry.unregister(this);
+		mAsyncExecutor.shutdownNow();
+		mScheduler.shutdownNow();
+		mTransport.shutdown();
+	}
+
+	/**
+	 * Initializes and returns a BufferedReader with contents of response,
+	 * decoded with the charset from its Content-Type header. The caller must
+	 * close the reader, or consume the response's entity, once done.
 	 * 
 	 * @param response
 	 *            HttpResponse to read from.
@@ -115,15 +450,20 @@ public class AppEngine {
 	public static BufferedReader getBufferedReaderFromHttpResponse(
 			HttpResponse response) throws AppEngineException {
 		try {
-			return new BufferedReader(new InputStreamReader(response
-					.getEntity().getContent()));
+			HttpEntity entity = response.getEntity();
+			String charset = EntityUtils.getContentCharSet(entity);
+			return new BufferedReader(new InputStreamReader(
+					entity.getContent(),
+					charset == null ? ResponseBodyHandler.DEFAULT_CHARSET
+							: charset), BufferPool.BUFFER_SIZE);
 		} catch (Exception e) {
 			throw new AppEngineException(e);
 		}
 	}
 
 	/**
-	 * Reads response and returns it as a String.
+	 * Reads response and returns it as a String. The response's entity is
+	 * consumed, so the connection is returned to the pool.
 	 * 
 	 * @param response
 	 *            HttpResponse to read from.
@@ -133,21 +473,36 @@ public class AppEngine {
 	 */
 	public static String getStringFromHttpResponse(HttpResponse response)
 			throws AppEngineException {
+		return readResponse(response, new StringResponseHandler());
+	}
+
+	/**
+	 * Passes response to handler, then consumes the response's entity so
+	 * that the connection is returned to the pool.
+	 * 
+	 * @param response
+	 *            HttpResponse to read from.
+	 * @param handler
+	 *            Handler which reads the response. A ResponseBodyHandler
+	 *            gets the body as a stream.
+	 * @return Result returned by handler.
+	 * @throws AppEngineException
+	 *             If there was an error in reading from response.
+	 */
+	public static <T> T readResponse(HttpResponse response,
+			ResponseHandler<? extends T> handler) throws AppEngineException {
 		try {
-			StringBuilder sb = new StringBuilder();
-			BufferedReader br = getBufferedReaderFromHttpResponse(response);
-			String line;
-			while ((line = br.readLine()) != null) {
-				sb.append(line);
-			}
-			return sb.toString();
+			return handler.handleResponse(response);
 		} catch (Exception e) {
 			throw new AppEngineException(e);
+		} finally {
+			consume(response);
 		}
 	}
 
 	/**
-	 * Performs a HTTP GET request on path.
+	 * Performs a HTTP GET request on path. The caller must consume the
+	 * response's entity so that the connection is returned to the pool.
 	 * 
 	 * @param path
 	 *            Path on which to perform HTTP GET. Ex: pass in "test" to do a
@@ -157,16 +512,23 @@ public class AppEngine {
 	 *             If there is an error in performing the request.
 	 */
 	public HttpResponse doHttpGet(String path) throws HttpRequestException {
-		HttpGet httpGet = new HttpGet(mApplicationUrl + path);
-		try {
-			return mHttpClient.execute(httpGet);
-		} catch (Exception e) {
-			throw new HttpRequestException(e);
-		}
+		return doHttpGet(path, (RequestOptions) null);
+	}
+
+	/**
+	 * Same as doHttpGet(String), with per request options.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public HttpResponse doHttpGet(String path, RequestOptions options)
+			throws HttpRequestException {
+		return execute(new HttpGet(mApplicationUrl + path), options);
 	}
 
 	/**
-	 * Performs a HTTP POST request on path.
+	 * Performs a HTTP POST request on path. The caller must consume the
+	 * response's entity so that the connection is returned to the pool.
 	 * 
 	 * @param path
 	 *            Path on which to perform HTTP GET. Ex: pass in "test" to do a
@@ -179,59 +541,1488 @@ public class AppEngine {
 	 */
 	public HttpResponse doHttpPost(String path, List<NameValuePair> postData)
 			throws HttpRequestException {
-		HttpPost httpPost = new HttpPost(mApplicationUrl + path);
-		try {
-			httpPost.setEntity(new UrlEncodedFormEntity(postData));
-			return mHttpClient.execute(httpPost);
-		} catch (Exception e) {
-			throw new HttpRequestException(e);
-		}
+		return doHttpPost(path, postData, (RequestOptions) null);
 	}
 
-	protected void fetchCookies(String authToken) throws CookieException {
-		// Don't follow redirects. We only need cookies returned by
-		// authentication URL. No need to follow the redirect it returns.
-		mHttpClient.getParams().setBooleanParameter(
-				ClientPNames.HANDLE_REDIRECTS, false);
+	/**
+	 * Same as doHttpPost(String, List), with per request options.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public HttpResponse doHttpPost(String path, List<NameValuePair> postData,
+			RequestOptions options) throws HttpRequestException {
+		return execute(createHttpPost(path, postData, options), options);
+	}
 
-		try {
-			HttpGet request = new HttpGet(mApplicationUrl
-					+ "_ah/login?continue=http://localhost/&auth=" + authToken);
-			HttpResponse response = mHttpClient.execute(request);
+	/**
+	 * Performs a HTTP GET request on path and passes the response to handler.
+	 * The response's entity is always consumed afterwards, so the connection
+	 * is returned to the pool.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP GET. Ex: pass in "test" to do a
+	 *            HTTP GET on https://application-name/test.
+	 * @param handler
+	 *            Handler which reads the response. A ResponseBodyHandler
+	 *            gets the body as a stream.
+	 * @return Result returned by handler.
+	 * @throws HttpRequestException
+	 *             If there is an error in performing the request or handling
+	 *             its response.
+	 */
+	public <T> T doHttpGet(String path, ResponseHandler<? extends T> handler)
+			throws HttpRequestException {
+		return doHttpGet(path, null, handler);
+	}
 
-			if (response.getStatusLine().getStatusCode() != 302) {
-				String error = "Did not receive redirect! Response Code: "
-						+ response.getStatusLine().getStatusCode()
-						+ ". Message: "
-						+ response.getStatusLine().getReasonPhrase();
-				Log.e(TAG, error);
-				mHttpClient.getParams().setBooleanParameter(
-						ClientPNames.HANDLE_REDIRECTS, true);
-				throw new CookieException(error);
-			}
+	/**
+	 * Same as doHttpGet(String, ResponseHandler), with per request options.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public <T> T doHttpGet(String path, RequestOptions options,
+			ResponseHandler<? extends T> handler) throws HttpRequestException {
+		return execute(new HttpGet(mApplicationUrl + path), options, handler);
+	}
 
-			for (Cookie cookie : mHttpClient.getCookieStore().getCookies()) {
-				if (cookie.getName().equals("SACSID")) {
-					Log.i(TAG, "Found SACSID cookie!");
-					setReady();
-				}
-			}
-		} catch (ClientProtocolException e) {
-			throw new CookieException(e);
-		} catch (IOException e) {
-			throw new CookieException(e);
-		} finally {
-			mHttpClient.getParams().setBooleanParameter(
-					ClientPNames.HANDLE_REDIRECTS, true);
-		}
+	/**
+	 * Performs a HTTP POST request on path and passes the response to
+	 * handler. The response's entity is always consumed afterwards, so the
+	 * connection is returned to the pool.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP POST. Ex: pass in "test" to do
+	 *            a HTTP POST on https://application-name/test.
+	 * @param postData
+	 *            PostData to add to HTTP POST.
+	 * @param handler
+	 *            Handler which reads the response. A ResponseBodyHandler
+	 *            gets the body as a stream.
+	 * @return Result returned by handler.
+	 * @throws HttpRequestException
+	 *             If there is an error in performing the request or handling
+	 *             its response.
+	 */
+	public <T> T doHttpPost(String path, List<NameValuePair> postData,
+			ResponseHandler<? extends T> handler) throws HttpRequestException {
+		return doHttpPost(path, postData, null, handler);
+	}
+
+	/**
+	 * Same as doHttpPost(String, List, ResponseHandler), with per request
+	 * options.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public <T> T doHttpPost(String path, List<NameValuePair> postData,
+			RequestOptions options, ResponseHandler<? extends T> handler)
+			throws HttpRequestException {
+		return execute(createHttpPost(path, postData, options), options,
+				handler);
 	}
 
 	/**
-	 * Atomically sets sReady to true.
+	 * Performs a HTTP GET request on path and decodes the response body with
+	 * codec, straight from the response stream.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP GET. Ex: pass in "test" to do a
+	 *            HTTP GET on https://application-name/test.
+	 * @param codec
+	 *            Codec to decode the response body with, ex:
+	 *            JsonCodec.INSTANCE.
+	 * @return Value decoded from the response body, or null if it is empty.
+	 * @throws HttpRequestException
+	 *             If there is an error in performing the request, the
+	 *             response is not a 2xx or its body could not be decoded.
 	 */
-	private void setReady() {
-		sInstanceLock.lock();
-		sReady = true;
-		sInstanceLock.unlock();
+	public <T> T doHttpGet(String path, Codec<? extends T> codec)
+			throws HttpRequestException {
+		return doHttpGet(path, null, codec);
+	}
+
+	/**
+	 * Same as doHttpGet(String, Codec), with per request options.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public <T> T doHttpGet(String path, RequestOptions options,
+			Codec<? extends T> codec) throws HttpRequestException {
+		return doHttpGet(path, options, new CodecResponseHandler<T>(codec));
+	}
+
+	/**
+	 * Performs a HTTP POST request on path with body encoded by bodyCodec,
+	 * and decodes the response body with responseCodec. The request body is
+	 * written straight to the connection as it is encoded.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP POST. Ex: pass in "test" to do
+	 *            a HTTP POST on https://application-name/test.
+	 * @param body
+	 *            Value to send as the request body.
+	 * @param bodyCodec
+	 *            Codec to encode body with.
+	 * @param responseCodec
+	 *            Codec to decode the response body with.
+	 * @return Value decoded from the response body, or null if it is empty.
+	 * @throws HttpRequestException
+	 *             If there is an error in performing the request, the
+	 *             response is not a 2xx or its body could not be decoded.
+	 */
+	public <B, T> T doHttpPost(String path, B body, Codec<? super B> bodyCodec,
+			Codec<? extends T> responseCodec) throws HttpRequestException {
+		return doHttpPost(path, body, bodyCodec, null, responseCodec);
+	}
+
+	/**
+	 * Same as doHttpPost(String, Object, Codec, Codec), with per request
+	 * options. The body's length is not known before it is sent, so it is
+	 * never gzipped.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public <B, T> T doHttpPost(String path, B body, Codec<? super B> bodyCodec,
+			RequestOptions options, Codec<? extends T> responseCodec)
+			throws HttpRequestException {
+		return execute(createHttpPost(path, new CodecEntity<B>(body,
+				bodyCodec), options), options, new CodecResponseHandler<T>(
+				responseCodec));
+	}
+
+	/**
+	 * Performs a HTTP POST request on path with body streamed from its
+	 * source, ex: a MultipartEntity, a FileEntity, a FileChannelEntity or an
+	 * InputStreamEntity. Bodies of unknown length are sent chunked. Memory
+	 * use does not depend on the size of body, which is why it is never
+	 * gzipped.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP POST. Ex: pass in "test" to do
+	 *            a HTTP POST on https://application-name/test.
+	 * @param body
+	 *            Request body. It is only retried if it is repeatable and
+	 *            options mark the request idempotent.
+	 * @param options
+	 *            Options for this request, ex: with a ProgressListener to
+	 *            follow and cancel the upload. May be null.
+	 * @param handler
+	 *            Handler which reads the response. A ResponseBodyHandler
+	 *            gets the body as a stream.
+	 * @return Result returned by handler.
+	 * @throws HttpRequestException
+	 *             If there is an error in performing the request, it was
+	 *             cancelled or handling its response failed.
+	 */
+	public <T> T doHttpPost(String path, HttpEntity body,
+			RequestOptions options, ResponseHandler<? extends T> handler)
+			throws HttpRequestException {
+		return execute(createUpload(path, body, options), options, handler);
+	}
+
+	/**
+	 * Downloads the resource at path into destination, streaming the body
+	 * straight to the file rather than through memory. The body is written
+	 * to destination.part, with a checkpoint next to it, and only renamed to
+	 * destination once complete. If the download is interrupted, whether it
+	 * fails, is cancelled or the process dies, calling this again for the
+	 * same destination carries on where it stopped, as long as the server
+	 * supports range requests and sends an ETag or Last-Modified date.
+	 * 
+	 * Large resources are split into segments fetched in parallel if
+	 * options ask for it. The deadline in options applies to each range
+	 * request, not to the whole download.
+	 * 
+	 * @param path
+	 *            Path to download. Ex: pass in "test" to download
+	 *            https://application-name/test.
+	 * @param destination
+	 *            File to download to. Replaced once the download completes.
+	 * @param options
+	 *            Options for this download, ex: with a ProgressListener to
+	 *            follow and cancel it, or with more than one download
+	 *            segment. May be null.
+	 * @return destination.
+	 * @throws HttpRequestException
+	 *             If the download failed or was cancelled, or the server
+	 *             responded with an error.
+	 */
+	public File doHttpDownload(String path, File destination,
+			RequestOptions options) throws HttpRequestException {
+		return createDownload(path, destination, options).run();
+	}
+
+	/**
+	 * @return Name of the account requests are made as, or null if unknown.
+	 */
+	public String getAccountName() {
+		return mAccountName;
+	}
+
+	/**
+	 * @return Url of the application requests are made to, with a trailing
+	 *         slash.
+	 */
+	public String getApplicationUrl() {
+		return mApplicationUrl;
+	}
+
+	/**
+	 * @return Whether this instance has a session and is ready for use.
+	 */
+	public boolean isReady() {
+		return mReady;
+	}
+
+	/**
+	 * Sets the cache HTTP GET responses are stored in and answered from.
+	 * Entries are keyed by account, so a cache may be shared between
+	 * instances for different accounts.
+	 * 
+	 * @param responseCache
+	 *            Cache to use. Null to disable caching.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		mResponseCache = responseCache;
+	}
+
+	/**
+	 * @return Cache HTTP GET responses are stored in, or null if there is
+	 *         none.
+	 */
+	public ResponseCache getResponseCache() {
+		return mResponseCache;
+	}
+
+	/**
+	 * Sets the store the session cookies are saved to after every successful
+	 * login.
+	 * 
+	 * @param sessionStore
+	 *            Store to save the session to. Null to stop persisting it.
+	 */
+	public void setSessionStore(SessionStore sessionStore) {
+		mSessionStore = sessionStore;
+	}
+
+	/**
+	 * Sets the source of auth tokens used to log in. With a source set,
+	 * requests which find the session rejected log in again and are retried
+	 * once, without the caller noticing.
+	 * 
+	 * @param authTokenSource
+	 *            Source of auth tokens. Null to disable logging in again.
+	 */
+	public void setAuthTokenSource(AuthTokenSource authTokenSource) {
+		mAuthTokenSource = authTokenSource;
+	}
+
+	/**
+	 * Logs in with an auth token from the AuthTokenSource.
+	 * 
+	 * @throws AppEngineException
+	 *             If logging in failed.
+	 */
+	public void login() throws AppEngineException {
+		authenticate(null);
+	}
+
+	/**
+	 * Loads the session saved in the SessionStore, ex: by an earlier login,
+	 * so that no login is needed.
+	 * 
+	 * @return Whether an unexpired session was found.
+	 */
+	public boolean resumeSession() {
+		if (mSessionStore == null) {
+			return false;
+		}
+		long expiry = restoreSession();
+		if (expiry == 0) {
+			return false;
+		}
+		mSessionExpiry = expiry;
+		setReady();
+		scheduleRefresh(mSessionExpiry - mSessionRefreshLeadMillis);
+		return true;
+	}
+
+	/**
+	 * Discards the current session, both in memory and in the session store.
+	 * Call this when the server has rejected the session so that the next
+	 * start goes through the login handshake again. Also done automatically
+	 * when the session is rejected and cannot be renewed.
+	 */
+	public void invalidateSession() {
+		AppEngineLog.i(TAG, "Invalidating session.");
+		mTransport.getCookieStore().clear();
+		ScheduledFuture<?> refreshTask = mRefreshTask.getAndSet(null);
+		if (refreshTask != null) {
+			refreshTask.cancel(false);
+		}
+		SessionStore sessionStore = mSessionStore;
+		if (sessionStore != null) {
+			sessionStore.clear();
+		}
+		mReady = false;
+	}
+
+	/**
+	 * Sets the executor on which callbacks of asynchronous requests are
+	 * delivered when the caller does not pass one. By default callbacks run
+	 * on the worker thread that performed the request. Pass a
+	 * MainThreadExecutor to have them run on the UI thread.
+	 * 
+	 * @param callbackExecutor
+	 *            Executor on which to deliver callbacks.
+	 */
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		mCallbackExecutor = callbackExecutor == null ? DIRECT_EXECUTOR
+				: callbackExecutor;
+	}
+
+	/**
+	 * Performs a HTTP GET request on path without blocking the calling
+	 * thread. The response is passed to handler on a worker thread, and its
+	 * entity is consumed afterwards.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP GET. Ex: pass in "test" to do a
+	 *            HTTP GET on https://application-name/test.
+	 * @param handler
+	 *            Handler which turns the response into a result.
+	 * @param callback
+	 *            Callback to notify with the result. May be null.
+	 * @return Future for the result. Cancelling it aborts the request.
+	 */
+	public <T> Future<T> doHttpGetAsync(String path,
+			ResponseHandler<? extends T> handler, AppEngineCallback<T> callback) {
+		return doHttpGetAsync(path, handler, callback, mCallbackExecutor);
+	}
+
+	/**
+	 * Same as doHttpGetAsync(String, ResponseHandler, AppEngineCallback), but
+	 * delivers callback on callbackExecutor.
+	 */
+	public <T> Future<T> doHttpGetAsync(String path,
+			ResponseHandler<? extends T> handler,
+			AppEngineCallback<T> callback, Executor callbackExecutor) {
+		return doHttpGetAsync(path, null, handler, callback, callbackExecutor);
+	}
+
+	/**
+	 * Same as doHttpGetAsync(String, ResponseHandler, AppEngineCallback,
+	 * Executor), with per request options.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public <T> Future<T> doHttpGetAsync(String path, RequestOptions options,
+			ResponseHandler<? extends T> handler,
+			AppEngineCallback<T> callback, Executor callbackExecutor) {
+		return submit(new HttpGet(mApplicationUrl + path), options, handler,
+				callback, callbackExecutor);
+	}
+
+	/**
+	 * Performs a HTTP POST request on path without blocking the calling
+	 * thread. The response is passed to handler on a worker thread, and its
+	 * entity is consumed afterwards.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP POST. Ex: pass in "test" to do
+	 *            a HTTP POST on https://application-name/test.
+	 * @param postData
+	 *            PostData to add to HTTP POST.
+	 * @param handler
+	 *            Handler which turns the response into a result.
+	 * @param callback
+	 *            Callback to notify with the result. May be null.
+	 * @return Future for the result. Cancelling it aborts the request.
+	 */
+	public <T> Future<T> doHttpPostAsync(String path,
+			List<NameValuePair> postData, ResponseHandler<? extends T> handler,
+			AppEngineCallback<T> callback) {
+		return doHttpPostAsync(path, postData, handler, callback,
+				mCallbackExecutor);
+	}
+
+	/**
+	 * Same as doHttpPostAsync(String, List, ResponseHandler,
+	 * AppEngineCallback), but delivers callback on callbackExecutor.
+	 */
+	public <T> Future<T> doHttpPostAsync(String path,
+			List<NameValuePair> postData, ResponseHandler<? extends T> handler,
+			AppEngineCallback<T> callback, Executor callbackExecutor) {
+		return doHttpPostAsync(path, postData, null, handler, callback,
+				callbackExecutor);
+	}
+
+	/**
+	 * Same as doHttpPostAsync(String, List, ResponseHandler,
+	 * AppEngineCallback, Executor), with per request options.
+	 * 
+	 * @param options
+	 *            Options for this request. May be null.
+	 */
+	public <T> Future<T> doHttpPostAsync(String path,
+			List<NameValuePair> postData, RequestOptions options,
+			ResponseHandler<? extends T> handler,
+			AppEngineCallback<T> callback, Executor callbackExecutor) {
+		HttpPost httpPost;
+		try {
+			httpPost = createHttpPost(path, postData, options);
+		} catch (final HttpRequestException e) {
+			AsyncRequest<T> failed = new AsyncRequest<T>(new HttpPost(),
+					new Callable<T>() {
+						public T call() throws Exception {
+							throw e;
+						}
+					}, callback, callbackExecutor);
+			failed.run();
+			return failed;
+		}
+		return submit(httpPost, options, handler, callback, callbackExecutor);
+	}
+
+	/**
+	 * Same as doHttpPost(String, HttpEntity, RequestOptions,
+	 * ResponseHandler), but without blocking the calling thread. Cancelling
+	 * the returned Future aborts the upload.
+	 * 
+	 * @param handler
+	 *            Handler which turns the response into a result.
+	 * @param callback
+	 *            Callback to notify with the result. May be null.
+	 * @param callbackExecutor
+	 *            Executor on which to deliver callback.
+	 * @return Future for the result.
+	 */
+	public <T> Future<T> doHttpPostAsync(String path, HttpEntity body,
+			RequestOptions options, ResponseHandler<? extends T> handler,
+			AppEngineCallback<T> callback, Executor callbackExecutor) {
+		return submit(createUpload(path, body, options), options, handler,
+				callback, callbackExecutor);
+	}
+
+	/**
+	 * Same as doHttpDownload(String, File, RequestOptions), but without
+	 * blocking the calling thread. Cancelling the returned Future stops the
+	 * download, keeping what was downloaded so far for the next attempt.
+	 * 
+	 * @param callback
+	 *            Callback to notify with the downloaded file. May be null.
+	 * @param callbackExecutor
+	 *            Executor on which to deliver callback.
+	 * @return Future for the downloaded file.
+	 */
+	public Future<File> doHttpDownloadAsync(String path, File destination,
+			RequestOptions options, AppEngineCallback<File> callback,
+			Executor callbackExecutor) {
+		final Download download = createDownload(path, destination, options);
+		AsyncRequest<File> task = new AsyncRequest<File>(null,
+				new Callable<File>() {
+					public File call() throws Exception {
+						return download.run();
+					}
+				}, callback, callbackExecutor, getPriority(options)) {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				if (cancelled) {
+					download.cancel();
+				}
+				return cancelled;
+			}
+		};
+		try {
+			mAsyncExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.fail(new HttpRequestException(
+					"Too many pending asynchronous requests."));
+		}
+		return task;
+	}
+
+	/**
+	 * Builds a download of path into destination, whose range requests go
+	 * through the usual request pipeline and whose extra segments run on
+	 * the asynchronous worker pool.
+	 */
+	private Download createDownload(String path, File destination,
+			final RequestOptions options) {
+		int segments = options == null ? 1 : options.getDownloadSegments();
+		ProgressListener listener = options == null ? null : options
+				.getProgressListener();
+		return new Download(new Download.Fetch() {
+			public void fetch(HttpUriRequest request,
+					ResponseHandler<?> handler) throws HttpRequestException {
+				execute(request, options, handler);
+			}
+		}, mApplicationUrl + path, destination, segments, listener,
+				mAsyncExecutor);
+	}
+
+	/**
+	 * Builds a HTTP POST request on path with body as its body, reporting
+	 * progress to the listener in options, if any.
+	 */
+	private HttpPost createUpload(String path, HttpEntity body,
+			RequestOptions options) {
+		HttpPost httpPost = new HttpPost(mApplicationUrl + path);
+		ProgressListener listener = options == null ? null : options
+				.getProgressListener();
+		if (listener != null) {
+			body = new ProgressEntity(body, listener, httpPost);
+		}
+		httpPost.setEntity(body);
+		return httpPost;
+	}
+
+	/**
+	 * Builds a HTTP POST request on path with postData as its form encoded
+	 * body, gzipped if options or the configured threshold say so.
+	 */
+	private HttpPost createHttpPost(String path,
+			List<NameValuePair> postData, RequestOptions options)
+			throws HttpRequestException {
+		try {
+			return createHttpPost(path, new UrlEncodedFormEntity(postData),
+					options);
+		} catch (UnsupportedEncodingException e) {
+			throw new HttpRequestException(e);
+		}
+	}
+
+	/**
+	 * Builds a HTTP POST request on path with entity as its body, gzipped if
+	 * options or the configured threshold say so.
+	 */
+	private HttpPost createHttpPost(String path, HttpEntity entity,
+			RequestOptions options) throws HttpRequestException {
+		HttpPost httpPost = new HttpPost(mApplicationUrl + path);
+		try {
+			httpPost.setEntity(compressIfNeeded(entity, options));
+		} catch (Exception e) {
+			throw new HttpRequestException(e);
+		}
+		return httpPost;
+	}
+
+	/**
+	 * Gzips entity if options ask for it, or if options leave it to the
+	 * configured threshold and entity is larger than that.
+	 */
+	private HttpEntity compressIfNeeded(HttpEntity entity,
+			RequestOptions options) throws IOException {
+		Boolean compress = options == null ? null : options.getCompressBody();
+		long length = entity.getContentLength();
+		if (compress == null) {
+			compress = mRequestCompressionThreshold >= 0
+					&& length > mRequestCompressionThreshold;
+		}
+		if (!compress || length < 0) {
+			return entity;
+		}
+		return CompressionInterceptor.compress(entity, mCompressionStats);
+	}
+
+	/**
+	 * @return Byte counters showing how much compression saves.
+	 */
+	public CompressionStats getCompressionStats() {
+		return mCompressionStats;
+	}
+
+	/**
+	 * @return Measurements of how requests made by this instance perform.
+	 */
+	public AppEngineMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Performs request on the calling thread within its deadline. The
+	 * deadline no longer applies once the response is returned, as the
+	 * caller reads its body.
+	 */
+	private HttpResponse execute(HttpUriRequest request,
+			RequestOptions options) throws HttpRequestException {
+		long start = System.nanoTime();
+		int statusCode = -1;
+		Deadline deadline = createDeadline(options);
+		ScheduledFuture<?> abortTask = scheduleAbort(request, deadline);
+		try {
+			HttpResponse response = execute(request, options, deadline);
+			statusCode = response.getStatusLine().getStatusCode();
+			return response;
+		} catch (HttpRequestException e) {
+			throw timeoutOr(e, request, deadline);
+		} finally {
+			if (abortTask != null) {
+				abortTask.cancel(false);
+			}
+			mMetrics.recordRequest(request.getURI().getRawPath(), statusCode,
+					System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Performs request on the calling thread, sharing the response with
+	 * identical HTTP GET requests in flight if single flight mode is on.
+	 */
+	private HttpResponse execute(final HttpUriRequest request,
+			final RequestOptions options, final Deadline deadline)
+			throws HttpRequestException {
+		if (mSingleFlight == null || !isPlainGet(request)) {
+			return executeCached(request, options, deadline);
+		}
+		String key = ResponseCache.key(mAccountName, request.getURI()
+				.toString());
+		return mSingleFlight.execute(key, request, new SingleFlight.Fetch() {
+			public HttpResponse fetch() throws HttpRequestException {
+				return executeCached(request, options, deadline);
+			}
+		}, deadline);
+	}
+
+	/**
+	 * Checks whether request is a HTTP GET for a whole resource, whose
+	 * response may be cached or shared. Range requests are not, as each asks
+	 * for its own part of the resource, and neither are requests carrying
+	 * their own validators or credentials, as the response depends on them.
+	 */
+	private static boolean isPlainGet(HttpUriRequest request) {
+		return "GET".equals(request.getMethod())
+				&& !request.containsHeader("Range")
+				&& !request.containsHeader("If-None-Match")
+				&& !request.containsHeader("If-Modified-Since")
+				&& !request.containsHeader("Authorization");
+	}
+
+	/**
+	 * Performs request on the calling thread, answering HTTP GET requests
+	 * from the response cache where possible.
+	 */
+	private HttpResponse executeCached(HttpUriRequest request,
+			RequestOptions options, Deadline deadline)
+			throws HttpRequestException {
+		ResponseCache cache = mResponseCache;
+		if (cache == null || !isPlainGet(request)) {
+			return executeAuthenticated(request, options, deadline);
+		}
+		String key = ResponseCache.key(mAccountName, request.getURI()
+				.toString());
+		ResponseCache.Entry cached = cache.get(key);
+		if (cached != null && cached.isFresh()) {
+			return cache.serve(cached);
+		}
+		if (cached != null && cached.hasValidator()) {
+			cached.addConditionalHeaders(request);
+		} else {
+			cached = null;
+		}
+		HttpResponse response = executeAuthenticated(request, options,
+				deadline);
+		if (cached != null && response.getStatusLine().getStatusCode() == 304) {
+			consume(response);
+			return cache.revalidated(key, cached, response);
+		}
+		try {
+			return cache.put(key, response);
+		} catch (IOException e) {
+			consume(response);
+			throw new HttpRequestException(e);
+		}
+	}
+
+	/**
+	 * Performs request on the calling thread. If the response shows that the
+	 * session was rejected, logs in again and retries the request once.
+	 */
+	private HttpResponse executeAuthenticated(HttpUriRequest request,
+			RequestOptions options, Deadline deadline)
+			throws HttpRequestException {
+		int generation = mSessionGeneration;
+		HttpResponse response = executeWithRetries(request, options,
+				deadline);
+		if (!isSessionRejected(response)) {
+			return response;
+		}
+		consume(response);
+		AppEngineLog.i(TAG, "Session rejected for " + request.getURI());
+		if (!renewSession(generation, deadline)) {
+			throw new HttpRequestException("Session rejected and could not "
+					+ "be renewed: " + response.getStatusLine());
+		}
+		if (!isRepeatable(request)) {
+			throw new HttpRequestException("Session was renewed, but "
+					+ "request body cannot be sent again.");
+		}
+		return executeWithRetries(request, options, deadline);
+	}
+
+	/**
+	 * Performs request on the calling thread, retrying it according to
+	 * mRetryPolicy if it is idempotent and fails with an I/O error or a
+	 * transient server error. Requests to a host whose circuit breaker is
+	 * open fail fast with a CircuitOpenException. Each attempt waits for a
+	 * slot from mLimiter, in the order of its priority, and reports back how
+	 * it went. The slot is held until the response entity is done with.
+	 */
+	private HttpResponse executeWithRetries(HttpUriRequest request,
+			RequestOptions options, Deadline deadline)
+			throws HttpRequestException {
+		String host = request.getURI().getHost();
+		CircuitBreaker breaker = getCircuitBreaker(host);
+		boolean retryable = isRepeatable(request)
+				&& ("GET".equals(request.getMethod()) || (options != null && options
+						.isIdempotent()));
+		int maxAttempts = retryable ? mRetryPolicy.getMaxAttempts() : 1;
+		RequestPriority priority = getPriority(options);
+		for (int attempt = 1;; attempt++) {
+			mLimiter.acquire(request, priority, deadline);
+			if (!breaker.allowRequest()) {
+				mLimiter.release(priority);
+				throw new CircuitOpenException("Requests to " + host
+						+ " are failing, not sending " + request.getURI());
+			}
+			HttpResponse response;
+			long sentAt = System.nanoTime();
+			try {
+				applyTimeouts(request, deadline);
+				response = executeOnce(request);
+			} catch (HttpRequestException e) {
+				if (request.isAborted()
+						|| (deadline != null && deadline.isExpired())) {
+					breaker.onAbandoned();
+					mLimiter.release(priority);
+					throw e;
+				}
+				breaker.onFailure();
+				mLimiter.onOverload(priority);
+				mLimiter.release(priority);
+				long delayMillis = mRetryPolicy.getBackoffMillis(attempt, -1);
+				if (attempt >= maxAttempts
+						|| !hasTimeFor(deadline, delayMillis)) {
+					throw e;
+				}
+				AppEngineLog.i(TAG, "Retrying " + request.getURI() + " after "
+						+ e.getCause());
+				backOff(delayMillis);
+				continue;
+			}
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (ConcurrencyLimiter.isOverload(statusCode)) {
+				mLimiter.onOverload(priority);
+			} else {
+				mLimiter.onSuccess(priority, System.nanoTime() - sentAt);
+			}
+			holdSlot(response, priority);
+			if (!mRetryPolicy.isRetryableStatus(statusCode)) {
+				breaker.onSuccess();
+				return response;
+			}
+			breaker.onFailure();
+			long retryAfterMillis = getRetryAfterMillis(response);
+			long delayMillis = mRetryPolicy.getBackoffMillis(attempt,
+					retryAfterMillis);
+			if (attempt >= maxAttempts
+					|| retryAfterMillis > mRetryPolicy.getMaxRetryAfterMillis()
+					|| !hasTimeFor(deadline, delayMillis)) {
+				return response;
+			}
+			consume(response);
+			AppEngineLog.i(TAG, "Retrying " + request.getURI() + " after "
+					+ response.getStatusLine());
+			backOff(delayMillis);
+		}
+	}
+
+	/**
+	 * Makes the mLimiter slot of priority taken for response last until its
+	 * entity has been read, closed, consumed or aborted, as its connection
+	 * stays leased from the pool until then. Releases the slot right away if
+	 * there is no entity.
+	 */
+	private void holdSlot(HttpResponse response,
+			final RequestPriority priority) {
+		Runnable release = new Runnable() {
+			public void run() {
+				mLimiter.release(priority);
+			}
+		};
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			release.run();
+		} else {
+			response.setEntity(new ReleasingEntity(entity, release));
+		}
+	}
+
+	/**
+	 * @return Priority of a call with options.
+	 */
+	private static RequestPriority getPriority(RequestOptions options) {
+		return options == null ? RequestPriority.NORMAL : options
+				.getPriority();
+	}
+
+	/**
+	 * @return The deadline for a call with options, or null if it has none.
+	 */
+	private Deadline createDeadline(RequestOptions options) {
+		long deadlineMillis = options == null ? 0 : options
+				.getDeadlineMillis();
+		if (deadlineMillis <= 0) {
+			deadlineMillis = mRequestDeadlineMillis;
+		}
+		return deadlineMillis > 0 ? new Deadline(deadlineMillis) : null;
+	}
+
+	/**
+	 * Schedules request to be aborted when deadline expires.
+	 * 
+	 * @return Task to cancel once the call is over, or null if there is no
+	 *         deadline.
+	 */
+	private ScheduledFuture<?> scheduleAbort(final HttpUriRequest request,
+			Deadline deadline) {
+		if (deadline == null) {
+			return null;
+		}
+		try {
+			return mScheduler.schedule(new Runnable() {
+				public void run() {
+					request.abort();
+				}
+			}, deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shut down. The request will fail anyway.
+			return null;
+		}
+	}
+
+	/**
+	 * @return A RequestTimeoutException if e was caused by deadline
+	 *         expiring, e otherwise.
+	 */
+	private static HttpRequestException timeoutOr(HttpRequestException e,
+			HttpUriRequest request, Deadline deadline) {
+		if (deadline == null || !deadline.isExpired()
+				|| e instanceof RequestTimeoutException) {
+			return e;
+		}
+		return new RequestTimeoutException("Deadline expired for "
+				+ request.getURI());
+	}
+
+	/**
+	 * Bounds the connect, socket and pool timeouts of the next attempt at
+	 * request by the time left until deadline.
+	 */
+	private void applyTimeouts(HttpUriRequest request, Deadline deadline)
+			throws RequestTimeoutException {
+		if (deadline == null) {
+			return;
+		}
+		if (deadline.isExpired()) {
+			throw new RequestTimeoutException("Deadline expired for "
+					+ request.getURI());
+		}
+		HttpParams params = request.getParams();
+		ConnManagerParams.setTimeout(params, deadline
+				.bound(mConnectionPoolTimeoutMillis));
+		HttpConnectionParams.setConnectionTimeout(params, deadline
+				.bound(mConnectTimeoutMillis));
+		HttpConnectionParams.setSoTimeout(params, deadline
+				.bound(mSocketTimeoutMillis));
+	}
+
+	/**
+	 * @return Whether there is time left for a retry after waiting
+	 *         delayMillis.
+	 */
+	private static boolean hasTimeFor(Deadline deadline, long delayMillis) {
+		return deadline == null || deadline.remainingMillis() > delayMillis;
+	}
+
+	/**
+	 * @return The circuit breaker for host, created on first use.
+	 */
+	private CircuitBreaker getCircuitBreaker(String host) {
+		CircuitBreaker breaker = mCircuitBreakers.get(host);
+		if (breaker == null) {
+			breaker = new CircuitBreaker(mCircuitBreakerThreshold,
+					mCircuitBreakerOpenMillis);
+			CircuitBreaker existing = mCircuitBreakers.putIfAbsent(host,
+					breaker);
+			if (existing != null) {
+				breaker = existing;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * Checks whether request can be sent more than once, i.e. it has no body
+	 * or a repeatable one.
+	 */
+	private static boolean isRepeatable(HttpUriRequest request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request)
+					.getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the Retry-After header of response, which is either a number of
+	 * seconds or a HTTP date.
+	 * 
+	 * @return Delay in milliseconds, or -1 if there is none.
+	 */
+	private static long getRetryAfterMillis(HttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header == null) {
+			return -1;
+		}
+		String value = header.getValue().trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			// Not a number of seconds, so it should be a date.
+		}
+		try {
+			return Math.max(0, DateUtils.parseDate(value).getTime()
+					- System.currentTimeMillis());
+		} catch (DateParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sleeps for delayMillis before a retry.
+	 */
+	private static void backOff(long delayMillis) throws HttpRequestException {
+		try {
+			Thread.sleep(delayMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HttpRequestException(e);
+		}
+	}
+
+	/**
+	 * Performs request on the calling thread exactly once.
+	 */
+	private HttpResponse executeOnce(HttpUriRequest request)
+			throws HttpRequestException {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request)
+					.getEntity();
+			if (entity != null && entity.getContentLength() > 0) {
+				mMetrics.recordRequestBytes(entity.getContentLength());
+			}
+		}
+		try {
+			return send(request, null);
+		} catch (Exception e) {
+			throw new HttpRequestException(e);
+		}
+	}
+
+	/**
+	 * Sends request through mTransport, compressing it and decompressing the
+	 * response as configured.
+	 */
+	private HttpResponse send(HttpUriRequest request, HttpContext context)
+			throws IOException {
+		try {
+			mCompressionInterceptor.process(request, context);
+			HttpResponse response = mTransport.execute(request, context);
+			mCompressionInterceptor.process(response, context);
+			return response;
+		} catch (HttpException e) {
+			throw new ClientProtocolException(e);
+		}
+	}
+
+	/**
+	 * Checks whether response shows that the session was not accepted, i.e.
+	 * it is a 401 or a redirect to a login page.
+	 */
+	private static boolean isSessionRejected(HttpResponse response) {
+		return response.getStatusLine().getStatusCode() == 401
+				|| LoginRedirectHandler.isLoginRedirect(response);
+	}
+
+	/**
+	 * Logs in again after a request found the session rejected. Only one
+	 * thread logs in at a time, and threads whose request was sent with an
+	 * older session than the current one just reuse the new session.
+	 * 
+	 * @param failedGeneration
+	 *            mSessionGeneration when the rejected request was sent.
+	 * @param deadline
+	 *            Deadline of the rejected request. May be null.
+	 * @return Whether there is a new session to retry with.
+	 */
+	private boolean renewSession(int failedGeneration, Deadline deadline)
+			throws HttpRequestException {
+		lockLogin(deadline);
+		try {
+			if (mSessionGeneration != failedGeneration) {
+				return true;
+			}
+			if (mAuthTokenSource == null) {
+				invalidateSession();
+				return false;
+			}
+			try {
+				authenticate(null, deadline);
+				return true;
+			} catch (AppEngineException e) {
+				if (deadline != null && deadline.isExpired()) {
+					// The session may well be fine, we just ran out of time.
+					throw new RequestTimeoutException(
+							"Deadline expired while logging in.");
+				}
+				AppEngineLog.e(TAG, "Failed to renew session.", e);
+				invalidateSession();
+				return false;
+			}
+		} finally {
+			mLoginLock.unlock();
+		}
+	}
+
+	/**
+	 * Acquires mLoginLock, waiting no longer than deadline allows.
+	 */
+	private void lockLogin(Deadline deadline) throws HttpRequestException {
+		if (deadline == null) {
+			mLoginLock.lock();
+			return;
+		}
+		try {
+			if (!mLoginLock.tryLock(deadline.remainingMillis(),
+					TimeUnit.MILLISECONDS)) {
+				throw new RequestTimeoutException(
+						"Deadline expired while waiting for login.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HttpRequestException(e);
+		}
+	}
+
+	/**
+	 * Consumes the entity of response, if any, so that its connection is
+	 * returned to the pool.
+	 */
+	private static void consume(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				AppEngineLog.w(TAG, "Failed to consume response.", e);
+			}
+		}
+	}
+
+	/**
+	 * Performs request on the calling thread, passing the response to
+	 * handler. The response entity is consumed once handler returns.
+	 */
+	private <T> T execute(HttpUriRequest request, RequestOptions options,
+			ResponseHandler<? extends T> handler) throws HttpRequestException {
+		long start = System.nanoTime();
+		int statusCode = -1;
+		Deadline deadline = createDeadline(options);
+		ScheduledFuture<?> abortTask = scheduleAbort(request, deadline);
+		try {
+			HttpResponse response = execute(request, options, deadline);
+			try {
+				T result = handler.handleResponse(response);
+				statusCode = response.getStatusLine().getStatusCode();
+				return result;
+			} catch (Exception e) {
+				throw new HttpRequestException(e);
+			} finally {
+				consume(response);
+			}
+		} catch (HttpRequestException e) {
+			throw timeoutOr(e, request, deadline);
+		} finally {
+			if (abortTask != null) {
+				abortTask.cancel(false);
+			}
+			mMetrics.recordRequest(request.getURI().getRawPath(), statusCode,
+					System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Schedules request on the asynchronous worker pool.
+	 */
+	private <T> Future<T> submit(final HttpUriRequest request,
+			final RequestOptions options,
+			final ResponseHandler<? extends T> handler,
+			AppEngineCallback<T> callback, Executor callbackExecutor) {
+		AsyncRequest<T> task = new AsyncRequest<T>(request, new Callable<T>() {
+			public T call() throws Exception {
+				return execute(request, options, handler);
+			}
+		}, callback, callbackExecutor, getPriority(options));
+		try {
+			mAsyncExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.fail(new HttpRequestException(
+					"Too many pending asynchronous requests."));
+		}
+		return task;
+	}
+
+	/**
+	 * Logs in, optimistically using authToken first. If App Engine rejects
+	 * it, the token is invalidated and a fresh one from the AuthTokenSource
+	 * is tried once.
+	 * 
+	 * @param authToken
+	 *            Token to try first, ex: one just returned by the
+	 *            AccountManager. If null, one is fetched from the
+	 *            AuthTokenSource.
+	 * @throws AppEngineException
+	 *             If logging in failed.
+	 */
+	protected void authenticate(String authToken) throws AppEngineException {
+		authenticate(authToken, null);
+	}
+
+	/**
+	 * Same as authenticate(String), but gives up when deadline expires.
+	 * 
+	 * @param deadline
+	 *            Deadline of the login. May be null.
+	 */
+	private void authenticate(String authToken, Deadline deadline)
+			throws AppEngineException {
+		lockLogin(deadline);
+		try {
+			AuthTokenSource authTokenSource = mAuthTokenSource;
+			if (authToken == null) {
+				if (authTokenSource == null) {
+					throw new AccountException("No auth token source set.");
+				}
+				authToken = fetchAuthToken(authTokenSource);
+			}
+			try {
+				fetchCookies(authToken, deadline);
+			} catch (InvalidAuthTokenException e) {
+				if (authTokenSource == null) {
+					throw e;
+				}
+				AppEngineLog.i(TAG,
+						"Auth token rejected, retrying with a fresh one.");
+				long start = System.nanoTime();
+				authTokenSource.invalidateAuthToken(authToken);
+				mMetrics.recordLoginPhase(
+						AppEngineMetrics.PHASE_TOKEN_INVALIDATE,
+						System.nanoTime() - start);
+				fetchCookies(fetchAuthToken(authTokenSource), deadline);
+			}
+		} finally {
+			mLoginLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets an auth token from authTokenSource, timing how long it takes.
+	 */
+	private String fetchAuthToken(AuthTokenSource authTokenSource)
+			throws AccountException {
+		long start = System.nanoTime();
+		try {
+			return authTokenSource.getAuthToken();
+		} finally {
+			mMetrics.recordLoginPhase(AppEngineMetrics.PHASE_TOKEN_FETCH,
+					System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Exchanges authToken for session cookies.
+	 * 
+	 * @param authToken
+	 *            Auth token for the "ah" service.
+	 * @param deadline
+	 *            Deadline of the login. May be null.
+	 * @throws InvalidAuthTokenException
+	 *             If App Engine did not accept authToken.
+	 * @throws CookieException
+	 *             If the request failed.
+	 */
+	private void fetchCookies(String authToken, Deadline deadline)
+			throws CookieException {
+		try {
+			HttpGet request = new HttpGet(mApplicationUrl
+					+ "_ah/login?continue=http://localhost/&auth=" + authToken);
+			// Don't follow redirects. We only need cookies returned by
+			// authentication URL. No need to follow the redirect it returns.
+			// This is set on the request rather than the shared client so
+			// that concurrent requests are unaffected.
+			request.getParams().setBooleanParameter(
+					ClientPNames.HANDLE_REDIRECTS, false);
+			applyTimeouts(request, deadline);
+			// Log in with a cookie store of its own, so that only cookies set
+			// by this login are looked at, and the current session keeps
+			// working for other requests until the new one is swapped in.
+			CookieStore loginCookies = new BasicCookieStore();
+			HttpContext context = new BasicHttpContext();
+			context.setAttribute(ClientContext.COOKIE_STORE, loginCookies);
+			long start = System.nanoTime();
+			HttpResponse response;
+			try {
+				response = send(request, context);
+				consume(response);
+			} finally {
+				mMetrics.recordLoginPhase(AppEngineMetrics.PHASE_LOGIN,
+						System.nanoTime() - start);
+			}
+
+			if (response.getStatusLine().getStatusCode() != 302
+					|| LoginRedirectHandler.isLoginRedirect(response)) {
+				String error = "Did not receive redirect! Response Code: "
+						+ response.getStatusLine().getStatusCode()
+						+ ". Message: "
+						+ response.getStatusLine().getReasonPhrase();
+				AppEngineLog.e(TAG, error);
+				throw new InvalidAuthTokenException(error);
+			}
+
+			for (Cookie cookie : loginCookies.getCookies()) {
+				if (cookie.getName().equals("SACSID")) {
+					AppEngineLog.i(TAG, "Found SACSID cookie!");
+					CookieStore cookieStore = mTransport.getCookieStore();
+					for (Cookie loginCookie : loginCookies.getCookies()) {
+						// Replaces the cookie of the old session, if any.
+						cookieStore.addCookie(loginCookie);
+					}
+					mSessionGeneration++;
+					mSessionExpiry = getSessionExpiry(cookie);
+					saveSession(mSessionExpiry);
+					setReady();
+					scheduleRefresh(mSessionExpiry - mSessionRefreshLeadMillis);
+					return;
+				}
+			}
+			throw new InvalidAuthTokenException(
+					"Login did not return a SACSID cookie.");
+		} catch (ClientProtocolException e) {
+			throw new CookieException(e);
+		} catch (IOException e) {
+			throw new CookieException(e);
+		} catch (RequestTimeoutException e) {
+			throw new CookieException(e);
+		}
+	}
+
+	/**
+	 * Saves the current cookies to mSessionStore, if there is one. Failure to
+	 * save is logged but otherwise ignored, as the session in memory is still
+	 * good.
+	 * 
+	 * @param expiry
+	 *            Time in milliseconds since the epoch at which the session
+	 *            expires.
+	 */
+	private void saveSession(long expiry) {
+		SessionStore sessionStore = mSessionStore;
+		if (sessionStore == null) {
+			return;
+		}
+		try {
+			sessionStore.save(mTransport.getCookieStore().getCookies(),
+					expiry);
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Failed to save session.", e);
+		}
+	}
+
+	/**
+	 * Works out when the session whose SACSID cookie is sessionCookie
+	 * expires: at the cookie's expiry, but no later than the configured
+	 * maximum age.
+	 * 
+	 * @return Time in milliseconds since the epoch.
+	 */
+	private long getSessionExpiry(Cookie sessionCookie) {
+		long expiry = System.currentTimeMillis() + mSessionMaxAgeMillis;
+		Date cookieExpiry = sessionCookie.getExpiryDate();
+		if (cookieExpiry != null) {
+			expiry = Math.min(expiry, cookieExpiry.getTime());
+		}
+		return expiry;
+	}
+
+	/**
+	 * Loads cookies from mSessionStore into the client.
+	 * 
+	 * @return Time in milliseconds since the epoch at which the restored
+	 *         session expires: the expiry it was saved with, which a restart
+	 *         must not push back. 0 if no unexpired SACSID cookie was
+	 *         restored.
+	 */
+	private long restoreSession() {
+		StoredSession session;
+		try {
+			session = mSessionStore.load();
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Failed to restore session.", e);
+			mSessionStore.clear();
+			return 0;
+		}
+		if (session == null) {
+			return 0;
+		}
+		Cookie sessionCookie = null;
+		for (Cookie cookie : session.getCookies()) {
+			if (cookie.getName().equals("SACSID")) {
+				sessionCookie = cookie;
+			}
+			mTransport.getCookieStore().addCookie(cookie);
+		}
+		if (sessionCookie == null) {
+			return 0;
+		}
+		AppEngineLog.i(TAG, "Restored SACSID cookie from session store.");
+		if (session.getExpiry() == 0) {
+			return getSessionExpiry(sessionCookie);
+		}
+		Date cookieExpiry = sessionCookie.getExpiryDate();
+		return cookieExpiry == null ? session.getExpiry() : Math.min(session
+				.getExpiry(), cookieExpiry.getTime());
+	}
+
+	/**
+	 * Schedules the session to be refreshed in the background at refreshAt,
+	 * replacing any refresh scheduled earlier. Does nothing if proactive
+	 * refreshes are disabled.
+	 * 
+	 * @param refreshAt
+	 *            Time in milliseconds since the epoch.
+	 */
+	private void scheduleRefresh(long refreshAt) {
+		if (mSessionRefreshLeadMillis <= 0) {
+			return;
+		}
+		ScheduledFuture<?> task;
+		try {
+			task = mScheduler.schedule(new Runnable() {
+				public void run() {
+					submitRefresh();
+				}
+			}, Math.max(0, refreshAt - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shut down.
+			return;
+		}
+		ScheduledFuture<?> previous = mRefreshTask.getAndSet(task);
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	/**
+	 * Hands a session refresh to the worker pool, so that the scheduler is
+	 * never blocked by a login.
+	 */
+	private void submitRefresh() {
+		try {
+			mAsyncExecutor.execute(new Runnable() {
+				public void run() {
+					refreshSession();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			retryRefresh();
+		}
+	}
+
+	/**
+	 * Logs in again while the current session is still valid. Requests keep
+	 * using the current session until the new one is swapped in.
+	 */
+	private void refreshSession() {
+		if (mAuthTokenSource == null || !mReady) {
+			return;
+		}
+		try {
+			authenticate(null);
+			AppEngineLog.i(TAG, "Refreshed session ahead of its expiry.");
+		} catch (AppEngineException e) {
+			AppEngineLog.w(TAG, "Failed to refresh session.", e);
+			retryRefresh();
+		}
+	}
+
+	/**
+	 * Tries refreshing the session again a little later, as long as it has
+	 * not expired by then.
+	 */
+	private void retryRefresh() {
+		long retryAt = System.currentTimeMillis() + SESSION_REFRESH_RETRY_MILLIS;
+		if (retryAt < mSessionExpiry) {
+			scheduleRefresh(retryAt);
+		}
+	}
+
+	/**
+	 * Marks this instance as ready for use, and registers it if it was
+	 * handed out by AppEngineRegistry.getOrCreate.
+	 */
+	private void setReady() {
+		mReady = true;
+		AppEngineRegistry.onReady(this);
+	}
+
+	/**
+	 * Creates daemon worker threads for asynchronous requests and timers, so
+	 * that pending requests never keep the process alive.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		/**
+		 * Number of threads created so far. Used to name threads.
+		 */
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		/**
+		 * Prefix of the names of created threads.
+		 */
+		private final String mNamePrefix;
+
+		WorkerThreadFactory(String namePrefix) {
+			mNamePrefix = namePrefix;
+		}
+
+		/**
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, mNamePrefix
+					+ mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 }
@@ -8,10 +8,8 @@ package com.gopalkri.appengineandroid;
 import android.R;
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.app.Activity;
 import android.app.ListActivity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -30,6 +28,12 @@ public class AppEngineActivity extends ListActivity {
 	 */
 	public static final String APPLICATION_NAME = "ApplicationName";
 
+	/**
+	 * Key for optional extra to be added to calling intent. Value must be an
+	 * AppEngineConfig. If absent, the default configuration is used.
+	 */
+	public static final String APPENGINE_CONFIG = "AppEngineConfig";
+
 	/**
 	 * Key for intent extra that can be fetched out of the data intent returned
 	 * by setResult. Value is an AppEngine object on which requests can be
@@ -65,10 +69,10 @@ public class AppEngineActivity extends ListActivity {
 	 */
 	private static final String TAG = "AppEngineAndroid";
 
-	/**
-	 * Key for account name preference.
-	 */
-	private static final String PREFS_ACCOUNT_NAME = "AccountName";
+	static {
+		// The client core logs through AppEngineLog; send it to logcat.
+		AppEngineLog.setSink(new AndroidLogSink());
+	}
 
 	/**
 	 * AccountManager object used to interface with Accounts.
@@ -85,6 +89,17 @@ public class AppEngineActivity extends ListActivity {
 	 */
 	private String mApplicationUrl;
 
+	/**
+	 * Configuration for the AppEngine instance. Null if the default should be
+	 * used.
+	 */
+	private AppEngineConfig mConfig;
+
+	/**
+	 * Sets up the AppEngine instance in the background.
+	 */
+	private AppEngineAuthenticator mAuthenticator;
+
 	/**
 	 * @see android.app.Activity#onCreate(android.os.Bundle)
 	 */
@@ -94,6 +109,9 @@ public class AppEngineActivity extends ListActivity {
 
 		mApplicationUrl = "https://"
 				+ getIntent().getExtras().get(APPLICATION_NAME);
+		mConfig = (AppEngineConfig) getIntent().getExtras().get(
+				APPENGINE_CONFIG);
+		mAuthenticator = new AppEngineAuthenticator(this);
 
 		fetchAllAccounts();
 		if (mAllAccounts.length < 1) {
@@ -106,7 +124,8 @@ public class AppEngineActivity extends ListActivity {
 			Log.d(TAG, "Only one account found, using it.");
 			startAuthenticationActivity(mAllAccounts[0]);
 		} else {
-			Account account = readAccountFromPreferences();
+			Account account = AppEngineAuthenticator.findAccount(mAllAccounts,
+					mAuthenticator.getSavedAccountName());
 			if (account == null) {
 				Log.d(TAG, "Account not found in preferences.");
 				setListAdapter(new ArrayAdapter<Account>(this,
@@ -163,52 +182,55 @@ public class AppEngineActivity extends ListActivity {
 	 */
 	private void fetchAllAccounts() {
 		mAccountManager = AccountManager.get(this);
-		mAllAccounts = mAccountManager.getAccountsByType("com.google");
+		mAllAccounts = mAccountManager
+				.getAccountsByType(AppEngineAuthenticator.ACCOUNT_TYPE);
 	}
 
 	/**
-	 * Reads SharedPreferences file and gets stored account name. Returns
-	 * Account object for the stored account if found, null otherwise.
+	 * Sets up the AppEngine instance for account without any further UI,
+	 * finishing once it is ready. Only if the user has to grant access to
+	 * the account is AuthenticationActivity started to ask them.
 	 * 
-	 * @return Account object for the stored account if found, null otherwise.
-	 */
-	private Account readAccountFromPreferences() {
-		SharedPreferences preferences = getSharedPreferences(PREFS_FILE_NAME,
-				Activity.MODE_PRIVATE);
-		String accountName = preferences.getString(PREFS_ACCOUNT_NAME, null);
-		if (accountName == null) {
-			return null;
-		}
-
-		for (Account account : mAllAccounts) {
-			if (account.name.compareTo(accountName) == 0) {
-				return account;
-			}
-		}
-
-		return null;
+	 * @param account
+	 *            Account to use for authentication.
+	 */
+	private void startAuthenticationActivity(final Account account) {
+		Log.i(TAG, "Using account: " + account.name);
+		mAuthenticator.authenticate(mApplicationUrl, account, mConfig,
+				new AppEngineCallback<AppEngine>() {
+					public void onSuccess(AppEngine result) {
+						setResult(RESULT_OK);
+						finish();
+					}
+
+					public void onFailure(AppEngineException e) {
+						if (e instanceof UserConsentRequiredException) {
+							Log.d(TAG, "Need user consent, asking for it.");
+							askForConsent(account);
+							return;
+						}
+						Log.e(TAG, "Failed to set up AppEngine instance.", e);
+						setResult(RESULT_FAILED);
+						finish();
+					}
+				}, new MainThreadExecutor());
 	}
 
 	/**
 	 * Starts AuthenticationActivity for result with account passed in through
-	 * the intent extras.
+	 * the intent extras, so that the user can grant access to it.
 	 * 
 	 * @param account
 	 *            Account to use for authentication.
 	 */
-	private void startAuthenticationActivity(Account account) {
-		Log.i(TAG, "Using account: " + account.name);
-
-		SharedPreferences preferences = getSharedPreferences(PREFS_FILE_NAME,
-				MODE_PRIVATE);
-		SharedPreferences.Editor editor = preferences.edit();
-		editor.putString(PREFS_ACCOUNT_NAME, account.name);
-		editor.commit();
-
+	private void askForConsent(Account account) {
 		Intent intent = new Intent(this, AuthenticationActivity.class);
 		intent.putExtra(AuthenticationActivity.ACCOUNT, account);
 		intent.putExtra(AuthenticationActivity.APPLICATION_URL,
 						mApplicationUrl);
+		if (mConfig != null) {
+			intent.putExtra(AuthenticationActivity.CONFIG, mConfig);
+		}
 		startActivityForResult(intent, SETUP_AUTH);
 	}
 
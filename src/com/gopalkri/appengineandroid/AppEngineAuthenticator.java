@@ -0,0 +1,308 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Sets up a ready AppEngine instance without any UI, ex: from a background
+ * service, which cannot start activities. Resuming a saved session, fetching
+ * the auth token and the _ah/login handshake all run on a background thread,
+ * and the instance is handed back through a Future and an AppEngineCallback.
+ * Like the activities, the instance is registered with AppEngineRegistry and
+ * becomes the one returned by AppEngine.getInstance().
+ * 
+ * The user only has to be involved if the AccountManager wants them to grant
+ * access to the account. Authentication then fails with a
+ * UserConsentRequiredException, whose intent should be shown to the user, ex:
+ * from a notification; authenticate again once they have agreed.
+ * 
+ * @author Gopal Sharma
+ */
+public class AppEngineAuthenticator {
+
+	/**
+	 * Tag for logging.
+	 */
+	private static final String TAG = "AppEngineAndroid";
+
+	static {
+		// The client core logs through AppEngineLog; send it to logcat.
+		AppEngineLog.setSink(new AndroidLogSink());
+	}
+
+	/**
+	 * Type of the accounts App Engine logs in with.
+	 */
+	static final String ACCOUNT_TYPE = "com.google";
+
+	/**
+	 * Key for account name preference.
+	 */
+	private static final String PREFS_ACCOUNT_NAME = "AccountName";
+
+	/**
+	 * Attempts to set up an instance which are under way, by application url
+	 * and account name. Shared by all authenticators, since the instances
+	 * they set up are shared through AppEngineRegistry.
+	 */
+	private static final ConcurrentHashMap<String, FutureTask<AppEngine>> sAttempts = new ConcurrentHashMap<String, FutureTask<AppEngine>>();
+
+	/**
+	 * Application context, which outlives any activity or service.
+	 */
+	private final Context mContext;
+
+	/**
+	 * @param context
+	 *            Any context of the application. Only its application
+	 *            context is kept.
+	 */
+	public AppEngineAuthenticator(Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	/**
+	 * Authenticates as account, the one chosen last or the only Google
+	 * account on the device. Fails with an AccountException if there are
+	 * several and none has been chosen yet.
+	 * 
+	 * @see #authenticate(String, Account, AppEngineConfig, AppEngineCallback,
+	 *      Executor)
+	 */
+	public Future<AppEngine> authenticate(final String applicationUrl,
+			final AppEngineConfig config, AppEngineCallback<AppEngine> callback,
+			Executor callbackExecutor) {
+		return submit(new Callable<AppEngine>() {
+			public AppEngine call() throws Exception {
+				Account account = getDefaultAccount();
+				if (account == null) {
+					throw new AccountException("No account chosen.");
+				}
+				return authenticate(applicationUrl, account, config);
+			}
+		}, callback, callbackExecutor);
+	}
+
+	/**
+	 * Sets up a ready AppEngine instance for account on a background thread.
+	 * An instance which is already registered and logged in is returned as
+	 * is, and a session saved by an earlier login is resumed without any
+	 * network traffic. Otherwise an auth token is fetched and exchanged for
+	 * session cookies. The account is remembered as the one chosen last.
+	 * 
+	 * @param applicationUrl
+	 *            App engine application's url. Ex:
+	 *            https://gopalkri-testing.appspot.com
+	 * @param account
+	 *            Google account to log in as.
+	 * @param config
+	 *            Configuration of the instance. May be null for the default.
+	 * @param callback
+	 *            Callback to notify with the ready instance. May be null.
+	 * @param callbackExecutor
+	 *            Executor on which to deliver callback, ex: a
+	 *            MainThreadExecutor.
+	 * @return Future for the ready instance. It fails with a
+	 *         UserConsentRequiredException if the user has to grant access
+	 *         to the account first.
+	 */
+	public Future<AppEngine> authenticate(final String applicationUrl,
+			final Account account, final AppEngineConfig config,
+			AppEngineCallback<AppEngine> callback, Executor callbackExecutor) {
+		return submit(new Callable<AppEngine>() {
+			public AppEngine call() throws Exception {
+				return authenticate(applicationUrl, account, config);
+			}
+		}, callback, callbackExecutor);
+	}
+
+	/**
+	 * Gets the account to log in as when none is given: the only Google
+	 * account on the device, or else the one chosen last. Blocks on the
+	 * AccountManager and on disk, so call it off the UI thread.
+	 * 
+	 * @return The account, or null if there is no obvious one.
+	 */
+	public Account getDefaultAccount() {
+		Account[] accounts = AccountManager.get(mContext).getAccountsByType(
+				ACCOUNT_TYPE);
+		if (accounts.length == 1) {
+			return accounts[0];
+		}
+		return findAccount(accounts, getSavedAccountName());
+	}
+
+	/**
+	 * @return Name of the account chosen last, or null if none was.
+	 */
+	String getSavedAccountName() {
+		return getPreferences().getString(PREFS_ACCOUNT_NAME, null);
+	}
+
+	/**
+	 * Remembers accountName as the account chosen last. Skips the disk write
+	 * if it already is.
+	 */
+	void saveAccountName(String accountName) {
+		SharedPreferences preferences = getPreferences();
+		String saved = preferences.getString(PREFS_ACCOUNT_NAME, null);
+		if (accountName.equals(saved)) {
+			return;
+		}
+		SharedPreferences.Editor editor = preferences.edit();
+		editor.putString(PREFS_ACCOUNT_NAME, accountName);
+		editor.commit();
+	}
+
+	private SharedPreferences getPreferences() {
+		return mContext.getSharedPreferences(
+				AppEngineActivity.PREFS_FILE_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return The account in accounts named name, or null if there is none.
+	 */
+	static Account findAccount(Account[] accounts, String name) {
+		if (name == null) {
+			return null;
+		}
+		for (Account account : accounts) {
+			if (account.name.equals(name)) {
+				return account;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets up a ready AppEngine instance for account on the calling thread.
+	 * Concurrent calls for the same application and account share one
+	 * attempt, so that they do not log in twice and replace each other's
+	 * instance.
+	 */
+	private AppEngine authenticate(final String applicationUrl,
+			final Account account, final AppEngineConfig config)
+			throws AppEngineException {
+		saveAccountName(account.name);
+		AppEngine ready = AppEngineRegistry.get(applicationUrl, account.name);
+		if (ready != null) {
+			return ready;
+		}
+		String key = getKey(applicationUrl, account.name);
+		FutureTask<AppEngine> attempt = new FutureTask<AppEngine>(
+				new Callable<AppEngine>() {
+					public AppEngine call() throws Exception {
+						return setUp(applicationUrl, account, config);
+					}
+				});
+		FutureTask<AppEngine> running = sAttempts.putIfAbsent(key, attempt);
+		if (running == null) {
+			running = attempt;
+			try {
+				attempt.run();
+			} finally {
+				sAttempts.remove(key, attempt);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AppEngineException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof AppEngineException) {
+				throw (AppEngineException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new AppEngineException((Exception) cause);
+		}
+	}
+
+	/**
+	 * Resumes the saved session for account, or else logs in. The instance
+	 * is only registered once it is ready, so a failed attempt leaves the
+	 * registered instance, if any, alone.
+	 */
+	private AppEngine setUp(String applicationUrl, Account account,
+			AppEngineConfig config) throws AppEngineException {
+		AppEngine ready = AppEngineRegistry.get(applicationUrl, account.name);
+		if (ready != null) {
+			return ready;
+		}
+		if (config == null) {
+			config = new AppEngineConfig();
+		}
+		AuthTokenSource authTokenSource = new AccountManagerAuthTokenSource(
+				AccountManager.get(mContext), account);
+		SessionStore sessionStore = new FileSessionStore(mContext
+				.getFilesDir(), applicationUrl, account.name);
+		AppEngine instance = AppEngine.restoreInstance(applicationUrl, config,
+				account.name, sessionStore);
+		if (instance != null) {
+			AppEngineLog.i(TAG, "Restored saved session, skipping login.");
+			// Lets the instance log in again by itself if the server turns
+			// out to have rejected the restored session.
+			instance.setAuthTokenSource(authTokenSource);
+			return instance;
+		}
+		instance = AppEngine.newInstance(applicationUrl, config, account.name);
+		instance.warmUp();
+		instance.setSessionStore(sessionStore);
+		instance.setAuthTokenSource(authTokenSource);
+		boolean loggedIn = false;
+		try {
+			instance.login();
+			loggedIn = true;
+		} finally {
+			if (!loggedIn) {
+				instance.shutdown();
+			}
+		}
+		AppEngine.publish(instance);
+		AppEngineLog.i(TAG, "AppEngine instance is ready to go.");
+		return instance;
+	}
+
+	/**
+	 * @return Key of the attempts for an application and account in
+	 *         sAttempts.
+	 */
+	private static String getKey(String applicationUrl, String accountName) {
+		String url = applicationUrl.endsWith("/") ? applicationUrl
+				: applicationUrl + "/";
+		return url + " " + accountName;
+	}
+
+	/**
+	 * Runs work on a thread of its own. Logging in is rare and mostly
+	 * waiting, so there is no pool.
+	 */
+	private static Future<AppEngine> submit(Callable<AppEngine> work,
+			AppEngineCallback<AppEngine> callback, Executor callbackExecutor) {
+		AsyncRequest<AppEngine> task = new AsyncRequest<AppEngine>(null,
+				work, callback, callbackExecutor);
+		new Thread(task, "AppEngineAuthenticator").start();
+		return task;
+	}
+
+}
@@ -0,0 +1,33 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Receives the outcome of an asynchronous AppEngine request. Exactly one of
+ * the two methods is called, unless the request is cancelled, in which case
+ * neither is.
+ * 
+ * @author Gopal Sharma
+ */
+public interface AppEngineCallback<T> {
+
+	/**
+	 * Called when the request completed and its response was handled.
+	 * 
+	 * @param result
+	 *            Value returned by the request's response handler.
+	 */
+	void onSuccess(T result);
+
+	/**
+	 * Called when the request or its response handler failed.
+	 * 
+	 * @param e
+	 *            Exception describing the failure.
+	 */
+	void onFailure(AppEngineException e);
+
+}
@@ -0,0 +1,590 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.Serializable;
+
+/**
+ * Tunable settings for an AppEngine instance. An instance of this class can be
+ * passed to AppEngineActivity through the intent extra
+ * AppEngineActivity.APPENGINE_CONFIG. If none is passed, the defaults below are
+ * used.
+ * 
+ * @author Gopal Sharma
+ */
+public class AppEngineConfig implements Serializable {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = -2671484213630946211L;
+
+	/**
+	 * Default maximum number of pooled connections across all routes.
+	 */
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+
+	/**
+	 * Default maximum number of pooled connections to a single route. All
+	 * requests go to the same application host, so this is close to the total.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+
+	/**
+	 * Default time an idle connection is kept alive when the server does not
+	 * send a Keep-Alive timeout.
+	 */
+	public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+	/**
+	 * Default time after which idle pooled connections are closed.
+	 */
+	public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS = 60 * 1000;
+
+	/**
+	 * Default number of worker threads used for asynchronous requests.
+	 */
+	public static final int DEFAULT_ASYNC_THREADS = 4;
+
+	/**
+	 * Default number of asynchronous requests that may wait for a worker
+	 * thread before new ones are rejected.
+	 */
+	public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 128;
+
+	/**
+	 * Default time a persisted session is trusted for when its SACSID cookie
+	 * does not carry an expiry date of its own.
+	 */
+	public static final long DEFAULT_SESSION_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Default request body size in bytes above which bodies are gzipped.
+	 * Negative disables compression of request bodies, since the application
+	 * has to be able to inflate them.
+	 */
+	public static final int DEFAULT_REQUEST_COMPRESSION_THRESHOLD = -1;
+
+	/**
+	 * Default number of consecutive failures after which requests to a host
+	 * fail fast.
+	 */
+	public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+
+	/**
+	 * Default time requests to a failing host fail fast before a probe is
+	 * let through.
+	 */
+	public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 30 * 1000;
+
+	/**
+	 * Default time to wait for a connection to be established.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 20 * 1000;
+
+	/**
+	 * Default time to wait for data on an established connection.
+	 */
+	public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 30 * 1000;
+
+	/**
+	 * Default time to wait for a pooled connection to become free.
+	 */
+	public static final long DEFAULT_CONNECTION_POOL_TIMEOUT_MILLIS = 10 * 1000;
+
+	/**
+	 * Default time budget of a call. 0 means calls are only bounded by the
+	 * timeouts above.
+	 */
+	public static final long DEFAULT_REQUEST_DEADLINE_MILLIS = 0;
+
+	/**
+	 * Default time before the session expires at which it is refreshed in
+	 * the background.
+	 */
+	public static final long DEFAULT_SESSION_REFRESH_LEAD_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * Default number of TLS sessions kept for resumption.
+	 */
+	public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 16;
+
+	/**
+	 * Default time after which a cached TLS session is no longer resumed.
+	 */
+	public static final long DEFAULT_TLS_SESSION_TIMEOUT_MILLIS = 12 * 60 * 60 * 1000;
+
+	/**
+	 * Default number of requests in flight at once, or upper bound of the
+	 * adaptive concurrency limit. Same as the connections per route.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 10;
+
+	/**
+	 * Default number of requests which may wait for a slot under the
+	 * concurrency limit before further ones are rejected.
+	 */
+	public static final int DEFAULT_MAX_QUEUED_REQUESTS = 64;
+
+	private int mMaxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+
+	private int mMaxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+	private long mKeepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+
+	private long mIdleConnectionTimeoutMillis = DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS;
+
+	private int mAsyncThreads = DEFAULT_ASYNC_THREADS;
+
+	private int mAsyncQueueCapacity = DEFAULT_ASYNC_QUEUE_CAPACITY;
+
+	private long mSessionMaxAgeMillis = DEFAULT_SESSION_MAX_AGE_MILLIS;
+
+	private boolean mAcceptCompressedResponses = true;
+
+	private int mRequestCompressionThreshold = DEFAULT_REQUEST_COMPRESSION_THRESHOLD;
+
+	private RetryPolicy mRetryPolicy = new RetryPolicy();
+
+	private int mCircuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+
+	private long mCircuitBreakerOpenMillis = DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+
+	private int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+	private int mSocketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+
+	private long mConnectionPoolTimeoutMillis = DEFAULT_CONNECTION_POOL_TIMEOUT_MILLIS;
+
+	private long mRequestDeadlineMillis = DEFAULT_REQUEST_DEADLINE_MILLIS;
+
+	private long mSessionRefreshLeadMillis = DEFAULT_SESSION_REFRESH_LEAD_MILLIS;
+
+	private boolean mSingleFlightGets = false;
+
+	private int mTlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+
+	private long mTlsSessionTimeoutMillis = DEFAULT_TLS_SESSION_TIMEOUT_MILLIS;
+
+	private HttpTransport.Factory mTransportFactory = HttpTransports.APACHE_HTTP_CLIENT;
+
+	private boolean mAdaptiveConcurrency = false;
+
+	private int mMaxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+
+	private int mMaxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+
+	/**
+	 * @return Maximum number of pooled connections across all routes.
+	 */
+	public int getMaxTotalConnections() {
+		return mMaxTotalConnections;
+	}
+
+	/**
+	 * @param maxTotalConnections
+	 *            Maximum number of pooled connections across all routes.
+	 */
+	public void setMaxTotalConnections(int maxTotalConnections) {
+		mMaxTotalConnections = maxTotalConnections;
+	}
+
+	/**
+	 * @return Maximum number of pooled connections to a single route.
+	 */
+	public int getMaxConnectionsPerRoute() {
+		return mMaxConnectionsPerRoute;
+	}
+
+	/**
+	 * @param maxConnectionsPerRoute
+	 *            Maximum number of pooled connections to a single route.
+	 */
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		mMaxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	/**
+	 * @return Time in milliseconds a connection is kept alive when the server
+	 *         does not specify one.
+	 */
+	public long getKeepAliveMillis() {
+		return mKeepAliveMillis;
+	}
+
+	/**
+	 * @param keepAliveMillis
+	 *            Time in milliseconds a connection is kept alive when the
+	 *            server does not specify one.
+	 */
+	public void setKeepAliveMillis(long keepAliveMillis) {
+		mKeepAliveMillis = keepAliveMillis;
+	}
+
+	/**
+	 * @return Time in milliseconds after which idle pooled connections are
+	 *         closed.
+	 */
+	public long getIdleConnectionTimeoutMillis() {
+		return mIdleConnectionTimeoutMillis;
+	}
+
+	/**
+	 * @param idleConnectionTimeoutMillis
+	 *            Time in milliseconds after which idle pooled connections are
+	 *            closed.
+	 */
+	public void setIdleConnectionTimeoutMillis(long idleConnectionTimeoutMillis) {
+		mIdleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+	}
+
+	/**
+	 * @return Number of worker threads used for asynchronous requests.
+	 */
+	public int getAsyncThreads() {
+		return mAsyncThreads;
+	}
+
+	/**
+	 * @param asyncThreads
+	 *            Number of worker threads used for asynchronous requests.
+	 */
+	public void setAsyncThreads(int asyncThreads) {
+		mAsyncThreads = asyncThreads;
+	}
+
+	/**
+	 * @return Number of asynchronous requests that may wait for a worker
+	 *         thread before new ones are rejected.
+	 */
+	public int getAsyncQueueCapacity() {
+		return mAsyncQueueCapacity;
+	}
+
+	/**
+	 * @param asyncQueueCapacity
+	 *            Number of asynchronous requests that may wait for a worker
+	 *            thread before new ones are rejected.
+	 */
+	public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+		mAsyncQueueCapacity = asyncQueueCapacity;
+	}
+
+	/**
+	 * @return Time in milliseconds a persisted session is trusted for when
+	 *         its SACSID cookie has no expiry date.
+	 */
+	public long getSessionMaxAgeMillis() {
+		return mSessionMaxAgeMillis;
+	}
+
+	/**
+	 * @param sessionMaxAgeMillis
+	 *            Time in milliseconds a persisted session is trusted for when
+	 *            its SACSID cookie has no expiry date.
+	 */
+	public void setSessionMaxAgeMillis(long sessionMaxAgeMillis) {
+		mSessionMaxAgeMillis = sessionMaxAgeMillis;
+	}
+
+	/**
+	 * @return Whether gzip/deflate compressed responses are asked for.
+	 */
+	public boolean getAcceptCompressedResponses() {
+		return mAcceptCompressedResponses;
+	}
+
+	/**
+	 * @param acceptCompressedResponses
+	 *            Whether to ask for gzip/deflate compressed responses. They
+	 *            are decompressed transparently while being read.
+	 */
+	public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+		mAcceptCompressedResponses = acceptCompressedResponses;
+	}
+
+	/**
+	 * @return Request body size in bytes above which bodies are gzipped.
+	 *         Negative if bodies are never compressed by default.
+	 */
+	public int getRequestCompressionThreshold() {
+		return mRequestCompressionThreshold;
+	}
+
+	/**
+	 * @param requestCompressionThreshold
+	 *            Request body size in bytes above which bodies are gzipped.
+	 *            Negative to never compress by default. Only enable this if
+	 *            the application inflates Content-Encoding: gzip bodies.
+	 */
+	public void setRequestCompressionThreshold(int requestCompressionThreshold) {
+		mRequestCompressionThreshold = requestCompressionThreshold;
+	}
+
+	/**
+	 * @return Policy deciding how failed requests are retried.
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return mRetryPolicy;
+	}
+
+	/**
+	 * @param retryPolicy
+	 *            Policy deciding how failed requests are retried. Use
+	 *            RetryPolicy.noRetries() to disable retries.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		mRetryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @return Number of consecutive failures after which requests to a host
+	 *         fail fast.
+	 */
+	public int getCircuitBreakerThreshold() {
+		return mCircuitBreakerThreshold;
+	}
+
+	/**
+	 * @param circuitBreakerThreshold
+	 *            Number of consecutive failures after which requests to a
+	 *            host fail fast.
+	 */
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		mCircuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	/**
+	 * @return Time in milliseconds requests to a failing host fail fast
+	 *         before a probe is let through.
+	 */
+	public long getCircuitBreakerOpenMillis() {
+		return mCircuitBreakerOpenMillis;
+	}
+
+	/**
+	 * @param circuitBreakerOpenMillis
+	 *            Time in milliseconds requests to a failing host fail fast
+	 *            before a probe is let through.
+	 */
+	public void setCircuitBreakerOpenMillis(long circuitBreakerOpenMillis) {
+		mCircuitBreakerOpenMillis = circuitBreakerOpenMillis;
+	}
+
+	/**
+	 * @return Time in milliseconds to wait for a connection to be
+	 *         established. 0 means forever.
+	 */
+	public int getConnectTimeoutMillis() {
+		return mConnectTimeoutMillis;
+	}
+
+	/**
+	 * @param connectTimeoutMillis
+	 *            Time in milliseconds to wait for a connection to be
+	 *            established. 0 means forever.
+	 */
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		mConnectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	/**
+	 * @return Time in milliseconds to wait for data on an established
+	 *         connection. 0 means forever.
+	 */
+	public int getSocketTimeoutMillis() {
+		return mSocketTimeoutMillis;
+	}
+
+	/**
+	 * @param socketTimeoutMillis
+	 *            Time in milliseconds to wait for data on an established
+	 *            connection. 0 means forever.
+	 */
+	public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+		mSocketTimeoutMillis = socketTimeoutMillis;
+	}
+
+	/**
+	 * @return Time in milliseconds to wait for a pooled connection to become
+	 *         free. 0 means forever.
+	 */
+	public long getConnectionPoolTimeoutMillis() {
+		return mConnectionPoolTimeoutMillis;
+	}
+
+	/**
+	 * @param connectionPoolTimeoutMillis
+	 *            Time in milliseconds to wait for a pooled connection to
+	 *            become free. 0 means forever.
+	 */
+	public void setConnectionPoolTimeoutMillis(long connectionPoolTimeoutMillis) {
+		mConnectionPoolTimeoutMillis = connectionPoolTimeoutMillis;
+	}
+
+	/**
+	 * @return Time budget in milliseconds of calls which do not set one
+	 *         through RequestOptions. 0 means none.
+	 */
+	public long getRequestDeadlineMillis() {
+		return mRequestDeadlineMillis;
+	}
+
+	/**
+	 * @param requestDeadlineMillis
+	 *            Time budget in milliseconds of calls which do not set one
+	 *            through RequestOptions. 0 means none.
+	 */
+	public void setRequestDeadlineMillis(long requestDeadlineMillis) {
+		mRequestDeadlineMillis = requestDeadlineMillis;
+	}
+
+	/**
+	 * @return Time in milliseconds before the session expires at which it is
+	 *         refreshed in the background. 0 if sessions are not refreshed.
+	 */
+	public long getSessionRefreshLeadMillis() {
+		return mSessionRefreshLeadMillis;
+	}
+
+	/**
+	 * @param sessionRefreshLeadMillis
+	 *            Time in milliseconds before the session expires at which it
+	 *            is refreshed in the background, using the AuthTokenSource.
+	 *            0 to never refresh sessions proactively.
+	 */
+	public void setSessionRefreshLeadMillis(long sessionRefreshLeadMillis) {
+		mSessionRefreshLeadMillis = sessionRefreshLeadMillis;
+	}
+
+	/**
+	 * @return Whether concurrent identical GETs share one request.
+	 */
+	public boolean getSingleFlightGets() {
+		return mSingleFlightGets;
+	}
+
+	/**
+	 * @param singleFlightGets
+	 *            Whether concurrent GETs of the same URL, made as the same
+	 *            account, should share one request. Each caller still gets
+	 *            its own copy of the response, buffered in memory.
+	 */
+	public void setSingleFlightGets(boolean singleFlightGets) {
+		mSingleFlightGets = singleFlightGets;
+	}
+
+	/**
+	 * @return Number of TLS sessions kept for resumption.
+	 */
+	public int getTlsSessionCacheSize() {
+		return mTlsSessionCacheSize;
+	}
+
+	/**
+	 * @param tlsSessionCacheSize
+	 *            Number of TLS sessions kept, so that reconnects can skip the
+	 *            full handshake.
+	 */
+	public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+		mTlsSessionCacheSize = tlsSessionCacheSize;
+	}
+
+	/**
+	 * @return Time in milliseconds after which a cached TLS session is no
+	 *         longer resumed.
+	 */
+	public long getTlsSessionTimeoutMillis() {
+		return mTlsSessionTimeoutMillis;
+	}
+
+	/**
+	 * @param tlsSessionTimeoutMillis
+	 *            Time in milliseconds after which a cached TLS session is no
+	 *            longer resumed.
+	 */
+	public void setTlsSessionTimeoutMillis(long tlsSessionTimeoutMillis) {
+		mTlsSessionTimeoutMillis = tlsSessionTimeoutMillis;
+	}
+
+	/**
+	 * @return Factory of the transport requests are sent with.
+	 */
+	public HttpTransport.Factory getTransportFactory() {
+		return mTransportFactory;
+	}
+
+	/**
+	 * @param transportFactory
+	 *            Factory of the transport requests are sent with, ex: one of
+	 *            HttpTransports, which all speak HTTP/1.1 only. The
+	 *            connection pool, keep alive and TLS settings above only
+	 *            apply to the transports which pool connections themselves.
+	 */
+	public void setTransportFactory(HttpTransport.Factory transportFactory) {
+		mTransportFactory = transportFactory;
+	}
+
+	/**
+	 * @return Whether the number of requests in flight adapts to how the
+	 *         server copes.
+	 */
+	public boolean getAdaptiveConcurrency() {
+		return mAdaptiveConcurrency;
+	}
+
+	/**
+	 * @param adaptiveConcurrency
+	 *            Whether to limit the number of requests in flight, raising
+	 *            the limit while responses come back fast and lowering it
+	 *            when latency grows or the server answers with errors, so
+	 *            that bursts of requests do not make App Engine spin up
+	 *            instances or run into quota errors. Otherwise the limit
+	 *            stays at getMaxConcurrentRequests().
+	 */
+	public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+		mAdaptiveConcurrency = adaptiveConcurrency;
+	}
+
+	/**
+	 * @return Number of requests in flight at once, or upper bound of the
+	 *         adaptive concurrency limit.
+	 */
+	public int getMaxConcurrentRequests() {
+		return mMaxConcurrentRequests;
+	}
+
+	/**
+	 * @param maxConcurrentRequests
+	 *            Number of requests in flight at once, or upper bound of the
+	 *            adaptive concurrency limit. Requests over the limit wait for
+	 *            a slot, in the order of their RequestPriority, for at most
+	 *            the connection pool timeout. There is no point in it being
+	 *            above the connections per route.
+	 */
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		mMaxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * @return Number of requests which may wait for a slot under the
+	 *         concurrency limit.
+	 */
+	public int getMaxQueuedRequests() {
+		return mMaxQueuedRequests;
+	}
+
+	/**
+	 * @param maxQueuedRequests
+	 *            Number of requests which may wait for a slot under the
+	 *            concurrency limit. Further requests fail right away with a
+	 *            RequestRejectedException rather than pile up.
+	 */
+	public void setMaxQueuedRequests(int maxQueuedRequests) {
+		mMaxQueuedRequests = maxQueuedRequests;
+	}
+
+}
@@ -0,0 +1,112 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging used by the client core, so that the core does not depend on
+ * android.util.Log and runs on a plain JVM. Messages go to java.util.logging
+ * unless another Sink is set; the Android activities set an AndroidLogSink.
+ * 
+ * @author Gopal Sharma
+ */
+public final class AppEngineLog {
+
+	public static final int DEBUG = 3;
+
+	public static final int INFO = 4;
+
+	public static final int WARN = 5;
+
+	public static final int ERROR = 6;
+
+	/**
+	 * Destination of log messages.
+	 */
+	public interface Sink {
+
+		/**
+		 * @param level
+		 *            One of the level constants of AppEngineLog.
+		 * @param tag
+		 *            Tag identifying the source of the message.
+		 * @param message
+		 *            Message to log.
+		 * @param throwable
+		 *            Exception to log with the message. May be null.
+		 */
+		void log(int level, String tag, String message, Throwable throwable);
+	}
+
+	private static volatile Sink sSink = new JavaLoggingSink();
+
+	private AppEngineLog() {
+	}
+
+	/**
+	 * @param sink
+	 *            Destination of log messages from now on.
+	 */
+	public static void setSink(Sink sink) {
+		sSink = sink;
+	}
+
+	static void d(String tag, String message) {
+		sSink.log(DEBUG, tag, message, null);
+	}
+
+	static void i(String tag, String message) {
+		sSink.log(INFO, tag, message, null);
+	}
+
+	static void w(String tag, String message) {
+		sSink.log(WARN, tag, message, null);
+	}
+
+	static void w(String tag, String message, Throwable throwable) {
+		sSink.log(WARN, tag, message, throwable);
+	}
+
+	static void e(String tag, String message) {
+		sSink.log(ERROR, tag, message, null);
+	}
+
+	static void e(String tag, String message, Throwable throwable) {
+		sSink.log(ERROR, tag, message, throwable);
+	}
+
+	/**
+	 * Sink which logs to java.util.logging, using the tag as logger name.
+	 */
+	private static class JavaLoggingSink implements Sink {
+
+		/**
+		 * @see com.gopalkri.appengineandroid.AppEngineLog.Sink#log(int,
+		 *      java.lang.String, java.lang.String, java.lang.Throwable)
+		 */
+		public void log(int level, String tag, String message,
+				Throwable throwable) {
+			Level julLevel;
+			switch (level) {
+			case DEBUG:
+				julLevel = Level.FINE;
+				break;
+			case INFO:
+				julLevel = Level.INFO;
+				break;
+			case WARN:
+				julLevel = Level.WARNING;
+				break;
+			default:
+				julLevel = Level.SEVERE;
+				break;
+			}
+			Logger.getLogger(tag).log(julLevel, message, throwable);
+		}
+	}
+}
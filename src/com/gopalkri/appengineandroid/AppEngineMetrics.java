@@ -0,0 +1,285 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measurements of how an AppEngine instance performs: latency histograms by
+ * path, status code counts, bytes sent and received, connection reuse, time
+ * spent waiting for pooled connections, the duration of each login phase and
+ * the concurrency limit.
+ * Recording is lock free and, once a path has been seen, does not allocate.
+ * 
+ * Use snapshot() to read the measurements, reset() to start over, and
+ * addListener to be told about every measurement as it is recorded.
+ * 
+ * @author Gopal Sharma
+ */
+public class AppEngineMetrics {
+
+	/**
+	 * Login phase: fetching an auth token from the AccountManager.
+	 */
+	public static final String PHASE_TOKEN_FETCH = "token_fetch";
+
+	/**
+	 * Login phase: invalidating an auth token App Engine rejected.
+	 */
+	public static final String PHASE_TOKEN_INVALIDATE = "token_invalidate";
+
+	/**
+	 * Login phase: exchanging the auth token for cookies at _ah/login.
+	 */
+	public static final String PHASE_LOGIN = "login";
+
+	/**
+	 * Login phase: resolving and connecting to the application ahead of the
+	 * first request. Runs in parallel with the auth token fetch.
+	 */
+	public static final String PHASE_WARM_UP = "warm_up";
+
+	/**
+	 * Maximum number of distinct paths tracked. Requests to further paths are
+	 * recorded under OTHER_PATHS, so paths containing ids do not grow the
+	 * map without bound.
+	 */
+	private static final int MAX_PATHS = 128;
+
+	/**
+	 * Key requests to untracked paths are recorded under.
+	 */
+	public static final String OTHER_PATHS = "(other)";
+
+	private final ConcurrentHashMap<String, LatencyHistogram> mPathLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final ConcurrentHashMap<String, LatencyHistogram> mLoginPhases = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final LatencyHistogram mPoolWait = new LatencyHistogram();
+
+	private final AtomicLongArray mStatusCounts = new AtomicLongArray(600);
+
+	private final AtomicLong mFailures = new AtomicLong();
+
+	private final AtomicLong mRequestBytes = new AtomicLong();
+
+	private final AtomicLong mConnectionsReused = new AtomicLong();
+
+	private final AtomicLong mConnectionsOpened = new AtomicLong();
+
+	private final AtomicLong mSingleFlightShared = new AtomicLong();
+
+	private final AtomicLong mRequestsShed = new AtomicLong();
+
+	/**
+	 * Current concurrency limit.
+	 */
+	private volatile int mConcurrencyLimit = 0;
+
+	/**
+	 * Counts response bytes as they are read.
+	 */
+	private final CompressionStats mCompressionStats;
+
+	/**
+	 * Response wire bytes at the last reset.
+	 */
+	private volatile long mResponseBytesAtReset = 0;
+
+	private final CopyOnWriteArrayList<MetricsListener> mListeners = new CopyOnWriteArrayList<MetricsListener>();
+
+	AppEngineMetrics(CompressionStats compressionStats) {
+		mCompressionStats = compressionStats;
+		for (String phase : new String[] { PHASE_TOKEN_FETCH,
+				PHASE_TOKEN_INVALIDATE, PHASE_LOGIN, PHASE_WARM_UP }) {
+			mLoginPhases.put(phase, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            Listener to tell about every measurement.
+	 */
+	public void addListener(MetricsListener listener) {
+		mListeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            Listener to stop telling about measurements.
+	 */
+	public void removeListener(MetricsListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Records a completed request.
+	 * 
+	 * @param path
+	 *            Path of the request, without query.
+	 * @param statusCode
+	 *            Status code of the final response, or -1 if the request
+	 *            failed.
+	 * @param latencyNanos
+	 *            Time the call took.
+	 */
+	void recordRequest(String path, int statusCode, long latencyNanos) {
+		LatencyHistogram histogram = mPathLatencies.get(path);
+		if (histogram == null) {
+			histogram = createPathHistogram(path);
+		}
+		histogram.record(latencyNanos);
+		if (statusCode >= 0 && statusCode < mStatusCounts.length()) {
+			mStatusCounts.incrementAndGet(statusCode);
+		} else {
+			mFailures.incrementAndGet();
+		}
+		// Checked first, as iterating allocates even when there is nothing to
+		// iterate over.
+		if (!mListeners.isEmpty()) {
+			for (MetricsListener listener : mListeners) {
+				listener.onRequest(path, statusCode, latencyNanos);
+			}
+		}
+	}
+
+	/**
+	 * @return Histogram to record requests to a path which has not been seen
+	 *         yet in. Once there are MAX_PATHS paths, that is the OTHER_PATHS
+	 *         histogram, which is only created the first time.
+	 */
+	private LatencyHistogram createPathHistogram(String path) {
+		if (mPathLatencies.size() >= MAX_PATHS) {
+			LatencyHistogram other = mPathLatencies.get(OTHER_PATHS);
+			if (other != null) {
+				return other;
+			}
+			path = OTHER_PATHS;
+		}
+		LatencyHistogram histogram = new LatencyHistogram();
+		LatencyHistogram existing = mPathLatencies.putIfAbsent(path, histogram);
+		return existing == null ? histogram : existing;
+	}
+
+	/**
+	 * Records the duration of a login phase.
+	 * 
+	 * @param phase
+	 *            One of the PHASE_ constants.
+	 * @param durationNanos
+	 *            Time the phase took.
+	 */
+	void recordLoginPhase(String phase, long durationNanos) {
+		mLoginPhases.get(phase).record(durationNanos);
+		if (!mListeners.isEmpty()) {
+			for (MetricsListener listener : mListeners) {
+				listener.onLoginPhase(phase, durationNanos);
+			}
+		}
+	}
+
+	/**
+	 * Records the size of a request body sent.
+	 */
+	void recordRequestBytes(long bytes) {
+		mRequestBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records that a connection was leased from the pool.
+	 * 
+	 * @param waitNanos
+	 *            Time spent waiting for it.
+	 * @param reused
+	 *            Whether it was already open, as opposed to having to be
+	 *            opened.
+	 */
+	void recordConnectionLease(long waitNanos, boolean reused) {
+		mPoolWait.record(waitNanos);
+		if (reused) {
+			mConnectionsReused.incrementAndGet();
+		} else {
+			mConnectionsOpened.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records that a GET was answered with the response of an identical one
+	 * in flight, saving a request.
+	 */
+	void recordSingleFlightShared() {
+		mSingleFlightShared.incrementAndGet();
+	}
+
+	/**
+	 * Records a change of the concurrency limit.
+	 */
+	void recordConcurrencyLimit(int limit) {
+		mConcurrencyLimit = limit;
+	}
+
+	/**
+	 * Records that a request was rejected rather than wait for a slot under
+	 * the concurrency limit.
+	 */
+	void recordRequestShed() {
+		mRequestsShed.incrementAndGet();
+	}
+
+	/**
+	 * @return A copy of the current measurements.
+	 */
+	public MetricsSnapshot snapshot() {
+		Map<String, LatencyHistogram.Snapshot> paths = new HashMap<String, LatencyHistogram.Snapshot>();
+		for (Map.Entry<String, LatencyHistogram> entry : mPathLatencies
+				.entrySet()) {
+			paths.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		Map<String, LatencyHistogram.Snapshot> phases = new HashMap<String, LatencyHistogram.Snapshot>();
+		for (Map.Entry<String, LatencyHistogram> entry : mLoginPhases
+				.entrySet()) {
+			phases.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		long[] statusCounts = new long[mStatusCounts.length()];
+		for (int i = 0; i < statusCounts.length; i++) {
+			statusCounts[i] = mStatusCounts.get(i);
+		}
+		return new MetricsSnapshot(Collections.unmodifiableMap(paths),
+				Collections.unmodifiableMap(phases), mPoolWait.snapshot(),
+				statusCounts, mFailures.get(), mRequestBytes.get(),
+				mCompressionStats.getResponseWireBytes()
+						- mResponseBytesAtReset, mConnectionsReused.get(),
+				mConnectionsOpened.get(), mSingleFlightShared.get(),
+				mConcurrencyLimit, mRequestsShed.get());
+	}
+
+	/**
+	 * Sets all measurements back to zero.
+	 */
+	public void reset() {
+		mPathLatencies.clear();
+		for (LatencyHistogram histogram : mLoginPhases.values()) {
+			histogram.reset();
+		}
+		mPoolWait.reset();
+		for (int i = 0; i < mStatusCounts.length(); i++) {
+			mStatusCounts.set(i, 0);
+		}
+		mFailures.set(0);
+		mRequestBytes.set(0);
+		mResponseBytesAtReset = mCompressionStats.getResponseWireBytes();
+		mConnectionsReused.set(0);
+		mConnectionsOpened.set(0);
+		mSingleFlightShared.set(0);
+		mRequestsShed.set(0);
+	}
+}
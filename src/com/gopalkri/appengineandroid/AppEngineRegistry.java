@@ -0,0 +1,238 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of AppEngine instances, one per application and account, so that
+ * several applications and accounts can be used at the same time, each with
+ * its own connection pool and session. Lookups do not lock; creating and
+ * shutting down instances is serialized.
+ * 
+ * Only instances which have logged in or resumed a session are registered,
+ * as registering one replaces and shuts down the instance registered before.
+ * 
+ * @author Gopal Sharma
+ */
+public final class AppEngineRegistry {
+
+	/**
+	 * Instances by application url (with a trailing slash) and account name
+	 * ("" for none).
+	 */
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, AppEngine>> sInstances = new ConcurrentHashMap<String, ConcurrentHashMap<String, AppEngine>>();
+
+	/**
+	 * Instances handed out by getOrCreate which have not logged in or
+	 * resumed a session yet, by application url (with a trailing slash) and
+	 * account name. Guarded by sLock.
+	 */
+	private static final HashMap<String, AppEngine> sPending = new HashMap<String, AppEngine>();
+
+	/**
+	 * Serializes changes to sInstances and sPending.
+	 */
+	private static final Object sLock = new Object();
+
+	private AppEngineRegistry() {
+	}
+
+	/**
+	 * Looks up the instance for an application and account. Does not lock.
+	 * 
+	 * @param applicationUrl
+	 *            App engine application's url. Ex:
+	 *            https://gopalkri-testing.appspot.com
+	 * @param accountName
+	 *            Name of the account. May be null.
+	 * @return The instance, or null if there is none or it is not logged in.
+	 */
+	public static AppEngine get(String applicationUrl, String accountName) {
+		AppEngine instance = peek(applicationUrl, accountName);
+		return instance != null && instance.isReady() ? instance : null;
+	}
+
+/**
+	 * Looks up the instance for an application and account, creating it if
+	 * there is none. A new instance still has to log in or resume a session,
+	 * and is only registered once it has; until then, callers asking for the
+	 * same application and account get the same new instance.
+	 * 
+	 * @param applicationUrl
+	 *            App engine application's url. Ex:
+	 *            https://gopalkri-testing.appspot.com
+	 * @param config
+	 *            Configuration used if the instance has to be created.
+	 * @param accountName
+	 *            Name of the account. May be null.
+	 * @return The registered instance.
+	 */
+	public static AppEngine getOrCreate(String applicationUrl,
+			AppEngineConfig config, String accountName) {
+		AppEngine instance = peek(applicationUrl, accountName);
+		if (instance != null) {
+			return instance;
+		}
+		synchronized (sLock) {
+			instance = peek(applicationUrl, accountName);
+			if (instance != null) {
+				return instance;
+			}
+			String key = pendingKey(applicationUrl, accountName);
+			instance = sPending.get(key);
+			if (instance == null) {
+				instance = AppEngine.newInstance(applicationUrl, config,
+						accountName);
+				sPending.put(key, instance);
+			}
+			return instance;
+		}
+	}
+
+	/**
+	 * Shuts down and removes the instance for an application and account,
+	 * closing its connections.
+	 * 
+	 * @param applicationUrl
+	 *            App engine application's url.
+	 * @param accountName
+	 *            Name of the account. May be null.
+	 */
+	public static void shutdown(String applicationUrl, String accountName) {
+		AppEngine instance = peek(applicationUrl, accountName);
+		if (instance != null) {
+			instance.shutdown();
+		}
+	}
+
+	/**
+	 * Shuts down and removes all registered instances.
+	 */
+	public static void shutdownAll() {
+		List<AppEngine> instances = new ArrayList<AppEngine>();
+		synchronized (sLock) {
+			for (ConcurrentHashMap<String, AppEngine> accounts : sInstances
+					.values()) {
+				instances.addAll(accounts.values());
+			}
+		}
+		for (AppEngine instance : instances) {
+			instance.shutdown();
+		}
+	}
+
+	/**
+	 * @return The registered instance, ready or not, or null.
+	 */
+	private static AppEngine peek(String applicationUrl, String accountName) {
+		ConcurrentHashMap<String, AppEngine> accounts = sInstances
+				.get(normalize(applicationUrl));
+		if (accounts == null) {
+			return null;
+		}
+		return accounts.get(accountName == null ? "" : accountName);
+	}
+
+	/**
+	 * Registers instance, shutting down the instance it replaces, if any.
+	 * Only register instances which have logged in or resumed a session.
+	 */
+	static void register(AppEngine instance) {
+		AppEngine previous;
+		synchronized (sLock) {
+			sPending.remove(pendingKey(instance.getApplicationUrl(), instance
+					.getAccountName()));
+			previous = put(instance);
+		}
+		if (previous != null && previous != instance) {
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * Registers instance once it has logged in or resumed a session, if it
+	 * was handed out by getOrCreate. If a ready instance was registered for
+	 * the same application and account meanwhile, ex: by
+	 * AppEngineAuthenticator, that one is kept, and instance is left to its
+	 * callers.
+	 */
+	static void onReady(AppEngine instance) {
+		AppEngine previous;
+		synchronized (sLock) {
+			String key = pendingKey(instance.getApplicationUrl(), instance
+					.getAccountName());
+			if (sPending.get(key) != instance) {
+				return;
+			}
+			sPending.remove(key);
+			previous = peek(instance.getApplicationUrl(), instance
+					.getAccountName());
+			if (previous != null && previous.isReady()) {
+				return;
+			}
+			put(instance);
+		}
+		if (previous != null) {
+			// Its session is gone, so it is of no use to anyone.
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * Adds instance to sInstances. Must hold sLock.
+	 * 
+	 * @return The instance it replaces, or null.
+	 */
+	private static AppEngine put(AppEngine instance) {
+		String url = normalize(instance.getApplicationUrl());
+		ConcurrentHashMap<String, AppEngine> accounts = sInstances.get(url);
+		if (accounts == null) {
+			accounts = new ConcurrentHashMap<String, AppEngine>();
+			sInstances.put(url, accounts);
+		}
+		return accounts.put(key(instance), instance);
+	}
+
+	/**
+	 * Removes instance, if it is registered. Called when it shuts down.
+	 */
+	static void unregister(AppEngine instance) {
+		synchronized (sLock) {
+			String key = pendingKey(instance.getApplicationUrl(), instance
+					.getAccountName());
+			if (sPending.get(key) == instance) {
+				sPending.remove(key);
+			}
+			String url = normalize(instance.getApplicationUrl());
+			ConcurrentHashMap<String, AppEngine> accounts = sInstances
+					.get(url);
+			if (accounts != null && accounts.remove(key(instance), instance)
+					&& accounts.isEmpty()) {
+				sInstances.remove(url);
+			}
+		}
+	}
+
+	private static String key(AppEngine instance) {
+		return instance.getAccountName() == null ? "" : instance
+				.getAccountName();
+	}
+
+	private static String pendingKey(String applicationUrl,
+			String accountName) {
+		return normalize(applicationUrl) + " "
+				+ (accountName == null ? "" : accountName);
+	}
+
+	private static String normalize(String applicationUrl) {
+		return applicationUrl.endsWith("/") ? applicationUrl
+				: applicationUrl + "/";
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Future for an asynchronous AppEngine request. Cancelling it aborts the
+ * underlying HTTP request, and on completion the result is handed to an
+ * AppEngineCallback on the chosen executor.
+ * 
+ * @author Gopal Sharma
+ */
+class AsyncRequest<T> extends FutureTask<T> {
+
+	/**
+	 * Request being performed. Aborted on cancel. Null if the work is made up
+	 * of several requests, in which case a subclass stops them.
+	 */
+	private final HttpUriRequest mRequest;
+
+	/**
+	 * Callback to notify on completion. May be null.
+	 */
+	private final AppEngineCallback<T> mCallback;
+
+	/**
+	 * Executor on which mCallback is run.
+	 */
+	private final Executor mCallbackExecutor;
+
+	/**
+	 * Priority of the request, which orders it in the asynchronous worker
+	 * pool's queue.
+	 */
+	private final RequestPriority mPriority;
+
+	/**
+	 * Same as AsyncRequest(HttpUriRequest, Callable, AppEngineCallback,
+	 * Executor, RequestPriority), with normal priority.
+	 */
+	AsyncRequest(HttpUriRequest request, Callable<T> work,
+			AppEngineCallback<T> callback, Executor callbackExecutor) {
+		this(request, work, callback, callbackExecutor,
+				RequestPriority.NORMAL);
+	}
+
+	/**
+	 * @param request
+	 *            Request being performed. May be null.
+	 * @param work
+	 *            Performs the request and handles its response.
+	 * @param callback
+	 *            Callback to notify on completion. May be null.
+	 * @param callbackExecutor
+	 *            Executor on which callback is run.
+	 * @param priority
+	 *            Priority of the request.
+	 */
+	AsyncRequest(HttpUriRequest request, Callable<T> work,
+			AppEngineCallback<T> callback, Executor callbackExecutor,
+			RequestPriority priority) {
+		super(work);
+		mRequest = request;
+		mCallback = callback;
+		mCallbackExecutor = callbackExecutor;
+		mPriority = priority;
+	}
+
+	/**
+	 * @return Priority of the request.
+	 */
+	RequestPriority getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * Aborts the underlying request as well as cancelling this future.
+	 * 
+	 * @see java.util.concurrent.FutureTask#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		if (cancelled && mRequest != null) {
+			mRequest.abort();
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Completes this future with an exception without running it. Used when
+	 * the request could not be scheduled.
+	 * 
+	 * @param e
+	 *            Reason for the failure.
+	 */
+	void fail(AppEngineException e) {
+		setException(e);
+	}
+
+	/**
+	 * @see java.util.concurrent.FutureTask#done()
+	 */
+	@Override
+	protected void done() {
+		if (mCallback == null || isCancelled()) {
+			return;
+		}
+		mCallbackExecutor.execute(new Runnable() {
+			public void run() {
+				T result;
+				try {
+					result = get();
+				} catch (CancellationException e) {
+					return;
+				} catch (InterruptedException e) {
+					mCallback.onFailure(new HttpRequestException(e));
+					return;
+				} catch (ExecutionException e) {
+					mCallback.onFailure(toAppEngineException(e.getCause()));
+					return;
+				}
+				mCallback.onSuccess(result);
+			}
+		});
+	}
+
+	/**
+	 * Converts the cause of a failed request into an AppEngineException.
+	 * 
+	 * @param cause
+	 *            Cause of the failure.
+	 * @return cause if it already is an AppEngineException, otherwise an
+	 *         HttpRequestException wrapping it.
+	 */
+	static AppEngineException toAppEngineException(Throwable cause) {
+		if (cause instanceof AppEngineException) {
+			return (AppEngineException) cause;
+		}
+		if (cause instanceof Exception) {
+			return new HttpRequestException((Exception) cause);
+		}
+		return new HttpRequestException(String.valueOf(cause));
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Supplies auth tokens for the "ah" service, used by AppEngine to log in and
+ * to transparently log in again when its session is rejected. Methods may
+ * block and are never called on the UI thread by AppEngine.
+ * 
+ * @author Gopal Sharma
+ */
+public interface AuthTokenSource {
+
+	/**
+	 * Gets an auth token. May return a cached token.
+	 * 
+	 * @return Auth token.
+	 * @throws AccountException
+	 *             If no token could be obtained.
+	 */
+	String getAuthToken() throws AccountException;
+
+	/**
+	 * Tells the source that authToken was rejected, so that the next call to
+	 * getAuthToken returns a fresh one.
+	 * 
+	 * @param authToken
+	 *            Rejected auth token.
+	 */
+	void invalidateAuthToken(String authToken);
+
+}
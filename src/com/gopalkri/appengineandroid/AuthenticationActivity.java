@@ -35,21 +35,38 @@ public class AuthenticationActivity extends Activity {
 	 */
 	public static final String ACCOUNT = "Account";
 
+	/**
+	 * Key for optional intent extra for which the value is the AppEngineConfig
+	 * to create the AppEngine instance with.
+	 */
+	public static final String CONFIG = "Config";
+
 	/**
 	 * Tag for logging.
 	 */
 	private static final String TAG = "AppEngineAndroid";
 
+	static {
+		// The client core logs through AppEngineLog; send it to logcat.
+		AppEngineLog.setSink(new AndroidLogSink());
+	}
+
 	/**
 	 * Application Url. Ex: https://gopalkri-testing.appspot.com
 	 */
 	private String mApplicationUrl;
 
 	/**
-	 * AppEngine instance to use.
+	 * AppEngine instance to use. Only published once it has logged in.
 	 */
 	private AppEngine mAEInstance;
 
+	/**
+	 * Whether the login is over: mAEInstance was published, or shut down
+	 * after the login failed.
+	 */
+	private boolean mDone = false;
+
 	/**
 	 * Account Manager object to use for getting auth token.
 	 */
@@ -60,6 +77,11 @@ public class AuthenticationActivity extends Activity {
 	 */
 	private Account mAccount;
 
+	/**
+	 * System.nanoTime() when the auth token was asked for.
+	 */
+	private long mTokenRequestedAt;
+
 	/**
 	 * @see android.app.Activity#onCreate(android.os.Bundle)
 	 */
@@ -71,13 +93,38 @@ public class AuthenticationActivity extends Activity {
 		Bundle extras = getIntent().getExtras();
 		mApplicationUrl = (String) extras.get(APPLICATION_URL);
 		mAccount = (Account) extras.get(ACCOUNT);
-		mAEInstance = AppEngine.createInstance(mApplicationUrl);
+		AppEngineConfig config = (AppEngineConfig) extras.get(CONFIG);
+		if (config == null) {
+			config = new AppEngineConfig();
+		}
+		// Not published until it has logged in, so that a failed login
+		// leaves the instance already set up for the account, if any, alone.
+		mAEInstance = AppEngine.newInstance(mApplicationUrl, config,
+				mAccount.name);
+		mAEInstance.warmUp();
+		mAEInstance.setSessionStore(new FileSessionStore(getFilesDir(),
+				mApplicationUrl, mAccount.name));
 		mAccountManager = AccountManager.get(this);
+		mAEInstance.setAuthTokenSource(new AccountManagerAuthTokenSource(
+				mAccountManager, mAccount));
 
 		TextView status = (TextView) findViewById(R.id.appengine_status);
 		status.setText("Connecting to: " + mApplicationUrl + "...");
 	}
 
+	/**
+	 * @see android.app.Activity#onDestroy()
+	 */
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (!mDone) {
+			// Left before the login was over.
+			mDone = true;
+			mAEInstance.shutdown();
+		}
+	}
+
 	/**
 	 * @see android.app.Activity#onResume()
 	 */
@@ -85,6 +132,7 @@ public class AuthenticationActivity extends Activity {
 	protected void onResume() {
 		super.onResume();
 		Log.d(TAG, "Fetching auth token for the first time.");
+		mTokenRequestedAt = System.nanoTime();
 		// This needs to be in onResume, read comments below to understand why.
 		mAccountManager.getAuthToken(mAccount, "ah", false,
 				new GetAuthTokenCallback(), null);
@@ -93,10 +141,11 @@ public class AuthenticationActivity extends Activity {
 	// Some crazy stuff going on here. Needs to be explained.
 	// There is a problem with authTokens - they sometimes expire. An expired
 	// token cannot be used. The way to figure out if a token has expired is by
-	// actually using it and examining the return code. This is hard to
-	// implement so for the moment, I'm using the easy solution of guaranteeing
-	// a fresh token every time. To do this, always discard the first authToken
-	// returned and use the next one.
+	// actually using it and examining the return code. So the first token
+	// returned is used right away, and only if App Engine rejects it is it
+	// invalidated and a fresh one fetched (see AppEngine.authenticate). This
+	// saves an AccountManager round trip on every login where the cached
+	// token is still good.
 	// There is an added complication in that sometimes the user has to approve
 	// access to the account. I believe this only happens the first time, but
 	// I'm not sure. If the user needs to grant access, an intent has to be
@@ -131,53 +180,24 @@ public class AuthenticationActivity extends Activity {
 	}
 
 	/**
-	 * Start GetAuthTokenTask.
+	 * Start GetCookiesTask with the auth token from bundle.
 	 * 
 	 * @param bundle
 	 *            Bundle returned by AccountManager - should contain extra for
 	 *            auth token.
 	 */
 	private void onGetAuthToken(Bundle bundle) {
-		new GetAuthTokenTask().execute(bundle
-				.getString(AccountManager.KEY_AUTHTOKEN));
-	}
-
-	private class GetAuthTokenTask extends AsyncTask<String, Void, String> {
-
-		/**
-		 * @see android.os.AsyncTask#doInBackground(Params[])
-		 */
-		@Override
-		protected String doInBackground(String... params) {
-			mAccountManager.invalidateAuthToken(mAccount.type, params[0]);
-			return getAuthToken();
-		}
-
-		private String getAuthToken() {
-			try {
-				return mAccountManager.getAuthToken(mAccount, "ah", false,
-						null, null).getResult().getString(
-						AccountManager.KEY_AUTHTOKEN);
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			}
-		}
-
-		/**
-		 * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
-		 */
-		@Override
-		protected void onPostExecute(String authToken) {
-			if (authToken == null) {
-				Log.e(TAG, "Failed to retrieve auth token!");
-				setResult(AppEngineActivity.RESULT_FAILED);
-				finish();
-				return;
-			}
-			new GetCookiesTask().execute(authToken);
+		String authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
+		mAEInstance.getMetrics().recordLoginPhase(
+				AppEngineMetrics.PHASE_TOKEN_FETCH,
+				System.nanoTime() - mTokenRequestedAt);
+		if (authToken == null) {
+			Log.e(TAG, "Failed to retrieve auth token!");
+			setResult(AppEngineActivity.RESULT_FAILED);
+			finish();
+			return;
 		}
-
+		new GetCookiesTask().execute(authToken);
 	}
 
 	private class GetCookiesTask extends AsyncTask<String, Void, Boolean> {
@@ -188,9 +208,9 @@ public class AuthenticationActivity extends Activity {
 		@Override
 		protected Boolean doInBackground(String... params) {
 			try {
-				mAEInstance.fetchCookies(params[0]);
+				mAEInstance.authenticate(params[0]);
 				return true;
-			} catch (CookieException e) {
+			} catch (AppEngineException e) {
 				e.printStackTrace();
 				return false;
 			}
@@ -202,13 +222,20 @@ public class AuthenticationActivity extends Activity {
 		@Override
 		protected void onPostExecute(Boolean result) {
 			super.onPostExecute(result);
+			if (mDone) {
+				// The activity was destroyed, and the instance shut down.
+				return;
+			}
 			if (result) {
+				AppEngine.publish(mAEInstance);
 				Log.i(TAG, "AppEngine instance is ready to go.");
 				setResult(AppEngineActivity.RESULT_OK);
 			} else {
+				mAEInstance.shutdown();
 				Log.e(TAG, "Failed to fetch cookies!");
 				setResult(AppEngineActivity.RESULT_FAILED);
 			}
+			mDone = true;
 			finish();
 		}
 
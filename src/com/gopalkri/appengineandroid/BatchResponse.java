@@ -0,0 +1,61 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Response to a single request sent as part of a batch by RequestBatcher.
+ * 
+ * @author Gopal Sharma
+ */
+public class BatchResponse {
+
+	private final int mStatusCode;
+
+	private final String mContentType;
+
+	private final byte[] mBody;
+
+	BatchResponse(int statusCode, String contentType, byte[] body) {
+		mStatusCode = statusCode;
+		mContentType = contentType;
+		mBody = body;
+	}
+
+	/**
+	 * @return HTTP status code the request was answered with.
+	 */
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	/**
+	 * @return Content-Type of the body.
+	 */
+	public String getContentType() {
+		return mContentType;
+	}
+
+	/**
+	 * @return Raw body of the response.
+	 */
+	public byte[] getBody() {
+		return mBody;
+	}
+
+	/**
+	 * @return Body of the response decoded as UTF-8.
+	 */
+	public String getBodyAsString() {
+		try {
+			return new String(mBody, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported.
+			throw new RuntimeException(e);
+		}
+	}
+}
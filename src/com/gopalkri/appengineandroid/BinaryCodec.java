@@ -0,0 +1,332 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary codec for high volume endpoints, using the MessagePack
+ * format so that servers can use any MessagePack library to read and write
+ * it. Takes the same values as JsonCodec, plus byte[], which is sent as is
+ * rather than base64 encoded. Map keys decode to whatever type they were
+ * encoded as, usually String.
+ * 
+ * Extension types are not supported.
+ * 
+ * @author Gopal Sharma
+ */
+public class BinaryCodec implements Codec<Object> {
+
+	/**
+	 * Shared instance. BinaryCodec has no state.
+	 */
+	public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+	/**
+	 * Maximum nesting of arrays and maps, so that a hostile body cannot
+	 * overflow the stack.
+	 */
+	private static final int MAX_DEPTH = 512;
+
+	/**
+	 * Largest string, byte array or collection size allocated up front, so
+	 * that a bogus length cannot make us allocate a huge buffer.
+	 */
+	private static final int MAX_PRESIZE = 64 * 1024;
+
+	/**
+	 * @see com.gopalkri.appengineandroid.Codec#getContentType()
+	 */
+	public String getContentType() {
+		return "application/x-msgpack";
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.Codec#decode(java.io.InputStream,
+	 *      java.lang.String)
+	 */
+	public Object decode(InputStream in, String charset) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in,
+				BufferPool.BUFFER_SIZE));
+		return read(data, 0);
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.Codec#encode(java.lang.Object,
+	 *      java.io.OutputStream)
+	 */
+	public void encode(Object value, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+				out, BufferPool.BUFFER_SIZE));
+		write(value, data);
+		data.flush();
+	}
+
+	private static Object read(DataInputStream in, int depth)
+			throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("Too deeply nested");
+		}
+		int type = in.readUnsignedByte();
+		if (type <= 0x7f) {
+			return Long.valueOf(type);
+		} else if (type <= 0x8f) {
+			return readMap(in, type & 0x0f, depth);
+		} else if (type <= 0x9f) {
+			return readArray(in, type & 0x0f, depth);
+		} else if (type <= 0xbf) {
+			return readString(in, type & 0x1f);
+		} else if (type >= 0xe0) {
+			return Long.valueOf((byte) type);
+		}
+		switch (type) {
+		case 0xc0:
+			return null;
+		case 0xc2:
+			return Boolean.FALSE;
+		case 0xc3:
+			return Boolean.TRUE;
+		case 0xc4:
+			return readBytes(in, in.readUnsignedByte());
+		case 0xc5:
+			return readBytes(in, in.readUnsignedShort());
+		case 0xc6:
+			return readBytes(in, readLength(in));
+		case 0xca:
+			return Double.valueOf(in.readFloat());
+		case 0xcb:
+			return Double.valueOf(in.readDouble());
+		case 0xcc:
+			return Long.valueOf(in.readUnsignedByte());
+		case 0xcd:
+			return Long.valueOf(in.readUnsignedShort());
+		case 0xce:
+			return Long.valueOf(in.readInt() & 0xffffffffL);
+		case 0xcf:
+			long value = in.readLong();
+			if (value < 0) {
+				throw new IOException("Integer too large: uint64 " + value);
+			}
+			return Long.valueOf(value);
+		case 0xd0:
+			return Long.valueOf(in.readByte());
+		case 0xd1:
+			return Long.valueOf(in.readShort());
+		case 0xd2:
+			return Long.valueOf(in.readInt());
+		case 0xd3:
+			return Long.valueOf(in.readLong());
+		case 0xd9:
+			return readString(in, in.readUnsignedByte());
+		case 0xda:
+			return readString(in, in.readUnsignedShort());
+		case 0xdb:
+			return readString(in, readLength(in));
+		case 0xdc:
+			return readArray(in, in.readUnsignedShort(), depth);
+		case 0xdd:
+			return readArray(in, readLength(in), depth);
+		case 0xde:
+			return readMap(in, in.readUnsignedShort(), depth);
+		case 0xdf:
+			return readMap(in, readLength(in), depth);
+		default:
+			throw new IOException("Unsupported type 0x"
+					+ Integer.toHexString(type));
+		}
+	}
+
+	/**
+	 * Reads a 32 bit length, which Java arrays cannot hold if it is above
+	 * Integer.MAX_VALUE.
+	 */
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Length too large: "
+					+ (length & 0xffffffffL));
+		}
+		return length;
+	}
+
+	private static byte[] readBytes(DataInputStream in, int length)
+			throws IOException {
+		if (length <= MAX_PRESIZE) {
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return bytes;
+		}
+		// Only trust a large length as far as the data goes.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PRESIZE);
+		byte[] buffer = BufferPool.getBytes();
+		try {
+			int remaining = length;
+			while (remaining > 0) {
+				int read = in.read(buffer, 0, Math.min(remaining,
+						buffer.length));
+				if (read < 0) {
+					throw new EOFException();
+				}
+				bytes.write(buffer, 0, read);
+				remaining -= read;
+			}
+		} finally {
+			BufferPool.recycle(buffer);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String readString(DataInputStream in, int length)
+			throws IOException {
+		return new String(readBytes(in, length), "UTF-8");
+	}
+
+	private static List<Object> readArray(DataInputStream in, int size,
+			int depth) throws IOException {
+		List<Object> array = new ArrayList<Object>(Math.min(size, MAX_PRESIZE));
+		for (int i = 0; i < size; i++) {
+			array.add(read(in, depth + 1));
+		}
+		return array;
+	}
+
+	private static Map<Object, Object> readMap(DataInputStream in, int size,
+			int depth) throws IOException {
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+		for (int i = 0; i < size; i++) {
+			Object key = read(in, depth + 1);
+			map.put(key, read(in, depth + 1));
+		}
+		return map;
+	}
+
+	private static void write(Object value, DataOutputStream out)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(0xc0);
+		} else if (value instanceof Boolean) {
+			out.writeByte(((Boolean) value).booleanValue() ? 0xc3 : 0xc2);
+		} else if (value instanceof Double || value instanceof Float) {
+			out.writeByte(0xcb);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			writeInteger(((Number) value).longValue(), out);
+		} else if (value instanceof String) {
+			byte[] bytes = ((String) value).getBytes("UTF-8");
+			writeHeader(bytes.length, 0xa0, 31, 0xd9, 0xda, 0xdb, out);
+			out.write(bytes);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			writeHeader(bytes.length, 0, -1, 0xc4, 0xc5, 0xc6, out);
+			out.write(bytes);
+		} else if (value instanceof Map<?, ?>) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeHeader(map.size(), 0x80, 15, -1, 0xde, 0xdf, out);
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				write(entry.getKey(), out);
+				write(entry.getValue(), out);
+			}
+		} else if (value instanceof Collection<?>) {
+			Collection<?> collection = (Collection<?>) value;
+			writeHeader(collection.size(), 0x90, 15, -1, 0xdc, 0xdd, out);
+			for (Object element : collection) {
+				write(element, out);
+			}
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			writeHeader(array.length, 0x90, 15, -1, 0xdc, 0xdd, out);
+			for (Object element : array) {
+				write(element, out);
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot encode "
+					+ value.getClass().getName());
+		}
+	}
+
+	/**
+	 * Writes value in the smallest integer format which holds it.
+	 */
+	private static void writeInteger(long value, DataOutputStream out)
+			throws IOException {
+		if (value >= 0) {
+			if (value <= 0x7f) {
+				out.writeByte((int) value);
+			} else if (value <= 0xff) {
+				out.writeByte(0xcc);
+				out.writeByte((int) value);
+			} else if (value <= 0xffff) {
+				out.writeByte(0xcd);
+				out.writeShort((int) value);
+			} else if (value <= 0xffffffffL) {
+				out.writeByte(0xce);
+				out.writeInt((int) value);
+			} else {
+				out.writeByte(0xcf);
+				out.writeLong(value);
+			}
+		} else if (value >= -32) {
+			out.writeByte((int) value);
+		} else if (value >= Byte.MIN_VALUE) {
+			out.writeByte(0xd0);
+			out.writeByte((int) value);
+		} else if (value >= Short.MIN_VALUE) {
+			out.writeByte(0xd1);
+			out.writeShort((int) value);
+		} else if (value >= Integer.MIN_VALUE) {
+			out.writeByte(0xd2);
+			out.writeInt((int) value);
+		} else {
+			out.writeByte(0xd3);
+			out.writeLong(value);
+		}
+	}
+
+	/**
+	 * Writes the type and size of a string, byte array, array or map.
+	 * 
+	 * @param fixType
+	 *            Type whose low bits hold sizes up to fixMax.
+	 * @param fixMax
+	 *            Largest size held by fixType, -1 if there is no such type.
+	 * @param type8
+	 *            Type followed by an 8 bit size, -1 if there is none.
+	 * @param type16
+	 *            Type followed by a 16 bit size.
+	 * @param type32
+	 *            Type followed by a 32 bit size.
+	 */
+	private static void writeHeader(int size, int fixType, int fixMax,
+			int type8, int type16, int type32, DataOutputStream out)
+			throws IOException {
+		if (size <= fixMax) {
+			out.writeByte(fixType | size);
+		} else if (type8 >= 0 && size <= 0xff) {
+			out.writeByte(type8);
+			out.writeByte(size);
+		} else if (size <= 0xffff) {
+			out.writeByte(type16);
+			out.writeShort(size);
+		} else {
+			out.writeByte(type32);
+			out.writeInt(size);
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size byte and char buffers used when reading and writing
+ * request and response bodies, so that streaming a body does not allocate a
+ * new buffer every time.
+ * 
+ * @author Gopal Sharma
+ */
+final class BufferPool {
+
+	/**
+	 * Size of every pooled buffer.
+	 */
+	static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Maximum number of buffers of each kind kept in the pool. Buffers
+	 * returned beyond this are left to the garbage collector.
+	 */
+	private static final int MAX_POOLED = 16;
+
+	private static final ConcurrentLinkedQueue<byte[]> sByteBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+	private static final AtomicInteger sByteBufferCount = new AtomicInteger();
+
+	private static final ConcurrentLinkedQueue<char[]> sCharBuffers = new ConcurrentLinkedQueue<char[]>();
+
+	private static final AtomicInteger sCharBufferCount = new AtomicInteger();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @return A byte buffer of BUFFER_SIZE bytes. Must be given back with
+	 *         recycle once no longer used.
+	 */
+	static byte[] getBytes() {
+		byte[] buffer = sByteBuffers.poll();
+		if (buffer == null) {
+			return new byte[BUFFER_SIZE];
+		}
+		sByteBufferCount.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Returns buffer to the pool.
+	 */
+	static void recycle(byte[] buffer) {
+		if (sByteBufferCount.incrementAndGet() <= MAX_POOLED) {
+			sByteBuffers.offer(buffer);
+		} else {
+			sByteBufferCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return A char buffer of BUFFER_SIZE chars. Must be given back with
+	 *         recycle once no longer used.
+	 */
+	static char[] getChars() {
+		char[] buffer = sCharBuffers.poll();
+		if (buffer == null) {
+			return new char[BUFFER_SIZE];
+		}
+		sCharBufferCount.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Returns buffer to the pool.
+	 */
+	static void recycle(char[] buffer) {
+		if (sCharBufferCount.incrementAndGet() <= MAX_POOLED) {
+			sCharBuffers.offer(buffer);
+		} else {
+			sCharBufferCount.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * ResponseBodyHandler which receives the response body as a sequence of byte
+ * chunks, read into a pooled buffer. Memory use is constant no matter how
+ * large the body is.
+ * 
+ * @author Gopal Sharma
+ */
+public abstract class ChunkResponseHandler<T> extends ResponseBodyHandler<T> {
+
+	/**
+	 * @see com.gopalkri.appengineandroid.ResponseBodyHandler#handleBody(org.apache.http.HttpResponse,
+	 *      java.io.InputStream, java.lang.String)
+	 */
+	@Override
+	protected final T handleBody(HttpResponse response, InputStream body,
+			String charset) throws IOException {
+		onStart(response, getContentLength(response));
+		byte[] buffer = BufferPool.getBytes();
+		try {
+			int read;
+			while ((read = body.read(buffer)) != -1) {
+				onChunk(buffer, 0, read);
+			}
+		} finally {
+			BufferPool.recycle(buffer);
+		}
+		return onComplete(response);
+	}
+
+	/**
+	 * Called before the first chunk. Does nothing by default.
+	 * 
+	 * @param response
+	 *            Response being handled.
+	 * @param contentLength
+	 *            Length of the body, or -1 if unknown.
+	 */
+	protected void onStart(HttpResponse response, long contentLength)
+			throws IOException {
+	}
+
+	/**
+	 * Called for every chunk of the body. The buffer is reused once this
+	 * returns, so its contents must be copied if they are needed later.
+	 * 
+	 * @param buffer
+	 *            Buffer holding the chunk.
+	 * @param offset
+	 *            Offset of the chunk in buffer.
+	 * @param length
+	 *            Length of the chunk.
+	 */
+	protected abstract void onChunk(byte[] buffer, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Called after the last chunk.
+	 * 
+	 * @param response
+	 *            Response being handled.
+	 * @return Result of handling the response.
+	 */
+	protected abstract T onComplete(HttpResponse response) throws IOException;
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Circuit breaker for one host. After a run of consecutive failures it opens,
+ * and requests to the host fail fast instead of adding load to a backend that
+ * is already struggling. Once the open period is over a single probe request
+ * is let through: if it succeeds the breaker closes again, otherwise it stays
+ * open for another period.
+ * 
+ * @author Gopal Sharma
+ */
+class CircuitBreaker {
+
+	private static final int CLOSED = 0;
+
+	private static final int OPEN = 1;
+
+	private static final int HALF_OPEN = 2;
+
+	/**
+	 * Consecutive failures after which the breaker opens.
+	 */
+	private final int mFailureThreshold;
+
+	/**
+	 * Time the breaker stays open before letting a probe through.
+	 */
+	private final long mOpenMillis;
+
+	private int mState = CLOSED;
+
+	private int mConsecutiveFailures = 0;
+
+	private long mOpenedAt = 0;
+
+	/**
+	 * Whether the probe of the half open state has been let through.
+	 */
+	private boolean mProbeInFlight = false;
+
+	CircuitBreaker(int failureThreshold, long openMillis) {
+		mFailureThreshold = failureThreshold;
+		mOpenMillis = openMillis;
+	}
+
+	/**
+	 * @return Whether a request may be sent now. If true, the caller must
+	 *         report the outcome through onSuccess or onFailure.
+	 */
+	synchronized boolean allowRequest() {
+		switch (mState) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - mOpenedAt < mOpenMillis) {
+				return false;
+			}
+			mState = HALF_OPEN;
+			mProbeInFlight = true;
+			return true;
+		default:
+			if (mProbeInFlight) {
+				return false;
+			}
+			mProbeInFlight = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Reports that a request got a healthy response.
+	 */
+	synchronized void onSuccess() {
+		mState = CLOSED;
+		mConsecutiveFailures = 0;
+		mProbeInFlight = false;
+	}
+
+	/**
+	 * Reports that a request failed because of the backend.
+	 */
+	synchronized void onFailure() {
+		mConsecutiveFailures++;
+		mProbeInFlight = false;
+		if (mState == HALF_OPEN || mConsecutiveFailures >= mFailureThreshold) {
+			mState = OPEN;
+			mOpenedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Reports that a request was given up on by the caller, so says nothing
+	 * about the backend.
+	 */
+	synchronized void onAbandoned() {
+		mProbeInFlight = false;
+	}
+
+	/**
+	 * @return Whether the breaker is currently rejecting requests.
+	 */
+	synchronized boolean isOpen() {
+		return mState != CLOSED;
+	}
+}
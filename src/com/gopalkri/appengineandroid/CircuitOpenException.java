@@ -0,0 +1,25 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Thrown instead of sending a request while the circuit breaker for its host
+ * is open, i.e. the backend has been failing and is given time to recover.
+ * 
+ * @author Gopal Sharma
+ */
+public class CircuitOpenException extends HttpRequestException {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = -7024515832740466353L;
+
+	public CircuitOpenException(String message) {
+		super(message);
+	}
+
+}
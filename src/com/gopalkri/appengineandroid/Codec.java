@@ -0,0 +1,54 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turns values into request bodies and response bodies into values, reading
+ * and writing the body streams directly. Used by the typed doHttpGet and
+ * doHttpPost methods of AppEngine. Implementations must be safe for use by
+ * concurrent requests.
+ * 
+ * @author Gopal Sharma
+ */
+public interface Codec<T> {
+
+	/**
+	 * @return Content-Type of the bodies written by encode.
+	 */
+	String getContentType();
+
+	/**
+	 * Reads a value from a response body.
+	 * 
+	 * @param in
+	 *            Stream of the body. There is no need to close it.
+	 * @param charset
+	 *            Charset of the body, from its Content-Type header, or
+	 *            ResponseBodyHandler.DEFAULT_CHARSET if it has none.
+	 * @return The value read.
+	 * @throws IOException
+	 *             If the body could not be read or is malformed.
+	 */
+	T decode(InputStream in, String charset) throws IOException;
+
+	/**
+	 * Writes value as a request body. May be called more than once for the
+	 * same value if the request is retried.
+	 * 
+	 * @param value
+	 *            Value to write.
+	 * @param out
+	 *            Stream of the body. Must be flushed but not closed.
+	 * @throws IOException
+	 *             If writing failed.
+	 */
+	void encode(T value, OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,85 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Request body which a Codec writes straight to the connection, without
+ * building it in memory first. Its length is not known up front, so it is
+ * sent chunked.
+ * 
+ * @author Gopal Sharma
+ */
+class CodecEntity<T> extends AbstractHttpEntity {
+
+	private final T mValue;
+
+	private final Codec<? super T> mCodec;
+
+	/**
+	 * @param value
+	 *            Value to send.
+	 * @param codec
+	 *            Codec to encode value with.
+	 */
+	CodecEntity(T value, Codec<? super T> codec) {
+		mValue = value;
+		mCodec = codec;
+		setContentType(codec.getContentType());
+		setChunked(true);
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#writeTo(java.io.OutputStream)
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		mCodec.encode(mValue, out);
+		out.flush();
+	}
+
+	/**
+	 * Encodes the value into memory. Only used by code which insists on
+	 * reading the body rather than having it written.
+	 * 
+	 * @see org.apache.http.HttpEntity#getContent()
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTo(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#getContentLength()
+	 */
+	public long getContentLength() {
+		return -1;
+	}
+
+	/**
+	 * The value can be encoded again, so the request can be retried.
+	 * 
+	 * @see org.apache.http.HttpEntity#isRepeatable()
+	 */
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#isStreaming()
+	 */
+	public boolean isStreaming() {
+		return false;
+	}
+
+}
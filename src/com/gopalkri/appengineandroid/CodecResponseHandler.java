@@ -0,0 +1,54 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * ResponseHandler which decodes the response body with a Codec, straight
+ * from the response stream. Responses which are not a 2xx fail with a
+ * HttpResponseException, as their body is usually an error page rather than
+ * something the codec understands.
+ * 
+ * @author Gopal Sharma
+ */
+public class CodecResponseHandler<T> extends ResponseBodyHandler<T> {
+
+	private final Codec<? extends T> mCodec;
+
+	/**
+	 * @param codec
+	 *            Codec to decode response bodies with.
+	 */
+	public CodecResponseHandler(Codec<? extends T> codec) {
+		mCodec = codec;
+	}
+
+	/**
+	 * @return Value decoded from the body, or null if the body is empty.
+	 * @see com.gopalkri.appengineandroid.ResponseBodyHandler#handleBody(org.apache.http.HttpResponse,
+	 *      java.io.InputStream, java.lang.String)
+	 */
+	@Override
+	protected T handleBody(HttpResponse response, InputStream body,
+			String charset) throws IOException {
+		StatusLine status = response.getStatusLine();
+		if (status.getStatusCode() < 200 || status.getStatusCode() >= 300) {
+			throw new HttpResponseException(status.getStatusCode(), status
+					.getReasonPhrase());
+		}
+		if (getContentLength(response) == 0) {
+			return null;
+		}
+		return mCodec.decode(body, charset);
+	}
+
+}
@@ -0,0 +1,224 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Negotiates gzip/deflate compressed responses and decompresses them as they
+ * are read, and gzips request bodies on request. Keeps CompressionStats up to
+ * date.
+ * 
+ * Note that App Engine only compresses responses if the User-Agent contains
+ * "gzip", which is why AppEngine's User-Agent does.
+ * 
+ * @author Gopal Sharma
+ */
+class CompressionInterceptor implements HttpRequestInterceptor,
+		HttpResponseInterceptor {
+
+	/**
+	 * Counters to update.
+	 */
+	private final CompressionStats mStats;
+
+	/**
+	 * Whether to ask for compressed responses.
+	 */
+	private final boolean mAcceptCompressed;
+
+	CompressionInterceptor(CompressionStats stats, boolean acceptCompressed) {
+		mStats = stats;
+		mAcceptCompressed = acceptCompressed;
+	}
+
+	/**
+	 * @see org.apache.http.HttpRequestInterceptor#process(org.apache.http.HttpRequest,
+	 *      org.apache.http.protocol.HttpContext)
+	 */
+	public void process(HttpRequest request, HttpContext context)
+			throws HttpException, IOException {
+		if (mAcceptCompressed && !request.containsHeader("Accept-Encoding")) {
+			request.addHeader("Accept-Encoding", "gzip, deflate");
+		}
+	}
+
+	/**
+	 * @see org.apache.http.HttpResponseInterceptor#process(org.apache.http.HttpResponse,
+	 *      org.apache.http.protocol.HttpContext)
+	 */
+	public void process(HttpResponse response, HttpContext context)
+			throws HttpException, IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return;
+		}
+		Header encoding = entity.getContentEncoding();
+		String codec = encoding == null ? null : encoding.getValue().trim()
+				.toLowerCase();
+		if ("gzip".equals(codec) || "x-gzip".equals(codec)
+				|| "deflate".equals(codec)) {
+			response.setEntity(new DecompressingEntity(entity, codec));
+			response.removeHeaders("Content-Encoding");
+			response.removeHeaders("Content-Length");
+		} else {
+			response.setEntity(new CountingEntity(entity));
+		}
+	}
+
+	/**
+	 * Gzips entity into memory.
+	 * 
+	 * @param entity
+	 *            Request body to compress. Must have a known length.
+	 * @param stats
+	 *            Counters to update.
+	 * @return Compressed entity, or entity itself if compression did not make
+	 *         it smaller.
+	 */
+	static HttpEntity compress(HttpEntity entity, CompressionStats stats)
+			throws IOException {
+		long length = entity.getContentLength();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				(int) Math.max(64, length / 2));
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		entity.writeTo(gzip);
+		gzip.close();
+		stats.mRequestBodyBytes.addAndGet(length);
+		if (bytes.size() >= length) {
+			stats.mRequestWireBytes.addAndGet(length);
+			return entity;
+		}
+		stats.mRequestWireBytes.addAndGet(bytes.size());
+		ByteArrayEntity compressed = new ByteArrayEntity(bytes.toByteArray());
+		compressed.setContentType(entity.getContentType());
+		compressed.setContentEncoding("gzip");
+		return compressed;
+	}
+
+	/**
+	 * Counts the bytes of an uncompressed response body.
+	 */
+	private class CountingEntity extends HttpEntityWrapper {
+
+		private InputStream mContent;
+
+		CountingEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#getContent()
+		 */
+		@Override
+		public InputStream getContent() throws IOException {
+			if (mContent == null) {
+				mContent = new CountingInputStream(
+						new CountingInputStream(wrappedEntity.getContent(),
+								mStats.mResponseWireBytes),
+						mStats.mResponseBodyBytes);
+			}
+			return mContent;
+		}
+	}
+
+	/**
+	 * Decompresses a gzip or deflate response body while it is read.
+	 */
+	private class DecompressingEntity extends HttpEntityWrapper {
+
+		/**
+		 * Content-Encoding of the wrapped entity.
+		 */
+		private final String mCodec;
+
+		private InputStream mContent;
+
+		DecompressingEntity(HttpEntity wrapped, String codec) {
+			super(wrapped);
+			mCodec = codec;
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#getContent()
+		 */
+		@Override
+		public InputStream getContent() throws IOException {
+			if (mContent == null) {
+				InputStream wire = new CountingInputStream(wrappedEntity
+						.getContent(), mStats.mResponseWireBytes);
+				InputStream decoded = "deflate".equals(mCodec) ? new InflaterInputStream(
+						wire)
+						: new GZIPInputStream(wire, BufferPool.BUFFER_SIZE);
+				mContent = new CountingInputStream(decoded,
+						mStats.mResponseBodyBytes);
+			}
+			return mContent;
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#getContentLength()
+		 */
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#getContentEncoding()
+		 */
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+
+		/**
+		 * Writes the decompressed body, rather than the wrapped compressed
+		 * one.
+		 * 
+		 * @see org.apache.http.entity.HttpEntityWrapper#writeTo(java.io.OutputStream)
+		 */
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			InputStream in = getContent();
+			byte[] buffer = BufferPool.getBytes();
+			try {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				BufferPool.recycle(buffer);
+				in.close();
+			}
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#isStreaming()
+		 */
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+	}
+}
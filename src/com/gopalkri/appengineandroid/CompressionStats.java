@@ -0,0 +1,74 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counters showing how much compression saves. Response bytes are counted
+ * as they are read, so bodies which are never read are not counted.
+ * 
+ * @author Gopal Sharma
+ */
+public class CompressionStats {
+
+	final AtomicLong mResponseWireBytes = new AtomicLong();
+
+	final AtomicLong mResponseBodyBytes = new AtomicLong();
+
+	final AtomicLong mRequestBodyBytes = new AtomicLong();
+
+	final AtomicLong mRequestWireBytes = new AtomicLong();
+
+	/**
+	 * @return Response body bytes received over the network.
+	 */
+	public long getResponseWireBytes() {
+		return mResponseWireBytes.get();
+	}
+
+	/**
+	 * @return Response body bytes after decompression.
+	 */
+	public long getResponseBodyBytes() {
+		return mResponseBodyBytes.get();
+	}
+
+	/**
+	 * @return Request body bytes before compression.
+	 */
+	public long getRequestBodyBytes() {
+		return mRequestBodyBytes.get();
+	}
+
+	/**
+	 * @return Request body bytes sent over the network.
+	 */
+	public long getRequestWireBytes() {
+		return mRequestWireBytes.get();
+	}
+
+	/**
+	 * Sets all counters back to zero.
+	 */
+	public void reset() {
+		mResponseWireBytes.set(0);
+		mResponseBodyBytes.set(0);
+		mRequestBodyBytes.set(0);
+		mRequestWireBytes.set(0);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Responses: " + getResponseWireBytes() + " on wire, "
+				+ getResponseBodyBytes() + " decoded. Requests: "
+				+ getRequestBodyBytes() + " raw, " + getRequestWireBytes()
+				+ " on wire.";
+	}
+}
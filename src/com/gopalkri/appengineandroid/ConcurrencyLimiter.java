@@ -0,0 +1,337 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Limit on the number of requests in flight, which hands out the slots by
+ * priority. Each RequestPriority has its own queue of waiting requests, and
+ * may only take up its share of the slots. The waiting request with the
+ * lowest RequestPriority.rank among those whose class has a free slot goes
+ * next.
+ * 
+ * The limit is fixed unless it is adaptive. An adaptive limit grows by
+ * about one for every limit's worth of fast responses while it is being used
+ * up, and shrinks multiplicatively when responses take much longer than the
+ * fastest one seen recently, which means requests are queueing up on the
+ * server, or when the server fails or answers with 429 or a 5xx. Decreases
+ * happen at most once per round trip, so that one burst of slow responses
+ * does not collapse the limit.
+ * 
+ * A request holds its slot until its response body has been read, closed or
+ * consumed, as its connection stays leased from the pool until then. Slots
+ * released at the response headers would let bulk downloads take up every
+ * pooled connection while leaving the limiter's slots free, so that
+ * interactive requests would be let through only to wait for a connection.
+ * Round trips are still measured to the response headers, as App Engine
+ * buffers responses and the server is done with a request by then.
+ * 
+ * @author Gopal Sharma
+ */
+class ConcurrencyLimiter {
+
+	/**
+	 * Limit to start with, while nothing is known about the network.
+	 */
+	private static final int INITIAL_LIMIT = 4;
+
+	/**
+	 * Round trips over this many times the minimum mean the server is
+	 * queueing requests.
+	 */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * Factor applied to the limit when latency grows.
+	 */
+	private static final double LATENCY_BACKOFF = 0.9;
+
+	/**
+	 * Factor applied to the limit when the server fails.
+	 */
+	private static final double FAILURE_BACKOFF = 0.75;
+
+	/**
+	 * Age after which the minimum round trip is measured again, so that it
+	 * follows the device moving from Wi-Fi to a slower network.
+	 */
+	private static final long MIN_RTT_MAX_AGE_NANOS = 60 * 1000000000L;
+
+	/**
+	 * Longest a waiting request sleeps before checking whether it was
+	 * aborted, which does not wake it.
+	 */
+	private static final long ABORT_CHECK_MILLIS = 100;
+
+	private final AppEngineMetrics mMetrics;
+
+	private final int mMaxLimit;
+
+	private final int mMaxQueued;
+
+	/**
+	 * Whether the limit adapts to how the server copes.
+	 */
+	private final boolean mAdaptive;
+
+	/**
+	 * Longest a request may wait for its turn, 0 for forever.
+	 */
+	private final long mMaxWaitMillis;
+
+	private double mLimit;
+
+	private int mInFlight = 0;
+
+	/**
+	 * Requests in flight, by RequestPriority ordinal.
+	 */
+	private final int[] mInFlightByPriority = new int[RequestPriority
+			.values().length];
+
+	/**
+	 * Requests waiting for a slot, by priority, oldest first.
+	 */
+	private final Map<RequestPriority, LinkedList<Waiter>> mQueues = new EnumMap<RequestPriority, LinkedList<Waiter>>(
+			RequestPriority.class);
+
+	private int mQueued = 0;
+
+	/**
+	 * Fastest round trip since mMinRttSetAt, Long.MAX_VALUE if none yet.
+	 */
+	private long mMinRttNanos = Long.MAX_VALUE;
+
+	private long mMinRttSetAt = 0;
+
+	/**
+	 * Exponentially weighted average round trip.
+	 */
+	private long mSmoothedRttNanos = 0;
+
+	private long mLastDecreaseAt;
+
+	/**
+	 * @param maxLimit
+	 *            The limit, or its upper bound if it is adaptive.
+	 * @param maxQueued
+	 *            Most requests which may wait for a slot.
+	 * @param maxWaitMillis
+	 *            Longest a request may wait for a slot, 0 for forever.
+	 * @param adaptive
+	 *            Whether the limit adapts to how the server copes.
+	 */
+	ConcurrencyLimiter(AppEngineMetrics metrics, int maxLimit, int maxQueued,
+			long maxWaitMillis, boolean adaptive) {
+		mMetrics = metrics;
+		mMaxLimit = Math.max(1, maxLimit);
+		mMaxQueued = maxQueued;
+		mMaxWaitMillis = maxWaitMillis;
+		mAdaptive = adaptive;
+		mLimit = adaptive ? Math.min(INITIAL_LIMIT, mMaxLimit) : mMaxLimit;
+		mLastDecreaseAt = System.nanoTime();
+		for (RequestPriority priority : RequestPriority.values()) {
+			mQueues.put(priority, new LinkedList<Waiter>());
+		}
+		mMetrics.recordConcurrencyLimit((int) mLimit);
+	}
+
+	/**
+	 * Waits until request may be sent. The caller must then report the
+	 * outcome through onSuccess or onOverload, if there is one, and give the
+	 * slot back through release once it is done with the request, with the
+	 * same priority.
+	 * 
+	 * @param priority
+	 *            Priority of request.
+	 * @param deadline
+	 *            Deadline of the request. May be null.
+	 * @throws RequestRejectedException
+	 *             If too many requests are waiting already, or request
+	 *             waited longer than allowed.
+	 * @throws HttpRequestException
+	 *             If request was aborted or interrupted while waiting.
+	 */
+	synchronized void acquire(HttpUriRequest request,
+			RequestPriority priority, Deadline deadline)
+			throws HttpRequestException {
+		if (mQueued == 0 && hasSlot(priority)) {
+			take(priority);
+			return;
+		}
+		if (mQueued >= mMaxQueued) {
+			mMetrics.recordRequestShed();
+			throw new RequestRejectedException("Too many requests waiting, "
+					+ "not sending " + request.getURI());
+		}
+		long waitUntil = mMaxWaitMillis > 0 ? System.currentTimeMillis()
+				+ mMaxWaitMillis : Long.MAX_VALUE;
+		LinkedList<Waiter> queue = mQueues.get(priority);
+		Waiter waiter = new Waiter(priority, priority.rank(System.nanoTime()));
+		queue.addLast(waiter);
+		mQueued++;
+		try {
+			while (!isNext(waiter)) {
+				long remaining = waitUntil - System.currentTimeMillis();
+				if (deadline != null) {
+					remaining = Math.min(remaining, deadline.remainingMillis());
+				}
+				if (request.isAborted()) {
+					throw new HttpRequestException("Request aborted: "
+							+ request.getURI());
+				}
+				if (remaining <= 0) {
+					mMetrics.recordRequestShed();
+					throw new RequestRejectedException("Waited too long to "
+							+ "send " + request.getURI());
+				}
+				wait(Math.min(remaining, ABORT_CHECK_MILLIS));
+			}
+			take(priority);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HttpRequestException(e);
+		} finally {
+			queue.remove(waiter);
+			mQueued--;
+			// Whoever is next now may be able to go.
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reports that a request got a response the server was not struggling
+	 * with.
+	 * 
+	 * @param rttNanos
+	 *            Time from sending the request to its response headers.
+	 */
+	synchronized void onSuccess(RequestPriority priority, long rttNanos) {
+		long now = System.nanoTime();
+		boolean limited = mInFlight >= (int) mLimit;
+		if (!mAdaptive) {
+			return;
+		}
+		if (mMinRttNanos == Long.MAX_VALUE || rttNanos < mMinRttNanos
+				|| now - mMinRttSetAt > MIN_RTT_MAX_AGE_NANOS) {
+			mMinRttNanos = rttNanos;
+			mMinRttSetAt = now;
+		}
+		mSmoothedRttNanos = mSmoothedRttNanos == 0 ? rttNanos
+				: (7 * mSmoothedRttNanos + rttNanos) / 8;
+		if (rttNanos > mMinRttNanos * LATENCY_TOLERANCE) {
+			decrease(LATENCY_BACKOFF, now);
+		} else if (limited) {
+			// Only grow a limit that is holding requests back.
+			setLimit(mLimit + 1 / mLimit);
+		}
+	}
+
+	/**
+	 * Reports that a request failed, or got a response showing that the
+	 * server is overloaded or out of quota.
+	 */
+	synchronized void onOverload(RequestPriority priority) {
+		if (mAdaptive) {
+			decrease(FAILURE_BACKOFF, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Gives back the slot of a request which is done with: it failed, was
+	 * given up on, or its response body has been read or discarded.
+	 */
+	synchronized void release(RequestPriority priority) {
+		mInFlight--;
+		mInFlightByPriority[priority.ordinal()]--;
+		notifyAll();
+	}
+
+	/**
+	 * @return Whether a response with statusCode shows that the server is
+	 *         overloaded or out of quota.
+	 */
+	static boolean isOverload(int statusCode) {
+		return statusCode == 429 || statusCode >= 500;
+	}
+
+	/**
+	 * @return Whether a request of priority could take a slot now.
+	 */
+	private boolean hasSlot(RequestPriority priority) {
+		int limit = (int) mLimit;
+		return mInFlight < limit
+				&& mInFlightByPriority[priority.ordinal()] < priority
+						.getSlots(limit);
+	}
+
+	/**
+	 * @return Whether waiter is the one to take the next slot: its class has
+	 *         a free slot, and no waiting request which could take a slot
+	 *         ranks before it.
+	 */
+	private boolean isNext(Waiter waiter) {
+		if (!hasSlot(waiter.mPriority)
+				|| mQueues.get(waiter.mPriority).getFirst() != waiter) {
+			return false;
+		}
+		for (RequestPriority priority : RequestPriority.values()) {
+			LinkedList<Waiter> queue = mQueues.get(priority);
+			if (priority != waiter.mPriority && !queue.isEmpty()
+					&& queue.getFirst().mRank < waiter.mRank
+					&& hasSlot(priority)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void take(RequestPriority priority) {
+		mInFlight++;
+		mInFlightByPriority[priority.ordinal()]++;
+	}
+
+	private void decrease(double factor, long now) {
+		if (now - mLastDecreaseAt < mSmoothedRttNanos) {
+			return;
+		}
+		mLastDecreaseAt = now;
+		setLimit(mLimit * factor);
+	}
+
+	private void setLimit(double limit) {
+		int before = (int) mLimit;
+		mLimit = Math.max(1, Math.min(mMaxLimit, limit));
+		if ((int) mLimit != before) {
+			mMetrics.recordConcurrencyLimit((int) mLimit);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Request waiting for a slot.
+	 */
+	private static class Waiter {
+
+		final RequestPriority mPriority;
+
+		/**
+		 * RequestPriority.rank of the request.
+		 */
+		final long mRank;
+
+		Waiter(RequestPriority priority, long rank) {
+			mPriority = priority;
+			mRank = rank;
+		}
+	}
+
+}
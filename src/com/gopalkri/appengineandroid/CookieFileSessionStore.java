@@ -0,0 +1,155 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+/**
+ * SessionStore which keeps cookies in a Netscape format cookies.txt file, the
+ * format used by curl and wget. This lets a headless client start from a
+ * session obtained elsewhere, ex: by logging in with a browser, and lets
+ * other tools reuse sessions it creates.
+ * 
+ * @author Gopal Sharma
+ */
+public class CookieFileSessionStore implements SessionStore {
+
+	/**
+	 * Prefix curl gives lines of HttpOnly cookies.
+	 */
+	private static final String HTTP_ONLY_PREFIX = "#HttpOnly_";
+
+	/**
+	 * File the cookies are stored in.
+	 */
+	private final File mFile;
+
+	/**
+	 * @param file
+	 *            File the cookies are stored in.
+	 */
+	public CookieFileSessionStore(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Writes cookies with the expiry of each capped by expiry, as the file
+	 * format has no expiry for the session as a whole.
+	 * 
+	 * @see com.gopalkri.appengineandroid.SessionStore#save(java.util.List,
+	 *      long)
+	 */
+	public synchronized void save(List<Cookie> cookies, long expiry)
+			throws IOException {
+		File temp = new File(mFile.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(temp),
+				"UTF-8");
+		try {
+			out.write("# Netscape HTTP Cookie File\n");
+			for (Cookie cookie : cookies) {
+				long cookieExpiry = expiry;
+				if (cookie.getExpiryDate() != null) {
+					cookieExpiry = Math.min(cookieExpiry, cookie
+							.getExpiryDate().getTime());
+				}
+				String domain = cookie.getDomain() == null ? "" : cookie
+						.getDomain();
+				out.write(domain + "\t"
+						+ (domain.startsWith(".") ? "TRUE" : "FALSE") + "\t"
+						+ (cookie.getPath() == null ? "/" : cookie.getPath())
+						+ "\t" + (cookie.isSecure() ? "TRUE" : "FALSE") + "\t"
+						+ cookieExpiry / 1000 + "\t" + cookie.getName() + "\t"
+						+ (cookie.getValue() == null ? "" : cookie.getValue())
+						+ "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(mFile)) {
+			temp.delete();
+			throw new IOException("Could not write " + mFile);
+		}
+	}
+
+	/**
+	 * Gives the session the latest expiry of its cookies, which is the
+	 * expiry it was saved with if it was saved by this class. Files with no
+	 * cookie expiries, ex: from a browser's session cookies, give it none.
+	 * 
+	 * @see com.gopalkri.appengineandroid.SessionStore#load()
+	 */
+	public synchronized StoredSession load() throws IOException {
+		BufferedReader in;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(
+					mFile), "UTF-8"));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			Date now = new Date();
+			List<Cookie> cookies = new ArrayList<Cookie>();
+			long sessionExpiry = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(HTTP_ONLY_PREFIX)) {
+					line = line.substring(HTTP_ONLY_PREFIX.length());
+				} else if (line.startsWith("#") || line.trim().length() == 0) {
+					continue;
+				}
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 7) {
+					throw new IOException("Malformed line in " + mFile + ": "
+							+ line);
+				}
+				BasicClientCookie cookie = new BasicClientCookie(fields[5],
+						fields[6]);
+				cookie.setDomain(fields[0]);
+				cookie.setPath(fields[2]);
+				cookie.setSecure("TRUE".equalsIgnoreCase(fields[3]));
+				try {
+					long expiry = Long.parseLong(fields[4]);
+					if (expiry > 0) {
+						cookie.setExpiryDate(new Date(expiry * 1000));
+						sessionExpiry = Math.max(sessionExpiry, expiry * 1000);
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed expiry in " + mFile
+							+ ": " + line);
+				}
+				if (!cookie.isExpired(now)) {
+					cookies.add(cookie);
+				}
+			}
+			return cookies.isEmpty() ? null : new StoredSession(cookies,
+					sessionExpiry);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.SessionStore#clear()
+	 */
+	public synchronized void clear() {
+		mFile.delete();
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InputStream which adds the number of bytes read through it to a counter.
+ * 
+ * @author Gopal Sharma
+ */
+class CountingInputStream extends FilterInputStream {
+
+	/**
+	 * Counter to add to.
+	 */
+	private final AtomicLong mCounter;
+
+	CountingInputStream(InputStream in, AtomicLong counter) {
+		super(in);
+		mCounter = counter;
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			mCounter.incrementAndGet();
+		}
+		return b;
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+		if (read > 0) {
+			mCounter.addAndGet(read);
+		}
+		return read;
+	}
+
+	/**
+	 * @see java.io.FilterInputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		if (skipped > 0) {
+			mCounter.addAndGet(skipped);
+		}
+		return skipped;
+	}
+}
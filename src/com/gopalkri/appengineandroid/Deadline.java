@@ -0,0 +1,58 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Point in time by which a request, including its retries, any login it
+ * triggers and reading its response, has to be done.
+ * 
+ * @author Gopal Sharma
+ */
+final class Deadline {
+
+	/**
+	 * System.nanoTime() at which the deadline expires.
+	 */
+	private final long mExpiresAtNanos;
+
+	/**
+	 * @param timeoutMillis
+	 *            Time from now until the deadline expires.
+	 */
+	Deadline(long timeoutMillis) {
+		mExpiresAtNanos = System.nanoTime() + timeoutMillis * 1000000L;
+	}
+
+	/**
+	 * @return Milliseconds left until the deadline, 0 if it has expired.
+	 */
+	long remainingMillis() {
+		return Math.max(0, (mExpiresAtNanos - System.nanoTime()) / 1000000L);
+	}
+
+	/**
+	 * @return Whether the deadline has expired.
+	 */
+	boolean isExpired() {
+		return remainingMillis() <= 0;
+	}
+
+	/**
+	 * Bounds a timeout by the time left.
+	 * 
+	 * @param timeoutMillis
+	 *            Timeout in milliseconds, 0 meaning none.
+	 * @return The smaller of timeoutMillis and the time left, at least 1 so
+	 *         that it is never taken to mean no timeout.
+	 */
+	int bound(long timeoutMillis) {
+		long remaining = Math.max(1, remainingMillis());
+		if (timeoutMillis > 0) {
+			remaining = Math.min(remaining, timeoutMillis);
+		}
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+}
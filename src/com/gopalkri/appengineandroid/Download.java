@@ -0,0 +1,846 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Downloads a resource into a file, writing each response straight to the
+ * file through a FileChannel. The body goes to destination.part, and a
+ * checkpoint is saved next to it every CHECKPOINT_BYTES, so an interrupted
+ * download, even one interrupted by the process dying, carries on where it
+ * stopped with a Range request. If-Range makes sure all the pieces come
+ * from the same version of the resource: if it changed, the download starts
+ * over.
+ * 
+ * Large resources may be split into segments which are fetched in parallel,
+ * one range request each. Splitting and resuming need the server to send a
+ * strong ETag or a Last-Modified date. Without one, the download is done in
+ * one piece and starts over if it is interrupted.
+ * 
+ * @author Gopal Sharma
+ */
+class Download {
+
+	private static final String TAG = "AppEngineAndroid";
+
+	/**
+	 * Suffix of the file the body is written to until it is complete.
+	 */
+	static final String PART_SUFFIX = ".part";
+
+	/**
+	 * Suffix of the file holding the checkpoint of a download.
+	 */
+	static final String STATE_SUFFIX = ".part.state";
+
+	/**
+	 * Bytes written between checkpoints.
+	 */
+	private static final long CHECKPOINT_BYTES = 1024 * 1024;
+
+	/**
+	 * Smallest segment a download is split into. Also the size of the first
+	 * range request of a download which may be split, which finds out how
+	 * long the resource is.
+	 */
+	private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+	/**
+	 * Times a download starts over because the resource changed, before
+	 * giving up.
+	 */
+	private static final int MAX_RESTARTS = 2;
+
+	private static final Pattern CONTENT_RANGE = Pattern
+			.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+	/**
+	 * Content-Range of a 416 response to a resource which is empty, so that
+	 * no range of it can be satisfied.
+	 */
+	private static final Pattern EMPTY_CONTENT_RANGE = Pattern
+			.compile("bytes\\s+\\*/0");
+
+	/**
+	 * Sends the range requests.
+	 */
+	interface Fetch {
+		void fetch(HttpUriRequest request, ResponseHandler<?> handler)
+				throws HttpRequestException;
+	}
+
+	private final Fetch mFetch;
+
+	private final String mUrl;
+
+	private final File mDestination;
+
+	private final File mPartFile;
+
+	private final File mStateFile;
+
+	/**
+	 * Executor running the segments other than the one fetched on the
+	 * calling thread.
+	 */
+	private final Executor mExecutor;
+
+	/**
+	 * Most segments fetched at once.
+	 */
+	private final int mMaxSegments;
+
+	/**
+	 * Listener told about the progress. Null if none.
+	 */
+	private final ProgressListener mListener;
+
+	private FileChannel mChannel;
+
+	/**
+	 * Strong ETag or Last-Modified date of the resource, sent as If-Range.
+	 * Null if the server sent neither. Guarded by this.
+	 */
+	private String mValidator = null;
+
+	/**
+	 * Length of the resource, -1 if unknown. Guarded by this.
+	 */
+	private long mLength = -1;
+
+	/**
+	 * All segments of the download, in order. Guarded by this.
+	 */
+	private final List<Segment> mSegments = new ArrayList<Segment>();
+
+	/**
+	 * Bytes written to the part file, over all segments. Guarded by this.
+	 */
+	private long mTransferred = 0;
+
+	/**
+	 * Bytes written since the last checkpoint. Guarded by this.
+	 */
+	private long mUncheckpointed = 0;
+
+	/**
+	 * Segments waiting for a worker.
+	 */
+	private final ConcurrentLinkedQueue<Segment> mQueue = new ConcurrentLinkedQueue<Segment>();
+
+	/**
+	 * Segments queued or being fetched. Guarded by this.
+	 */
+	private int mUnfinished = 0;
+
+	/**
+	 * Workers on mExecutor which are fetching segments. Guarded by this.
+	 */
+	private int mWorkers = 0;
+
+	/**
+	 * First failure of a segment. Guarded by this.
+	 */
+	private Exception mFailure = null;
+
+	/**
+	 * Set once the download has failed or been cancelled, so that the other
+	 * segments stop.
+	 */
+	private volatile boolean mStopped = false;
+
+	private volatile boolean mCancelled = false;
+
+	/**
+	 * Requests in flight, aborted when the download stops. Guarded by
+	 * itself.
+	 */
+	private final Set<HttpUriRequest> mRequests = new HashSet<HttpUriRequest>();
+
+	/**
+	 * @param fetch
+	 *            Sends the range requests.
+	 * @param url
+	 *            URL of the resource.
+	 * @param destination
+	 *            File to download to.
+	 * @param maxSegments
+	 *            Most segments to fetch at once. 1 to never split the
+	 *            download.
+	 * @param listener
+	 *            Listener to tell about the progress. May be null.
+	 * @param executor
+	 *            Executor on which to fetch segments in parallel.
+	 */
+	Download(Fetch fetch, String url, File destination, int maxSegments,
+			ProgressListener listener, Executor executor) {
+		mFetch = fetch;
+		mUrl = url;
+		mDestination = destination;
+		mPartFile = new File(destination.getPath() + PART_SUFFIX);
+		mStateFile = new File(destination.getPath() + STATE_SUFFIX);
+		mMaxSegments = Math.max(1, maxSegments);
+		mListener = listener;
+		mExecutor = executor;
+	}
+
+	/**
+	 * Performs the download on the calling thread, with help from mExecutor
+	 * if it is split.
+	 * 
+	 * @return The destination file.
+	 * @throws HttpRequestException
+	 *             If the download failed or was cancelled. What was
+	 *             downloaded so far is kept for the next attempt if the
+	 *             resource has a validator.
+	 */
+	File run() throws HttpRequestException {
+		RandomAccessFile file;
+		try {
+			file = new RandomAccessFile(mPartFile, "rw");
+		} catch (IOException e) {
+			throw new HttpRequestException(e);
+		}
+		mChannel = file.getChannel();
+		boolean done = false;
+		try {
+			boolean resume = loadState(file.length());
+			for (int restarts = 0;; restarts++) {
+				if (!resume) {
+					reset();
+				}
+				try {
+					fetchAll();
+					done = true;
+					break;
+				} catch (HttpRequestException e) {
+					if (!(e.getCause() instanceof RestartException)
+							|| restarts >= MAX_RESTARTS || mCancelled) {
+						throw e;
+					}
+					AppEngineLog.i(TAG, "Restarting download of " + mUrl
+							+ ": " + e.getCause().getMessage());
+					resume = false;
+				}
+			}
+		} catch (IOException e) {
+			throw new HttpRequestException(e);
+		} finally {
+			if (!done) {
+				checkpoint();
+			}
+			try {
+				file.close();
+			} catch (IOException e) {
+				AppEngineLog.w(TAG, "Failed to close " + mPartFile, e);
+			}
+		}
+		mStateFile.delete();
+		mDestination.delete();
+		if (!mPartFile.renameTo(mDestination)) {
+			throw new HttpRequestException("Could not rename " + mPartFile
+					+ " to " + mDestination);
+		}
+		return mDestination;
+	}
+
+	/**
+	 * Cancels the download. It fails with a HttpRequestException, keeping
+	 * what was downloaded so far.
+	 */
+	void cancel() {
+		mCancelled = true;
+		stop();
+	}
+
+	/**
+	 * Makes all segments stop, aborting their requests.
+	 */
+	private void stop() {
+		mStopped = true;
+		synchronized (mRequests) {
+			for (HttpUriRequest request : mRequests) {
+				request.abort();
+			}
+		}
+	}
+
+	/**
+	 * Starts the download from scratch.
+	 */
+	private synchronized void reset() throws IOException {
+		mStateFile.delete();
+		mChannel.truncate(0);
+		mValidator = null;
+		mLength = -1;
+		mTransferred = 0;
+		mUncheckpointed = 0;
+		mSegments.clear();
+		// A download which may be split first asks for a small range, to find
+		// out how long the resource is.
+		mSegments.add(new Segment(0, mMaxSegments > 1 ? MIN_SEGMENT_BYTES - 1
+				: -1));
+	}
+
+	/**
+	 * Fetches every unfinished segment, returning once they are all done.
+	 */
+	private void fetchAll() throws HttpRequestException {
+		int queued;
+		synchronized (this) {
+			mFailure = null;
+			mStopped = mCancelled;
+			mQueue.clear();
+			mUnfinished = 0;
+			for (Segment segment : mSegments) {
+				if (!segment.isFinished()) {
+					mQueue.add(segment);
+					mUnfinished++;
+				}
+			}
+			queued = mUnfinished;
+		}
+		startWorkers(Math.min(queued, mMaxSegments) - 1);
+		work();
+		boolean interrupted = false;
+		synchronized (this) {
+			while (mUnfinished > 0 && !mStopped || mWorkers > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+					fail(new InterruptedIOException("Download interrupted."));
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (mFailure instanceof HttpRequestException) {
+				throw (HttpRequestException) mFailure;
+			} else if (mFailure != null) {
+				throw new HttpRequestException(mFailure);
+			} else if (mCancelled) {
+				throw new HttpRequestException("Download cancelled.");
+			}
+		}
+	}
+
+	/**
+	 * Starts count workers on mExecutor. If it has no room for them, the
+	 * workers already running do their share.
+	 */
+	private void startWorkers(int count) {
+		for (int i = 0; i < count; i++) {
+			try {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						synchronized (Download.this) {
+							mWorkers++;
+						}
+						try {
+							work();
+						} finally {
+							synchronized (Download.this) {
+								mWorkers--;
+								Download.this.notifyAll();
+							}
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Fetches queued segments until there are none left or the download
+	 * stops.
+	 */
+	private void work() {
+		Segment segment;
+		while (!mStopped && (segment = mQueue.poll()) != null) {
+			try {
+				fetch(segment);
+			} catch (Exception e) {
+				fail(e);
+				return;
+			}
+			synchronized (this) {
+				mUnfinished--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Records the first failure and stops the other segments.
+	 */
+	private synchronized void fail(Exception e) {
+		if (mFailure == null && !mStopped) {
+			mFailure = e;
+		}
+		stop();
+		notifyAll();
+	}
+
+	/**
+	 * Fetches segment, carrying on with another range request each time the
+	 * response breaks off after making some progress.
+	 */
+	private void fetch(Segment segment) throws HttpRequestException {
+		while (true) {
+			long before = segment.mDone;
+			HttpGet request = createRequest(segment);
+			synchronized (mRequests) {
+				mRequests.add(request);
+			}
+			try {
+				if (mStopped) {
+					throw new HttpRequestException("Download stopped.");
+				}
+				mFetch.fetch(request, new SegmentHandler(segment, request));
+				return;
+			} catch (HttpRequestException e) {
+				Throwable cause = e.getCause();
+				if (mStopped || segment.mDone == before
+						|| !(cause instanceof IOException)
+						|| cause instanceof HttpResponseException
+						|| cause instanceof RestartException) {
+					throw e;
+				}
+				AppEngineLog.i(TAG, "Resuming download of " + mUrl
+						+ " at byte " + segment.position() + " after "
+						+ cause);
+			} finally {
+				synchronized (mRequests) {
+					mRequests.remove(request);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Range request for the rest of segment.
+	 */
+	private synchronized HttpGet createRequest(Segment segment) {
+		HttpGet request = new HttpGet(mUrl);
+		// Ranges refer to the bytes sent, so they must not be compressed.
+		request.setHeader("Accept-Encoding", "identity");
+		request.setHeader("Range", "bytes=" + segment.position() + "-"
+				+ (segment.mEndless ? "" : String.valueOf(segment.mEnd)));
+		if (mValidator != null) {
+			request.setHeader("If-Range", mValidator);
+		}
+		return request;
+	}
+
+	/**
+	 * Checks that a 206 response holds the range asked for, and learns the
+	 * length of the resource from it. Splits the download if this was the
+	 * first range request of a download which may be split.
+	 */
+	private synchronized void onPartialContent(Segment segment,
+			HttpResponse response) throws IOException {
+		Header header = response.getFirstHeader("Content-Range");
+		Matcher matcher = CONTENT_RANGE.matcher(header == null ? ""
+				: header.getValue());
+		if (!matcher.matches()) {
+			throw new IOException("Bad Content-Range: " + header);
+		}
+		long start = Long.parseLong(matcher.group(1));
+		long length = "*".equals(matcher.group(3)) ? -1 : Long
+				.parseLong(matcher.group(3));
+		if (start != segment.position()) {
+			throw new RestartException("Asked for bytes from "
+					+ segment.position() + " but got " + header.getValue());
+		}
+		if (length >= 0 && mLength >= 0 && length != mLength) {
+			throw new RestartException("Length changed from " + mLength
+					+ " to " + length);
+		}
+		boolean first = mLength < 0 && mSegments.size() == 1
+				&& segment.mStart == 0;
+		if (mValidator == null && start == 0) {
+			mValidator = getValidator(response);
+		}
+		if (length >= 0) {
+			mLength = length;
+			if (segment.mEndless || segment.mEnd >= length) {
+				segment.mEnd = length - 1;
+				segment.mEndless = false;
+			}
+		}
+		if (first && !segment.mEndless && segment.mEnd < mLength - 1) {
+			split(segment.mEnd + 1);
+		} else if (first && mLength < 0 && !segment.mEndless) {
+			// Length unknown: fetch the rest in one piece.
+			Segment rest = new Segment(segment.mEnd + 1, -1);
+			mSegments.add(rest);
+			enqueue(rest);
+		}
+	}
+
+	/**
+	 * Takes a 200 response, which holds the whole resource. Only acceptable
+	 * if nothing has been downloaded yet.
+	 */
+	private synchronized void onWholeContent(Segment segment,
+			HttpResponse response) throws IOException {
+		if (segment.position() != 0 || mSegments.size() != 1) {
+			throw new RestartException("Server sent the whole resource");
+		}
+		mValidator = getValidator(response);
+		HttpEntity entity = response.getEntity();
+		mLength = entity == null ? 0 : entity.getContentLength();
+		segment.mEnd = mLength - 1;
+		segment.mEndless = mLength < 0;
+	}
+
+	/**
+	 * Takes a 416 response. On the first request of a download, one whose
+	 * Content-Range gives the length as 0 means the resource is empty, and
+	 * so is already downloaded in full. Anything else restarts the download.
+	 */
+	private synchronized void onRangeNotSatisfiable(Segment segment,
+			HttpResponse response) throws IOException {
+		Header header = response.getFirstHeader("Content-Range");
+		if (segment.mStart != 0 || segment.mDone != 0 || mSegments.size() != 1
+				|| header == null
+				|| !EMPTY_CONTENT_RANGE.matcher(header.getValue().trim())
+						.matches()) {
+			throw new RestartException("Range not satisfiable");
+		}
+		mValidator = getValidator(response);
+		mLength = 0;
+		segment.mEnd = -1;
+		segment.mEndless = false;
+	}
+
+	/**
+	 * Splits the resource from start onwards into segments, queueing them
+	 * and starting workers for them.
+	 */
+	private void split(long start) {
+		long remaining = mLength - start;
+		int count = mValidator == null ? 1 : (int) Math.max(1, Math.min(
+				mMaxSegments, remaining / MIN_SEGMENT_BYTES));
+		long size = (remaining + count - 1) / count;
+		for (long from = start; from < mLength; from += size) {
+			Segment segment = new Segment(from, Math.min(from + size,
+					mLength) - 1);
+			mSegments.add(segment);
+			enqueue(segment);
+		}
+		startWorkers(count - 1);
+	}
+
+	private synchronized void enqueue(Segment segment) {
+		mQueue.add(segment);
+		mUnfinished++;
+	}
+
+	/**
+	 * Copies body into the part file at the position of segment, stopping
+	 * at its end.
+	 */
+	private void copy(Segment segment, InputStream body) throws IOException {
+		byte[] buffer = BufferPool.getBytes();
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+		try {
+			while (!segment.isFinished()) {
+				if (mStopped) {
+					throw new InterruptedIOException("Download stopped.");
+				}
+				int max = buffer.length;
+				if (!segment.mEndless) {
+					max = (int) Math.min(max, segment.mEnd - segment.position()
+							+ 1);
+				}
+				int read = body.read(buffer, 0, max);
+				if (read < 0) {
+					break;
+				}
+				byteBuffer.clear();
+				byteBuffer.limit(read);
+				long position = segment.position();
+				while (byteBuffer.hasRemaining()) {
+					position += mChannel.write(byteBuffer, position);
+				}
+				transferred(segment, read);
+			}
+		} finally {
+			BufferPool.recycle(buffer);
+		}
+		if (!segment.mEndless && !segment.isFinished()) {
+			throw new EOFException("Response ended at byte "
+					+ segment.position() + " of " + mUrl + ", expected "
+					+ (segment.mEnd + 1));
+		}
+		synchronized (this) {
+			if (segment.mEndless) {
+				// Length unknown: the response ending means the resource did.
+				segment.mEnd = segment.position() - 1;
+				segment.mEndless = false;
+				mLength = segment.position();
+			}
+		}
+	}
+
+	/**
+	 * Counts bytes written for segment, reporting progress and saving a
+	 * checkpoint when due.
+	 */
+	private synchronized void transferred(Segment segment, int count)
+			throws IOException {
+		segment.mDone += count;
+		mTransferred += count;
+		mUncheckpointed += count;
+		if (mUncheckpointed >= CHECKPOINT_BYTES) {
+			checkpoint();
+		}
+		if (mListener != null && !mListener.onProgress(mTransferred, mLength)) {
+			cancel();
+			throw new InterruptedIOException("Download cancelled.");
+		}
+	}
+
+	/**
+	 * Flushes the part file to disk and saves how much of each segment it
+	 * holds. Downloads without a validator cannot be resumed, so they are
+	 * not checkpointed.
+	 */
+	private synchronized void checkpoint() {
+		mUncheckpointed = 0;
+		if (mValidator == null) {
+			return;
+		}
+		StringBuilder segments = new StringBuilder();
+		for (Segment segment : mSegments) {
+			if (segments.length() > 0) {
+				segments.append(',');
+			}
+			segments.append(segment.mStart).append(':').append(
+					segment.mEndless ? -1 : segment.mEnd).append(':').append(
+					segment.mDone);
+		}
+		Properties state = new Properties();
+		state.setProperty("url", mUrl);
+		state.setProperty("validator", mValidator);
+		state.setProperty("length", String.valueOf(mLength));
+		state.setProperty("segments", segments.toString());
+		File temp = new File(mStateFile.getPath() + ".tmp");
+		try {
+			mChannel.force(false);
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				state.store(out, null);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mStateFile)) {
+				mStateFile.delete();
+				if (!temp.renameTo(mStateFile)) {
+					throw new IOException("Could not rename " + temp);
+				}
+			}
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Failed to save checkpoint of " + mUrl, e);
+		}
+	}
+
+	/**
+	 * Loads the checkpoint of an earlier attempt at this download.
+	 * 
+	 * @param partLength
+	 *            Length of the part file.
+	 * @return Whether there was a usable checkpoint.
+	 */
+	private synchronized boolean loadState(long partLength) {
+		if (!mStateFile.exists()) {
+			return false;
+		}
+		Properties state = new Properties();
+		try {
+			InputStream in = new FileInputStream(mStateFile);
+			try {
+				state.load(in);
+			} finally {
+				in.close();
+			}
+			mValidator = state.getProperty("validator");
+			mLength = Long.parseLong(state.getProperty("length"));
+			if (!mUrl.equals(state.getProperty("url")) || mValidator == null) {
+				return false;
+			}
+			for (String s : state.getProperty("segments").split(",")) {
+				String[] fields = s.split(":");
+				Segment segment = new Segment(Long.parseLong(fields[0]), Long
+						.parseLong(fields[1]));
+				segment.mDone = Long.parseLong(fields[2]);
+				// Segments are written in parallel, so the part file may end
+				// before segments which have not started yet.
+				if (segment.mDone < 0 || segment.mDone > 0
+						&& segment.position() > partLength
+						|| !segment.mEndless
+						&& segment.position() > segment.mEnd + 1) {
+					return false;
+				}
+				mSegments.add(segment);
+				mTransferred += segment.mDone;
+			}
+			return !mSegments.isEmpty();
+		} catch (Exception e) {
+			AppEngineLog.w(TAG, "Ignoring bad checkpoint " + mStateFile, e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return The strong ETag of response, or else its Last-Modified date,
+	 *         or null if it has neither.
+	 */
+	private static String getValidator(HttpResponse response) {
+		Header etag = response.getFirstHeader("ETag");
+		if (etag != null && !etag.getValue().startsWith("W/")) {
+			return etag.getValue();
+		}
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		return lastModified == null ? null : lastModified.getValue();
+	}
+
+	/**
+	 * Writes the body of a range request into the part file.
+	 */
+	private class SegmentHandler implements ResponseHandler<Object> {
+
+		private final Segment mSegment;
+
+		/**
+		 * Request being handled. Aborted rather than read to the end if the
+		 * download has to start over.
+		 */
+		private final HttpUriRequest mRequest;
+
+		SegmentHandler(Segment segment, HttpUriRequest request) {
+			mSegment = segment;
+			mRequest = request;
+		}
+
+		/**
+		 * @see org.apache.http.client.ResponseHandler#handleResponse(org.apache.http.HttpResponse)
+		 */
+		public Object handleResponse(HttpResponse response) throws IOException {
+			StatusLine status = response.getStatusLine();
+			try {
+				switch (status.getStatusCode()) {
+				case 206:
+					onPartialContent(mSegment, response);
+					break;
+				case 200:
+					onWholeContent(mSegment, response);
+					break;
+				case 416:
+					onRangeNotSatisfiable(mSegment, response);
+					break;
+				default:
+					throw new HttpResponseException(status.getStatusCode(),
+							status.getReasonPhrase());
+				}
+			} catch (RestartException e) {
+				mRequest.abort();
+				throw e;
+			}
+			HttpEntity entity = response.getEntity();
+			copy(mSegment, entity == null ? new ByteArrayInputStream(
+					new byte[0]) : entity.getContent());
+			return null;
+		}
+	}
+
+	/**
+	 * Range of the resource fetched by one request at a time. Guarded by the
+	 * Download it belongs to, except that only its worker writes it.
+	 */
+	private static class Segment {
+
+		final long mStart;
+
+		/**
+		 * Last byte, inclusive. Meaningless while mEndless.
+		 */
+		volatile long mEnd;
+
+		/**
+		 * Whether the segment runs to the end of the resource, however long
+		 * that turns out to be.
+		 */
+		volatile boolean mEndless;
+
+		/**
+		 * Bytes of the segment written to the part file.
+		 */
+		volatile long mDone = 0;
+
+		Segment(long start, long end) {
+			mStart = start;
+			mEnd = end;
+			mEndless = end < 0;
+		}
+
+		long position() {
+			return mStart + mDone;
+		}
+
+		boolean isFinished() {
+			return !mEndless && mDone >= mEnd - mStart + 1;
+		}
+	}
+
+	/**
+	 * Thrown when the server sent a different version of the resource, or
+	 * not what was asked for, so the download must start over.
+	 */
+	private static class RestartException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		RestartException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Request body read from a region of a FileChannel through a pooled buffer,
+ * so that uploading a file of any size takes constant memory. Reads do not
+ * move the channel's position, so the body can be sent again on a retry, and
+ * several regions of one channel can be uploaded at the same time. The
+ * caller closes the channel once the request is done.
+ * 
+ * @author Gopal Sharma
+ */
+public class FileChannelEntity extends AbstractHttpEntity {
+
+	private final FileChannel mChannel;
+
+	private final long mPosition;
+
+	private final long mCount;
+
+	/**
+	 * Body holding the whole of channel.
+	 * 
+	 * @param channel
+	 *            Channel to read from.
+	 * @param contentType
+	 *            Content-Type of the body. May be null.
+	 * @throws IOException
+	 *             If the size of channel could not be read.
+	 */
+	public FileChannelEntity(FileChannel channel, String contentType)
+			throws IOException {
+		this(channel, 0, channel.size(), contentType);
+	}
+
+	/**
+	 * Body holding count bytes of channel, starting at position.
+	 * 
+	 * @param channel
+	 *            Channel to read from.
+	 * @param position
+	 *            Offset in channel of the first byte of the body.
+	 * @param count
+	 *            Length of the body.
+	 * @param contentType
+	 *            Content-Type of the body. May be null.
+	 */
+	public FileChannelEntity(FileChannel channel, long position, long count,
+			String contentType) {
+		mChannel = channel;
+		mPosition = position;
+		mCount = count;
+		setContentType(contentType);
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#writeTo(java.io.OutputStream)
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] buffer = BufferPool.getBytes();
+		try {
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			long position = mPosition;
+			long end = mPosition + mCount;
+			while (position < end) {
+				byteBuffer.clear();
+				byteBuffer.limit((int) Math.min(buffer.length, end - position));
+				int read = mChannel.read(byteBuffer, position);
+				if (read < 0) {
+					throw new EOFException("File ended " + (end - position)
+							+ " bytes early.");
+				}
+				out.write(buffer, 0, read);
+				position += read;
+			}
+			out.flush();
+		} finally {
+			BufferPool.recycle(buffer);
+		}
+	}
+
+	/**
+	 * Not supported. The body can only be written.
+	 * 
+	 * @see org.apache.http.HttpEntity#getContent()
+	 */
+	public InputStream getContent() {
+		throw new UnsupportedOperationException(
+				"FileChannelEntity can only be written.");
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#getContentLength()
+	 */
+	public long getContentLength() {
+		return mCount;
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#isRepeatable()
+	 */
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#isStreaming()
+	 */
+	public boolean isStreaming() {
+		return false;
+	}
+
+}
@@ -0,0 +1,165 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+/**
+ * SessionStore which keeps the session cookies of one account for one
+ * application in a file. The file should live in the application's private
+ * storage, ex: Context.getFilesDir(), which only the application can read.
+ * 
+ * @author Gopal Sharma
+ */
+public class FileSessionStore implements SessionStore {
+
+	/**
+	 * Version of the file format. Files with a different version are ignored.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * File the session is stored in.
+	 */
+	private final File mFile;
+
+	/**
+	 * Application the session belongs to.
+	 */
+	private final String mApplicationUrl;
+
+	/**
+	 * Account the session belongs to.
+	 */
+	private final String mAccountName;
+
+	/**
+	 * @param directory
+	 *            Directory to store the session file in.
+	 * @param applicationUrl
+	 *            App engine application's url. Ex:
+	 *            https://gopalkri-testing.appspot.com
+	 * @param accountName
+	 *            Name of the account the session belongs to.
+	 */
+	public FileSessionStore(File directory, String applicationUrl,
+			String accountName) {
+		mApplicationUrl = applicationUrl;
+		mAccountName = accountName;
+		mFile = new File(directory, "AppEngineAndroid-"
+				+ Integer.toHexString((applicationUrl + "\n" + accountName)
+						.hashCode()) + ".session");
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.SessionStore#save(java.util.List,
+	 *      long)
+	 */
+	public synchronized void save(List<Cookie> cookies, long expiry)
+			throws IOException {
+		// Write to a temporary file and rename it over the real one so that a
+		// crash half way through never leaves a corrupt session behind.
+		File temp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeUTF(mApplicationUrl);
+			out.writeUTF(mAccountName);
+			out.writeLong(expiry);
+			out.writeInt(cookies.size());
+			for (Cookie cookie : cookies) {
+				out.writeUTF(cookie.getName());
+				out.writeUTF(nullToEmpty(cookie.getValue()));
+				out.writeUTF(nullToEmpty(cookie.getDomain()));
+				out.writeUTF(nullToEmpty(cookie.getPath()));
+				Date cookieExpiry = cookie.getExpiryDate();
+				out.writeLong(cookieExpiry == null ? -1 : cookieExpiry
+						.getTime());
+				out.writeBoolean(cookie.isSecure());
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(mFile)) {
+			temp.delete();
+			throw new IOException("Could not write " + mFile);
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.SessionStore#load()
+	 */
+	public synchronized StoredSession load() throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mFile)));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			if (in.readInt() != VERSION
+					|| !in.readUTF().equals(mApplicationUrl)
+					|| !in.readUTF().equals(mAccountName)) {
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			long expiry = in.readLong();
+			if (expiry <= now) {
+				return null;
+			}
+			int count = in.readInt();
+			List<Cookie> cookies = new ArrayList<Cookie>(count);
+			for (int i = 0; i < count; i++) {
+				BasicClientCookie cookie = new BasicClientCookie(in.readUTF(),
+						in.readUTF());
+				cookie.setDomain(emptyToNull(in.readUTF()));
+				cookie.setPath(emptyToNull(in.readUTF()));
+				long cookieExpiry = in.readLong();
+				if (cookieExpiry >= 0) {
+					cookie.setExpiryDate(new Date(cookieExpiry));
+				}
+				cookie.setSecure(in.readBoolean());
+				if (!cookie.isExpired(new Date(now))) {
+					cookies.add(cookie);
+				}
+			}
+			return new StoredSession(cookies, expiry);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.SessionStore#clear()
+	 */
+	public synchronized void clear() {
+		mFile.delete();
+	}
+
+	private static String nullToEmpty(String s) {
+		return s == null ? "" : s;
+	}
+
+	private static String emptyToNull(String s) {
+		return s.length() == 0 ? null : s;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sends requests for an AppEngine instance. AppEngine does logins, retries,
+ * caching and compression on top of a transport, and a transport only has to
+ * get a request to the server and the response back.
+ * 
+ * Requests and responses use the HttpClient types the rest of the library
+ * uses. A transport must honour the following on every request:
+ * <ul>
+ * <li>The connect and socket timeouts set in the request's params.</li>
+ * <li>ClientPNames.HANDLE_REDIRECTS in the request's params. When redirects
+ * are followed, redirects to a login page must still be returned as is (see
+ * LoginRedirectHandler.isLoginRedirect), so that AppEngine can tell that the
+ * session was rejected.</li>
+ * <li>ClientContext.COOKIE_STORE in context, if set, in place of the
+ * transport's own cookie store.</li>
+ * <li>request.abort(), which may be called from another thread when the
+ * call's deadline expires.</li>
+ * </ul>
+ * 
+ * @author Gopal Sharma
+ */
+public interface HttpTransport {
+
+	/**
+	 * Sends request and returns the response. The caller consumes the
+	 * response's entity once done with it.
+	 * 
+	 * @param request
+	 *            Request to send.
+	 * @param context
+	 *            Context of the request. May be null.
+	 * @return The response.
+	 * @throws IOException
+	 *             If the request failed or was aborted.
+	 */
+	HttpResponse execute(HttpUriRequest request, HttpContext context)
+			throws IOException;
+
+	/**
+	 * @return Cookie store holding the cookies of the session.
+	 */
+	CookieStore getCookieStore();
+
+	/**
+	 * Gets ready for requests to uri as far as the transport can without
+	 * sending one, ex: by resolving the host and connecting to it.
+	 * 
+	 * @param uri
+	 *            URI requests will be sent to.
+	 * @throws IOException
+	 *             If this failed.
+	 */
+	void warmUp(URI uri) throws IOException;
+
+	/**
+	 * Releases the connections and threads of this transport. It cannot be
+	 * used after this.
+	 */
+	void shutdown();
+
+	/**
+	 * Creates the transport of a new AppEngine instance. Factories are set
+	 * on AppEngineConfig, which is Serializable, so they have to be too.
+	 */
+	public interface Factory extends Serializable {
+
+		/**
+		 * @param config
+		 *            Configuration of the new instance.
+		 * @param metrics
+		 *            Metrics of the new instance.
+		 * @return A new transport.
+		 */
+		HttpTransport create(AppEngineConfig config, AppEngineMetrics metrics);
+	}
+
+}
@@ -0,0 +1,42 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Transports that come with the library. Pass one to
+ * AppEngineConfig.setTransportFactory. Both speak HTTP/1.1 only; there is
+ * no HTTP/2 transport, so concurrent requests are never multiplexed over one
+ * connection.
+ * 
+ * @author Gopal Sharma
+ */
+public enum HttpTransports implements HttpTransport.Factory {
+
+	/**
+	 * HttpClient with a pool of HTTP/1.1 connections. Reports connection
+	 * reuse and pool waits to AppEngineMetrics, and resumes TLS sessions.
+	 * This is the default.
+	 */
+	APACHE_HTTP_CLIENT {
+		public HttpTransport create(AppEngineConfig config,
+				AppEngineMetrics metrics) {
+			return new ApacheHttpTransport(config, metrics);
+		}
+	},
+
+	/**
+	 * The platform's HttpURLConnection, which has its own connection pool
+	 * shared by the whole process. Use this where HttpClient is deprecated or
+	 * missing.
+	 */
+	URL_CONNECTION {
+		public HttpTransport create(AppEngineConfig config,
+				AppEngineMetrics metrics) {
+			return new UrlConnectionTransport(config);
+		}
+	};
+
+}
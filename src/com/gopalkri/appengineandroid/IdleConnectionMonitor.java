@@ -0,0 +1,84 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionManager;
+
+/**
+ * Daemon thread which periodically evicts expired and idle connections from a
+ * pooled connection manager, so that stale sockets are not handed out and
+ * idle ones do not hold on to resources forever.
+ * 
+ * @author Gopal Sharma
+ */
+class IdleConnectionMonitor extends Thread {
+
+	/**
+	 * Connection manager to evict connections from.
+	 */
+	private final ClientConnectionManager mConnectionManager;
+
+	/**
+	 * Time after which idle connections are closed.
+	 */
+	private final long mIdleTimeoutMillis;
+
+	/**
+	 * Whether shutdown has been requested.
+	 */
+	private volatile boolean mShutdown = false;
+
+	/**
+	 * @param connectionManager
+	 *            Connection manager to evict connections from.
+	 * @param idleTimeoutMillis
+	 *            Time after which idle connections are closed.
+	 */
+	IdleConnectionMonitor(ClientConnectionManager connectionManager,
+			long idleTimeoutMillis) {
+		super("AppEngineIdleConnectionMonitor");
+		mConnectionManager = connectionManager;
+		mIdleTimeoutMillis = idleTimeoutMillis;
+		setDaemon(true);
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		// Check twice per timeout period so a connection is never idle for
+		// much longer than the timeout.
+		long interval = Math.max(1000, mIdleTimeoutMillis / 2);
+		while (!mShutdown) {
+			synchronized (this) {
+				try {
+					wait(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			if (mShutdown) {
+				return;
+			}
+			mConnectionManager.closeExpiredConnections();
+			mConnectionManager.closeIdleConnections(mIdleTimeoutMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the monitor thread.
+	 */
+	void shutdown() {
+		mShutdown = true;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Thrown when App Engine does not accept an auth token, usually because it
+ * has expired.
+ * 
+ * @author Gopal Sharma
+ */
+public class InvalidAuthTokenException extends CookieException {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = -1739226526913478142L;
+
+	public InvalidAuthTokenException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,434 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codec for JSON. Values are decoded as they are read from the response
+ * stream, without reading the whole body into a String first.
+ * 
+ * JSON objects decode to Map&lt;String, Object&gt; (keeping the order of
+ * their members), arrays to List&lt;Object&gt;, numbers to Long if they are
+ * integers which fit and Double otherwise, and true, false and null to
+ * Boolean and null. Encoding accepts the same, and also any Collection,
+ * Object[] and Number.
+ * 
+ * @author Gopal Sharma
+ */
+public class JsonCodec implements Codec<Object> {
+
+	/**
+	 * Shared instance. JsonCodec has no state.
+	 */
+	public static final JsonCodec INSTANCE = new JsonCodec();
+
+	/**
+	 * Maximum nesting of arrays and objects, so that a hostile body cannot
+	 * overflow the stack.
+	 */
+	private static final int MAX_DEPTH = 512;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * @see com.gopalkri.appengineandroid.Codec#getContentType()
+	 */
+	public String getContentType() {
+		return "application/json; charset=UTF-8";
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.Codec#decode(java.io.InputStream,
+	 *      java.lang.String)
+	 */
+	public Object decode(InputStream in, String charset) throws IOException {
+		char[] buffer = BufferPool.getChars();
+		try {
+			Parser parser = new Parser(new InputStreamReader(in, charset),
+					buffer);
+			Object value = parser.readValue(0);
+			if (parser.peek() != -1) {
+				throw parser.error("Unexpected data after value");
+			}
+			return value;
+		} finally {
+			BufferPool.recycle(buffer);
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.Codec#encode(java.lang.Object,
+	 *      java.io.OutputStream)
+	 */
+	public void encode(Object value, OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		write(value, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Writes value as JSON to writer.
+	 */
+	private static void write(Object value, Writer writer) throws IOException {
+		if (value == null) {
+			writer.write("null");
+		} else if (value instanceof String) {
+			writeString((String) value, writer);
+		} else if (value instanceof Boolean) {
+			writer.write(value.toString());
+		} else if (value instanceof Number) {
+			if (value instanceof Double || value instanceof Float) {
+				double d = ((Number) value).doubleValue();
+				if (Double.isNaN(d) || Double.isInfinite(d)) {
+					throw new IllegalArgumentException(
+							"JSON has no representation for " + d);
+				}
+			}
+			writer.write(value.toString());
+		} else if (value instanceof Map<?, ?>) {
+			writer.write('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!first) {
+					writer.write(',');
+				}
+				first = false;
+				writeString(String.valueOf(entry.getKey()), writer);
+				writer.write(':');
+				write(entry.getValue(), writer);
+			}
+			writer.write('}');
+		} else if (value instanceof Collection<?>) {
+			writeArray(((Collection<?>) value).toArray(), writer);
+		} else if (value instanceof Object[]) {
+			writeArray((Object[]) value, writer);
+		} else {
+			throw new IllegalArgumentException("Cannot encode "
+					+ value.getClass().getName() + " as JSON");
+		}
+	}
+
+	private static void writeArray(Object[] values, Writer writer)
+			throws IOException {
+		writer.write('[');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			write(values[i], writer);
+		}
+		writer.write(']');
+	}
+
+	private static void writeString(String s, Writer writer)
+			throws IOException {
+		writer.write('"');
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				writer.write("\\\"");
+				break;
+			case '\\':
+				writer.write("\\\\");
+				break;
+			case '\n':
+				writer.write("\\n");
+				break;
+			case '\r':
+				writer.write("\\r");
+				break;
+			case '\t':
+				writer.write("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					writer.write("\\u");
+					writer.write(HEX[c >> 12 & 0xf]);
+					writer.write(HEX[c >> 8 & 0xf]);
+					writer.write(HEX[c >> 4 & 0xf]);
+					writer.write(HEX[c & 0xf]);
+				} else {
+					writer.write(c);
+				}
+			}
+		}
+		writer.write('"');
+	}
+
+	/**
+	 * Recursive descent JSON parser reading from a Reader through a buffer.
+	 */
+	private static class Parser {
+
+		private final Reader mReader;
+
+		private final char[] mBuffer;
+
+		private int mPosition = 0;
+
+		private int mLimit = 0;
+
+		/**
+		 * Number of chars consumed before mBuffer, for error messages.
+		 */
+		private long mOffset = 0;
+
+		private final StringBuilder mScratch = new StringBuilder();
+
+		Parser(Reader reader, char[] buffer) {
+			mReader = reader;
+			mBuffer = buffer;
+		}
+
+		/**
+		 * @return Next char, or -1 at the end of the input.
+		 */
+		private int read() throws IOException {
+			if (mPosition == mLimit && !fill()) {
+				return -1;
+			}
+			return mBuffer[mPosition++];
+		}
+
+		/**
+		 * Skips whitespace.
+		 * 
+		 * @return Next char without consuming it, or -1 at the end of the
+		 *         input.
+		 */
+		int peek() throws IOException {
+			while (true) {
+				if (mPosition == mLimit && !fill()) {
+					return -1;
+				}
+				char c = mBuffer[mPosition];
+				if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+					return c;
+				}
+				mPosition++;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			mOffset += mLimit;
+			mPosition = 0;
+			mLimit = 0;
+			int read = mReader.read(mBuffer);
+			if (read <= 0) {
+				return false;
+			}
+			mLimit = read;
+			return true;
+		}
+
+		IOException error(String message) {
+			return new IOException(message + " at offset "
+					+ (mOffset + mPosition));
+		}
+
+		private void expect(char expected) throws IOException {
+			if (peek() != expected) {
+				throw error("Expected '" + expected + "'");
+			}
+			mPosition++;
+		}
+
+		Object readValue(int depth) throws IOException {
+			if (depth > MAX_DEPTH) {
+				throw error("Too deeply nested");
+			}
+			int c = peek();
+			switch (c) {
+			case '{':
+				return readObject(depth);
+			case '[':
+				return readArray(depth);
+			case '"':
+				mPosition++;
+				return readString();
+			case 't':
+				readLiteral("true");
+				return Boolean.TRUE;
+			case 'f':
+				readLiteral("false");
+				return Boolean.FALSE;
+			case 'n':
+				readLiteral("null");
+				return null;
+			case -1:
+				throw error("Unexpected end of input");
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) {
+					return readNumber();
+				}
+				throw error("Unexpected character '" + (char) c + "'");
+			}
+		}
+
+		private Map<String, Object> readObject(int depth) throws IOException {
+			mPosition++;
+			Map<String, Object> object = new LinkedHashMap<String, Object>();
+			if (peek() == '}') {
+				mPosition++;
+				return object;
+			}
+			while (true) {
+				expect('"');
+				String name = readString();
+				expect(':');
+				object.put(name, readValue(depth + 1));
+				int c = peek();
+				mPosition++;
+				if (c == '}') {
+					return object;
+				}
+				if (c != ',') {
+					throw error("Expected ',' or '}'");
+				}
+			}
+		}
+
+		private List<Object> readArray(int depth) throws IOException {
+			mPosition++;
+			List<Object> array = new ArrayList<Object>();
+			if (peek() == ']') {
+				mPosition++;
+				return array;
+			}
+			while (true) {
+				array.add(readValue(depth + 1));
+				int c = peek();
+				mPosition++;
+				if (c == ']') {
+					return array;
+				}
+				if (c != ',') {
+					throw error("Expected ',' or ']'");
+				}
+			}
+		}
+
+		/**
+		 * Reads the rest of a string whose opening quote has been consumed.
+		 */
+		private String readString() throws IOException {
+			StringBuilder sb = mScratch;
+			sb.setLength(0);
+			while (true) {
+				// Copy runs of plain chars in one go.
+				int start = mPosition;
+				while (mPosition < mLimit) {
+					char c = mBuffer[mPosition];
+					if (c == '"' || c == '\\') {
+						break;
+					}
+					mPosition++;
+				}
+				sb.append(mBuffer, start, mPosition - start);
+				int c = read();
+				if (c == '"') {
+					return sb.toString();
+				} else if (c == '\\') {
+					sb.append(readEscape());
+				} else if (c == -1) {
+					throw error("Unterminated string");
+				} else {
+					// Buffer ran out in the middle of a run.
+					sb.append((char) c);
+				}
+			}
+		}
+
+		private char readEscape() throws IOException {
+			int c = read();
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				return (char) c;
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'u':
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(read(), 16);
+					if (digit < 0) {
+						throw error("Invalid \\u escape");
+					}
+					value = value << 4 | digit;
+				}
+				return (char) value;
+			default:
+				throw error("Invalid escape");
+			}
+		}
+
+		private void readLiteral(String literal) throws IOException {
+			for (int i = 0; i < literal.length(); i++) {
+				if (read() != literal.charAt(i)) {
+					throw error("Expected " + literal);
+				}
+			}
+		}
+
+		private Number readNumber() throws IOException {
+			StringBuilder sb = mScratch;
+			sb.setLength(0);
+			boolean integer = true;
+			while (true) {
+				if (mPosition == mLimit && !fill()) {
+					break;
+				}
+				char c = mBuffer[mPosition];
+				if (c >= '0' && c <= '9' || c == '-') {
+					sb.append(c);
+				} else if (c == '.' || c == 'e' || c == 'E' || c == '+') {
+					sb.append(c);
+					integer = false;
+				} else {
+					break;
+				}
+				mPosition++;
+			}
+			String number = sb.toString();
+			if (integer) {
+				try {
+					return Long.valueOf(number);
+				} catch (NumberFormatException e) {
+					// Too large for a long.
+				}
+			}
+			try {
+				return Double.valueOf(number);
+			} catch (NumberFormatException e) {
+				throw error("Invalid number " + number);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations. Durations are kept in microseconds in
+ * log-linear buckets: every power of two is split into 8 buckets, so
+ * percentiles are accurate to within 12.5%. Recording does not allocate.
+ * 
+ * @author Gopal Sharma
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Buckets per power of two is 1 << SUB_BUCKET_BITS.
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Enough buckets for durations of up to 2^40 microseconds (12 days).
+	 * Longer ones go into the last bucket.
+	 */
+	private static final int BUCKETS = (40 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong mCount = new AtomicLong();
+
+	private final AtomicLong mSumMicros = new AtomicLong();
+
+	private final AtomicLong mMaxMicros = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 * 
+	 * @param nanos
+	 *            Duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		mBuckets.incrementAndGet(bucketOf(micros));
+		mCount.incrementAndGet();
+		mSumMicros.addAndGet(micros);
+		long max;
+		while (micros > (max = mMaxMicros.get())) {
+			if (mMaxMicros.compareAndSet(max, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Sets the histogram back to empty. Durations recorded concurrently may
+	 * be partly lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mBuckets.set(i, 0);
+		}
+		mCount.set(0);
+		mSumMicros.set(0);
+		mMaxMicros.set(0);
+	}
+
+	/**
+	 * @return A copy of the current state.
+	 */
+	public Snapshot snapshot() {
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = mBuckets.get(i);
+			count += buckets[i];
+		}
+		return new Snapshot(buckets, count, mSumMicros.get(), mMaxMicros
+				.get());
+	}
+
+	/**
+	 * @return Index of the bucket holding micros.
+	 */
+	static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		int bucket = (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	/**
+	 * @return Largest duration in microseconds held by bucket.
+	 */
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int msb = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (msb - SUB_BUCKET_BITS);
+		return lower + (1L << (msb - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * Immutable copy of a histogram.
+	 */
+	public static class Snapshot {
+
+		private final long[] mBuckets;
+
+		private final long mCount;
+
+		private final long mSumMicros;
+
+		private final long mMaxMicros;
+
+		Snapshot(long[] buckets, long count, long sumMicros, long maxMicros) {
+			mBuckets = buckets;
+			mCount = count;
+			mSumMicros = sumMicros;
+			mMaxMicros = maxMicros;
+		}
+
+		/**
+		 * @return Number of durations recorded.
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * @return Mean duration in milliseconds, 0 if none were recorded.
+		 */
+		public double getMeanMillis() {
+			return mCount == 0 ? 0 : mSumMicros / 1000.0 / mCount;
+		}
+
+		/**
+		 * @return Longest duration in milliseconds.
+		 */
+		public double getMaxMillis() {
+			return mMaxMicros / 1000.0;
+		}
+
+		/**
+		 * @param percentile
+		 *            Percentile between 0 and 100, ex: 99.9.
+		 * @return Duration in milliseconds which percentile percent of the
+		 *         recorded durations did not exceed, 0 if none were recorded.
+		 */
+		public double getPercentileMillis(double percentile) {
+			if (mCount == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(percentile / 100 * mCount);
+			long seen = 0;
+			for (int i = 0; i < mBuckets.length; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(upperBoundOf(i), mMaxMicros) / 1000.0;
+				}
+			}
+			return getMaxMillis();
+		}
+
+		public double getP50Millis() {
+			return getPercentileMillis(50);
+		}
+
+		public double getP99Millis() {
+			return getPercentileMillis(99);
+		}
+
+		public double getP999Millis() {
+			return getPercentileMillis(99.9);
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "n=" + mCount + " p50=" + getP50Millis() + "ms p99="
+					+ getP99Millis() + "ms p999=" + getP999Millis()
+					+ "ms max=" + getMaxMillis() + "ms";
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.client.DefaultRedirectHandler;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * RedirectHandler which follows redirects as usual, except those to a login
+ * page. Those are returned to AppEngine as is, so that it can tell that its
+ * session was rejected and log in again.
+ * 
+ * @author Gopal Sharma
+ */
+class LoginRedirectHandler extends DefaultRedirectHandler {
+
+	/**
+	 * @see org.apache.http.impl.client.DefaultRedirectHandler#isRedirectRequested(org.apache.http.HttpResponse,
+	 *      org.apache.http.protocol.HttpContext)
+	 */
+	@Override
+	public boolean isRedirectRequested(HttpResponse response,
+			HttpContext context) {
+		return super.isRedirectRequested(response, context)
+				&& !isLoginRedirect(response);
+	}
+
+	/**
+	 * Checks whether response redirects to a Google or App Engine login page.
+	 * 
+	 * @param response
+	 *            Response to check.
+	 * @return Whether response redirects to a login page.
+	 */
+	static boolean isLoginRedirect(HttpResponse response) {
+		int status = response.getStatusLine().getStatusCode();
+		if (status < 300 || status >= 400) {
+			return false;
+		}
+		Header location = response.getFirstHeader("Location");
+		if (location == null) {
+			return false;
+		}
+		String value = location.getValue();
+		return value.indexOf("/accounts/ServiceLogin") >= 0
+				|| value.indexOf("/_ah/login") >= 0
+				|| value.indexOf("/_ah/conflogin") >= 0;
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Executor which runs tasks on the application's main (UI) thread. Pass it to
+ * the asynchronous AppEngine methods to have callbacks delivered where views
+ * can be touched.
+ * 
+ * @author Gopal Sharma
+ */
+public class MainThreadExecutor implements Executor {
+
+	/**
+	 * Handler bound to the main looper.
+	 */
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute(Runnable command) {
+		mHandler.post(command);
+	}
+
+}
@@ -0,0 +1,61 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Pooling connection manager which records, for every connection leased, how
+ * long the lease waited and whether an open connection was reused.
+ * 
+ * @author Gopal Sharma
+ */
+class MeteredConnectionManager extends ThreadSafeClientConnManager {
+
+	private final AppEngineMetrics mMetrics;
+
+	MeteredConnectionManager(HttpParams params, SchemeRegistry schemeRegistry,
+			AppEngineMetrics metrics) {
+		super(params, schemeRegistry);
+		mMetrics = metrics;
+	}
+
+	/**
+	 * @see org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager#requestConnection(org.apache.http.conn.routing.HttpRoute,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public ClientConnectionRequest requestConnection(HttpRoute route,
+			Object state) {
+		final ClientConnectionRequest request = super.requestConnection(
+				route, state);
+		return new ClientConnectionRequest() {
+
+			public ManagedClientConnection getConnection(long timeout,
+					TimeUnit unit) throws InterruptedException,
+					ConnectionPoolTimeoutException {
+				long start = System.nanoTime();
+				ManagedClientConnection connection = request.getConnection(
+						timeout, unit);
+				mMetrics.recordConnectionLease(System.nanoTime() - start,
+						connection.isOpen());
+				return connection;
+			}
+
+			public void abortRequest() {
+				request.abortRequest();
+			}
+		};
+	}
+}
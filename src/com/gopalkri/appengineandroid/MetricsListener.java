@@ -0,0 +1,39 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Receives every measurement AppEngineMetrics records, ex: to forward them to
+ * an analytics backend. Methods are called on the thread that made the
+ * request, so they should return quickly.
+ * 
+ * @author Gopal Sharma
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called when a request completes.
+	 * 
+	 * @param path
+	 *            Path of the request, without query.
+	 * @param statusCode
+	 *            Status code of the final response, or -1 if the request
+	 *            failed.
+	 * @param latencyNanos
+	 *            Time the call took, including retries and logging in again.
+	 */
+	void onRequest(String path, int statusCode, long latencyNanos);
+
+	/**
+	 * Called when a login phase completes.
+	 * 
+	 * @param phase
+	 *            One of the AppEngineMetrics.PHASE_ constants.
+	 * @param durationNanos
+	 *            Time the phase took.
+	 */
+	void onLoginPhase(String phase, long durationNanos);
+}
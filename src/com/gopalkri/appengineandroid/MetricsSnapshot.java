@@ -0,0 +1,187 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.Map;
+
+/**
+ * Immutable copy of the measurements of an AppEngineMetrics.
+ * 
+ * @author Gopal Sharma
+ */
+public class MetricsSnapshot {
+
+	private final Map<String, LatencyHistogram.Snapshot> mPathLatencies;
+
+	private final Map<String, LatencyHistogram.Snapshot> mLoginPhases;
+
+	private final LatencyHistogram.Snapshot mPoolWait;
+
+	private final long[] mStatusCounts;
+
+	private final long mFailures;
+
+	private final long mRequestBytes;
+
+	private final long mResponseBytes;
+
+	private final long mConnectionsReused;
+
+	private final long mConnectionsOpened;
+
+	private final long mSingleFlightShared;
+
+	private final int mConcurrencyLimit;
+
+	private final long mRequestsShed;
+
+	MetricsSnapshot(Map<String, LatencyHistogram.Snapshot> pathLatencies,
+			Map<String, LatencyHistogram.Snapshot> loginPhases,
+			LatencyHistogram.Snapshot poolWait, long[] statusCounts,
+			long failures, long requestBytes, long responseBytes,
+			long connectionsReused, long connectionsOpened,
+			long singleFlightShared, int concurrencyLimit, long requestsShed) {
+		mPathLatencies = pathLatencies;
+		mLoginPhases = loginPhases;
+		mPoolWait = poolWait;
+		mStatusCounts = statusCounts;
+		mFailures = failures;
+		mRequestBytes = requestBytes;
+		mResponseBytes = responseBytes;
+		mConnectionsReused = connectionsReused;
+		mConnectionsOpened = connectionsOpened;
+		mSingleFlightShared = singleFlightShared;
+		mConcurrencyLimit = concurrencyLimit;
+		mRequestsShed = requestsShed;
+	}
+
+	/**
+	 * @return Latencies of requests, by path.
+	 */
+	public Map<String, LatencyHistogram.Snapshot> getPathLatencies() {
+		return mPathLatencies;
+	}
+
+	/**
+	 * @return Durations of login phases, by AppEngineMetrics.PHASE_ constant.
+	 */
+	public Map<String, LatencyHistogram.Snapshot> getLoginPhases() {
+		return mLoginPhases;
+	}
+
+	/**
+	 * @return Time spent waiting for a pooled connection.
+	 */
+	public LatencyHistogram.Snapshot getPoolWait() {
+		return mPoolWait;
+	}
+
+	/**
+	 * @param statusCode
+	 *            HTTP status code.
+	 * @return Number of requests whose final response had statusCode.
+	 */
+	public long getStatusCount(int statusCode) {
+		if (statusCode < 0 || statusCode >= mStatusCounts.length) {
+			return 0;
+		}
+		return mStatusCounts[statusCode];
+	}
+
+	/**
+	 * @return Number of requests which failed without a response.
+	 */
+	public long getFailures() {
+		return mFailures;
+	}
+
+	/**
+	 * @return Request body bytes sent, after compression.
+	 */
+	public long getRequestBytes() {
+		return mRequestBytes;
+	}
+
+	/**
+	 * @return Response body bytes received over the network.
+	 */
+	public long getResponseBytes() {
+		return mResponseBytes;
+	}
+
+	/**
+	 * @return Number of times a pooled connection was reused.
+	 */
+	public long getConnectionsReused() {
+		return mConnectionsReused;
+	}
+
+	/**
+	 * @return Number of times a new connection had to be opened.
+	 */
+	public long getConnectionsOpened() {
+		return mConnectionsOpened;
+	}
+
+	/**
+	 * @return Number of GETs answered with the response of an identical GET
+	 *         in flight, i.e. requests saved by single flight mode.
+	 */
+	public long getSingleFlightShared() {
+		return mSingleFlightShared;
+	}
+
+	/**
+	 * @return Current concurrency limit, i.e. the number of requests allowed
+	 *         in flight at once.
+	 */
+	public int getConcurrencyLimit() {
+		return mConcurrencyLimit;
+	}
+
+	/**
+	 * @return Number of requests rejected rather than wait for a slot under
+	 *         the concurrency limit.
+	 */
+	public long getRequestsShed() {
+		return mRequestsShed;
+	}
+
+	/**
+	 * @return Share of requests sent on a reused connection, between 0 and 1.
+	 */
+	public double getConnectionReuseRatio() {
+		long total = mConnectionsReused + mConnectionsOpened;
+		return total == 0 ? 0 : (double) mConnectionsReused / total;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, LatencyHistogram.Snapshot> entry : mPathLatencies
+				.entrySet()) {
+			builder.append(entry.getKey()).append(": ").append(
+					entry.getValue()).append('\n');
+		}
+		for (Map.Entry<String, LatencyHistogram.Snapshot> entry : mLoginPhases
+				.entrySet()) {
+			builder.append("login ").append(entry.getKey()).append(": ")
+					.append(entry.getValue()).append('\n');
+		}
+		builder.append("pool wait: ").append(mPoolWait).append('\n');
+		builder.append("failures: ").append(mFailures).append(
+				", request bytes: ").append(mRequestBytes).append(
+				", response bytes: ").append(mResponseBytes).append(
+				", connection reuse: ").append(getConnectionReuseRatio())
+				.append(", single flight saved: ").append(mSingleFlightShared)
+				.append(", concurrency limit: ").append(mConcurrencyLimit)
+				.append(", shed: ").append(mRequestsShed);
+		return builder.toString();
+	}
+}
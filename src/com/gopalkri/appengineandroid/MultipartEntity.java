@@ -0,0 +1,248 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+
+/**
+ * multipart/form-data request body, as sent by an HTML form with file
+ * inputs. Parts are written one after the other straight from their source,
+ * so memory use does not depend on their size. If the length of every part
+ * is known the body is sent with a Content-Length, otherwise it is sent
+ * chunked.
+ * 
+ * @author Gopal Sharma
+ */
+public class MultipartEntity extends AbstractHttpEntity {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private static final byte[] DASHES = { '-', '-' };
+
+	private static final char[] BOUNDARY_CHARS = ("0123456789"
+			+ "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ")
+			.toCharArray();
+
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	/**
+	 * Boundary between parts, as bytes.
+	 */
+	private final byte[] mBoundary;
+
+	private final List<Part> mParts = new ArrayList<Part>();
+
+	public MultipartEntity() {
+		StringBuilder boundary = new StringBuilder("AppEngineAndroid");
+		for (int i = 0; i < 24; i++) {
+			boundary.append(BOUNDARY_CHARS[sRandom
+					.nextInt(BOUNDARY_CHARS.length)]);
+		}
+		mBoundary = ascii(boundary.toString());
+		setContentType("multipart/form-data; boundary=" + boundary);
+	}
+
+	/**
+	 * Adds a form field.
+	 * 
+	 * @param name
+	 *            Name of the field.
+	 * @param value
+	 *            Value of the field.
+	 * @return This object, so calls can be chained.
+	 */
+	public MultipartEntity addField(String name, String value) {
+		ByteArrayEntity body;
+		try {
+			body = new ByteArrayEntity(value.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			// Every platform has UTF-8.
+			throw new IllegalStateException(e);
+		}
+		body.setContentType("text/plain; charset=UTF-8");
+		return addPart(name, null, body);
+	}
+
+	/**
+	 * Adds a file, sent under its own name.
+	 * 
+	 * @param name
+	 *            Name of the field.
+	 * @param file
+	 *            File to send.
+	 * @param contentType
+	 *            Content-Type of the file, ex: "image/jpeg".
+	 * @return This object, so calls can be chained.
+	 */
+	public MultipartEntity addFile(String name, File file, String contentType) {
+		return addPart(name, file.getName(), new FileEntity(file, contentType));
+	}
+
+	/**
+	 * Adds a part whose body comes from any entity, ex: an InputStreamEntity
+	 * or a FileChannelEntity.
+	 * 
+	 * @param name
+	 *            Name of the field.
+	 * @param fileName
+	 *            File name sent with the part, or null for none.
+	 * @param body
+	 *            Body of the part. Its Content-Type is sent with it.
+	 * @return This object, so calls can be chained.
+	 */
+	public MultipartEntity addPart(String name, String fileName,
+			HttpEntity body) {
+		StringBuilder headers = new StringBuilder();
+		headers.append("Content-Disposition: form-data; name=\"").append(
+				quote(name)).append('"');
+		if (fileName != null) {
+			headers.append("; filename=\"").append(quote(fileName)).append(
+					'"');
+		}
+		headers.append("\r\n");
+		if (body.getContentType() != null) {
+			headers.append("Content-Type: ").append(
+					body.getContentType().getValue()).append("\r\n");
+		}
+		headers.append("\r\n");
+		try {
+			mParts.add(new Part(headers.toString().getBytes("UTF-8"), body));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Escapes a name the way browsers do, so that it cannot end the quoted
+	 * string it is sent in.
+	 */
+	private static String quote(String name) {
+		return name.replace("\"", "%22").replace("\r", "%0D").replace("\n",
+				"%0A");
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#writeTo(java.io.OutputStream)
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		for (Part part : mParts) {
+			out.write(DASHES);
+			out.write(mBoundary);
+			out.write(CRLF);
+			out.write(part.mHeaders);
+			part.mBody.writeTo(out);
+			out.write(CRLF);
+		}
+		out.write(DASHES);
+		out.write(mBoundary);
+		out.write(DASHES);
+		out.write(CRLF);
+		out.flush();
+	}
+
+	/**
+	 * @return Length of the body, or -1 if the length of a part is unknown.
+	 * @see org.apache.http.HttpEntity#getContentLength()
+	 */
+	public long getContentLength() {
+		// Delimiter and CRLFs around every part, then the close delimiter.
+		long length = 2 + mBoundary.length + 2 + 2;
+		for (Part part : mParts) {
+			long bodyLength = part.mBody.getContentLength();
+			if (bodyLength < 0) {
+				return -1;
+			}
+			length += 2 + mBoundary.length + 2 + part.mHeaders.length
+					+ bodyLength + 2;
+		}
+		return length;
+	}
+
+	/**
+	 * Not supported. The body can only be written.
+	 * 
+	 * @see org.apache.http.HttpEntity#getContent()
+	 */
+	public InputStream getContent() {
+		throw new UnsupportedOperationException(
+				"MultipartEntity can only be written.");
+	}
+
+	/**
+	 * @return Whether every part can be written more than once.
+	 * @see org.apache.http.HttpEntity#isRepeatable()
+	 */
+	public boolean isRepeatable() {
+		for (Part part : mParts) {
+			if (!part.mBody.isRepeatable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @see org.apache.http.HttpEntity#isStreaming()
+	 */
+	public boolean isStreaming() {
+		for (Part part : mParts) {
+			if (part.mBody.isStreaming()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Releases the streams of the parts which have one.
+	 * 
+	 * @see org.apache.http.entity.AbstractHttpEntity#consumeContent()
+	 */
+	@Override
+	public void consumeContent() throws IOException {
+		for (Part part : mParts) {
+			if (part.mBody.isStreaming()) {
+				part.mBody.consumeContent();
+			}
+		}
+	}
+
+	/**
+	 * A part's headers, already encoded, and its body.
+	 */
+	private static class Part {
+
+		final byte[] mHeaders;
+
+		final HttpEntity mBody;
+
+		Part(byte[] headers, HttpEntity body) {
+			mHeaders = headers;
+			mBody = body;
+		}
+	}
+}
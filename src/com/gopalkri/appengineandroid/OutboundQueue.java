@@ -0,0 +1,667 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.message.BasicNameValuePair;
+
+/**
+ * Durable queue of HTTP POSTs which are sent in the background, so that user
+ * actions never wait on the network. Queued POSTs are appended to a log file
+ * before enqueue returns and are replayed from it after the process dies.
+ * Each record in the log carries its length and a CRC32, so that a record
+ * torn by the process dying while writing it is dropped on replay, along
+ * with everything after it.
+ * 
+ * POSTs with the same key are sent one at a time, in order. A POST which has
+ * not been sent yet is dropped when a newer one with the same key is queued,
+ * since the newer one supersedes it. POSTs with different keys are sent in
+ * parallel, up to the configured concurrency.
+ * 
+ * Failed POSTs are retried with exponential backoff, which is kept per POST
+ * so that one failing POST does not hold up the others. A POST is dropped
+ * when the server answers with a client error other than 401, 408 or 429,
+ * since sending it again would not help, and when it has failed
+ * MAX_FAILURES times in a row. Only failures which say something about the
+ * POST itself count towards that: ones where the server answered, and ones
+ * where other POSTs got through in the meantime. Being offline never gets a
+ * POST dropped.
+ * 
+ * @author Gopal Sharma
+ */
+public class OutboundQueue {
+
+	private static final String TAG = "AppEngineAndroid";
+
+	/**
+	 * Log record for a queued POST.
+	 */
+	private static final byte RECORD_ADD = 1;
+
+	/**
+	 * Log record for a POST which was sent or superseded.
+	 */
+	private static final byte RECORD_DONE = 2;
+
+	/**
+	 * First delay before retrying after a failure.
+	 */
+	private static final long MIN_BACKOFF_MILLIS = 1000;
+
+	/**
+	 * Longest delay before retrying after failures.
+	 */
+	private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Number of failures in a row after which a POST is given up on. With
+	 * the backoff above, that is about half an hour of retrying.
+	 */
+	private static final int MAX_FAILURES = 15;
+
+	/**
+	 * Number of finished records in the log after which it is compacted.
+	 */
+	private static final int COMPACT_THRESHOLD = 512;
+
+	/**
+	 * AppEngine instance to send POSTs through.
+	 */
+	private final AppEngine mAppEngine;
+
+	/**
+	 * Log file holding the queue.
+	 */
+	private final File mLogFile;
+
+	/**
+	 * Worker threads sending POSTs.
+	 */
+	private final Thread[] mWorkers;
+
+	/**
+	 * Stream appending to mLogFile. Guarded by this.
+	 */
+	private DataOutputStream mLog;
+
+	/**
+	 * POSTs not yet sent, in the order they were queued. Guarded by this.
+	 */
+	private final LinkedHashMap<Long, Entry> mPending = new LinkedHashMap<Long, Entry>();
+
+	/**
+	 * Pending POST for each key which has not been handed to a worker yet.
+	 * Guarded by this.
+	 */
+	private final Map<String, Entry> mWaitingByKey = new HashMap<String, Entry>();
+
+	/**
+	 * Keys which have a POST being sent. Guarded by this.
+	 */
+	private final Set<String> mInFlightKeys = new HashSet<String>();
+
+	/**
+	 * Sequence number of the next queued POST. Guarded by this.
+	 */
+	private long mNextSequence = 0;
+
+	/**
+	 * Number of finished records in the log. Guarded by this.
+	 */
+	private int mFinishedRecords = 0;
+
+	/**
+	 * Number of POSTs delivered so far. Guarded by this.
+	 */
+	private long mDelivered = 0;
+
+	/**
+	 * Whether close has been called. Guarded by this.
+	 */
+	private boolean mClosed = false;
+
+	/**
+	 * Opens the queue, replaying POSTs left in logFile by an earlier process,
+	 * and starts sending them.
+	 * 
+	 * @param appEngine
+	 *            AppEngine instance to send POSTs through.
+	 * @param logFile
+	 *            File holding the queue, ex: one under Context.getFilesDir().
+	 * @param concurrency
+	 *            Most POSTs sent at the same time.
+	 * @throws IOException
+	 *             If the log could not be opened.
+	 */
+	public OutboundQueue(AppEngine appEngine, File logFile, int concurrency)
+			throws IOException {
+		mAppEngine = appEngine;
+		mLogFile = logFile;
+		replay();
+		compact();
+		mWorkers = new Thread[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			mWorkers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "AppEngineOutboundQueue-" + i);
+			mWorkers[i].setDaemon(true);
+			mWorkers[i].start();
+		}
+	}
+
+	/**
+	 * Queues a HTTP POST. Returns as soon as the POST is written to the log.
+	 * 
+	 * @param key
+	 *            Key of the POST. POSTs with the same key are sent in order,
+	 *            and an unsent one is dropped in favour of a newer one. Null
+	 *            if the POST is independent of all others.
+	 * @param path
+	 *            Path on which to perform HTTP POST. Ex: pass in "test" to do
+	 *            a HTTP POST on https://application-name/test.
+	 * @param postData
+	 *            PostData to add to HTTP POST.
+	 * @throws IOException
+	 *             If the POST could not be written to the log.
+	 */
+	public synchronized void enqueue(String key, String path,
+			List<NameValuePair> postData) throws IOException {
+		if (mClosed) {
+			throw new IOException("Queue is closed.");
+		}
+		Entry entry = new Entry(mNextSequence, key, path, postData);
+		// Built in full before anything is written, so that a POST which
+		// cannot be encoded leaves nothing behind in the log.
+		writeRecord(addRecord(entry), mLog);
+		mLog.flush();
+		mNextSequence++;
+		add(entry);
+		notifyAll();
+	}
+
+	/**
+	 * @return Number of POSTs not yet sent.
+	 */
+	public synchronized int size() {
+		return mPending.size();
+	}
+
+	/**
+	 * Retries failed POSTs right away instead of waiting for the backoff
+	 * to run out. Call this when connectivity comes back.
+	 */
+	public synchronized void flushNow() {
+		for (Entry entry : mPending.values()) {
+			entry.mBackoffMillis = 0;
+			entry.mRetryAt = 0;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Stops sending POSTs and closes the log. Unsent POSTs stay in the log
+	 * and are sent by the next OutboundQueue opened on it.
+	 */
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+		for (Thread worker : mWorkers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		synchronized (this) {
+			try {
+				mLog.close();
+			} catch (IOException e) {
+				AppEngineLog.w(TAG, "Failed to close outbound queue log.", e);
+			}
+		}
+	}
+
+	/**
+	 * Adds entry to the in memory queue, superseding an unsent entry with
+	 * the same key. Must hold the lock on this.
+	 */
+	private void add(Entry entry) throws IOException {
+		// Goes in first, so that a compaction triggered by finishing the
+		// superseded entry keeps it.
+		mPending.put(entry.mSequence, entry);
+		if (entry.mKey != null) {
+			Entry superseded = mWaitingByKey.put(entry.mKey, entry);
+			if (superseded != null) {
+				mPending.remove(superseded.mSequence);
+				finish(superseded);
+			}
+		}
+	}
+
+	/**
+	 * Worker loop: takes the oldest POST whose key is not being sent, sends
+	 * it, and records the outcome.
+	 */
+	private void work() {
+		while (true) {
+			Entry entry;
+			long deliveredBefore;
+			synchronized (this) {
+				entry = takeReady();
+				if (entry == null) {
+					return;
+				}
+				deliveredBefore = mDelivered;
+			}
+			int status = send(entry);
+			synchronized (this) {
+				entry.mInFlight = false;
+				if (entry.mKey != null) {
+					mInFlightKeys.remove(entry.mKey);
+				}
+				if (status >= 200 && status < 300) {
+					mDelivered++;
+					mPending.remove(entry.mSequence);
+					finishQuietly(entry);
+				} else if (isRefused(status)) {
+					AppEngineLog.e(TAG, "Dropping queued POST to "
+							+ entry.mPath + ", server answered " + status);
+					mPending.remove(entry.mSequence);
+					finishQuietly(entry);
+				} else if ((status != -1 || mDelivered != deliveredBefore)
+						&& ++entry.mFailures >= MAX_FAILURES) {
+					AppEngineLog.e(TAG, "Dropping queued POST to "
+							+ entry.mPath + " after " + entry.mFailures
+							+ " failures in a row.");
+					mPending.remove(entry.mSequence);
+					finishQuietly(entry);
+				} else {
+					entry.mBackoffMillis = entry.mBackoffMillis == 0
+							? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS,
+									entry.mBackoffMillis * 2);
+					entry.mRetryAt = System.currentTimeMillis()
+							+ entry.mBackoffMillis;
+					if (entry.mKey != null) {
+						if (mWaitingByKey.containsKey(entry.mKey)) {
+							// A newer POST with the same key was queued while
+							// this one was being sent, and supersedes it.
+							mPending.remove(entry.mSequence);
+							finishQuietly(entry);
+						} else {
+							mWaitingByKey.put(entry.mKey, entry);
+						}
+					}
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits for a POST which may be sent now, that is whose key is not being
+	 * sent and whose backoff has run out, and marks its key in flight. Must
+	 * hold the lock on this.
+	 * 
+	 * @return The POST, or null if the queue was closed.
+	 */
+	private Entry takeReady() {
+		while (!mClosed) {
+			long now = System.currentTimeMillis();
+			// Earliest time a backing off POST may be retried, 0 if none.
+			long wakeAt = 0;
+			for (Entry entry : mPending.values()) {
+				if (entry.mInFlight) {
+					continue;
+				}
+				if (entry.mKey != null && mInFlightKeys.contains(entry.mKey)) {
+					continue;
+				}
+				if (entry.mRetryAt > now) {
+					if (wakeAt == 0 || entry.mRetryAt < wakeAt) {
+						wakeAt = entry.mRetryAt;
+					}
+					continue;
+				}
+				if (entry.mKey != null) {
+					mInFlightKeys.add(entry.mKey);
+					mWaitingByKey.remove(entry.mKey);
+				}
+				entry.mInFlight = true;
+				return entry;
+			}
+			waitFor(wakeAt == 0 ? 0 : wakeAt - now);
+		}
+		return null;
+	}
+
+	/**
+	 * Waits on this for at most millis, or until notified if millis is 0.
+	 */
+	private void waitFor(long millis) {
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			mClosed = true;
+		}
+	}
+
+	/**
+	 * Sends entry.
+	 * 
+	 * @return Status code the server answered with, or -1 if the request
+	 *         failed without an answer.
+	 */
+	private int send(Entry entry) {
+		try {
+			int status = mAppEngine.doHttpPost(entry.mPath, entry.mPostData,
+					STATUS_HANDLER);
+			if ((status < 200 || status >= 300) && !isRefused(status)) {
+				AppEngineLog.w(TAG, "Queued POST to " + entry.mPath
+						+ " failed with " + status + ", will retry.");
+			}
+			return status;
+		} catch (HttpRequestException e) {
+			AppEngineLog.w(TAG, "Queued POST to " + entry.mPath
+					+ " failed, will retry.", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * @return Whether statusCode means the server refused a POST for good,
+	 *         so that sending it again would not help.
+	 */
+	private static boolean isRefused(int statusCode) {
+		return statusCode >= 400 && statusCode < 500 && statusCode != 401
+				&& statusCode != 408 && statusCode != 429;
+	}
+
+	/**
+	 * Records in the log that entry is done with, compacting the log when
+	 * enough such records have built up. Must hold the lock on this.
+	 */
+	private void finish(Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_DONE);
+		out.writeLong(entry.mSequence);
+		writeRecord(bytes.toByteArray(), mLog);
+		mLog.flush();
+		if (++mFinishedRecords >= COMPACT_THRESHOLD) {
+			compact();
+		}
+	}
+
+	/**
+	 * Same as finish, but only logs failures. Must hold the lock on this.
+	 */
+	private void finishQuietly(Entry entry) {
+		try {
+			finish(entry);
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Failed to log finished POST.", e);
+		}
+	}
+
+	/**
+	 * Reads the log, rebuilding the queue from POSTs which were added but
+	 * never finished. Reading stops at the first record which is cut short
+	 * or corrupt; the compaction which follows drops it and everything after
+	 * it from the log.
+	 */
+	private void replay() throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mLogFile)));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		LinkedHashMap<Long, Entry> added = new LinkedHashMap<Long, Entry>();
+		long size = mLogFile.length();
+		long good = 0;
+		CRC32 crc = new CRC32();
+		try {
+			while (true) {
+				int length = in.readInt();
+				// A length running past the end of the log is as torn as a
+				// bad checksum, and must not be allocated.
+				if (length < 0 || length > size - good - 12) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				long checksum = in.readLong();
+				crc.reset();
+				crc.update(payload);
+				if (crc.getValue() != checksum
+						|| !readRecord(payload, added)) {
+					break;
+				}
+				good += 4 + length + 8;
+			}
+		} catch (EOFException e) {
+			// End of log, or a record cut short by the process dying while
+			// writing it. Either way, everything before it is good.
+		} finally {
+			in.close();
+		}
+		if (good < size) {
+			AppEngineLog.w(TAG, "Dropping corrupt records at the end of "
+					+ mLogFile);
+		}
+		synchronized (this) {
+			for (Entry entry : added.values()) {
+				if (entry.mKey != null) {
+					mWaitingByKey.put(entry.mKey, entry);
+				}
+				mPending.put(entry.mSequence, entry);
+			}
+			// Drop entries superseded by a later one with the same key.
+			Iterator<Entry> it = mPending.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.mKey != null
+						&& mWaitingByKey.get(entry.mKey) != entry) {
+					it.remove();
+				}
+			}
+		}
+		AppEngineLog.i(TAG, "Replayed " + mPending.size() + " queued POSTs.");
+	}
+
+	/**
+	 * Rewrites the log with just the pending POSTs, and reopens it for
+	 * appending.
+	 */
+	private synchronized void compact() throws IOException {
+		if (mLog != null) {
+			mLog.close();
+		}
+		File temp = new File(mLogFile.getPath() + ".tmp");
+		mLog = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		for (Entry entry : mPending.values()) {
+			writeRecord(addRecord(entry), mLog);
+		}
+		mLog.close();
+		if (!temp.renameTo(mLogFile)) {
+			throw new IOException("Could not replace " + mLogFile);
+		}
+		mLog = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(mLogFile, true)));
+		mFinishedRecords = 0;
+	}
+
+	/**
+	 * Reads a record written by addRecord or finish into added.
+	 * 
+	 * @return Whether the record was understood.
+	 */
+	private boolean readRecord(byte[] payload, Map<Long, Entry> added)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		byte type = in.readByte();
+		long sequence = in.readLong();
+		if (type == RECORD_ADD) {
+			String key = in.readBoolean() ? readString(in) : null;
+			String path = readString(in);
+			int count = in.readInt();
+			List<NameValuePair> postData = new ArrayList<NameValuePair>(
+					Math.min(count, 64));
+			for (int i = 0; i < count; i++) {
+				postData.add(new BasicNameValuePair(readString(in),
+						readString(in)));
+			}
+			added.put(sequence, new Entry(sequence, key, path, postData));
+		} else if (type == RECORD_DONE) {
+			added.remove(sequence);
+		} else {
+			return false;
+		}
+		mNextSequence = Math.max(mNextSequence, sequence + 1);
+		return true;
+	}
+
+	/**
+	 * @return The add record for entry.
+	 */
+	private static byte[] addRecord(Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_ADD);
+		out.writeLong(entry.mSequence);
+		out.writeBoolean(entry.mKey != null);
+		if (entry.mKey != null) {
+			writeString(entry.mKey, out);
+		}
+		writeString(entry.mPath, out);
+		out.writeInt(entry.mPostData.size());
+		for (NameValuePair pair : entry.mPostData) {
+			writeString(pair.getName(), out);
+			writeString(pair.getValue() == null ? "" : pair.getValue(), out);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes payload as a record: its length, itself and its CRC32.
+	 */
+	private static void writeRecord(byte[] payload, DataOutputStream out)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeLong(crc.getValue());
+	}
+
+	/**
+	 * Writes value as its length in bytes followed by its UTF-8 encoding.
+	 * Unlike DataOutputStream.writeUTF, this takes values of any length.
+	 */
+	private static void writeString(String value, DataOutputStream out)
+			throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a value written by writeString.
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new EOFException("String runs past the end of its record.");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Returns the status code of a response.
+	 */
+	private static final ResponseHandler<Integer> STATUS_HANDLER = new ResponseHandler<Integer>() {
+		public Integer handleResponse(HttpResponse response) {
+			return response.getStatusLine().getStatusCode();
+		}
+	};
+
+	/**
+	 * A queued POST.
+	 */
+	private static class Entry {
+
+		final long mSequence;
+
+		final String mKey;
+
+		final String mPath;
+
+		final List<NameValuePair> mPostData;
+
+		/**
+		 * Whether a worker is sending this entry. Guarded by the queue.
+		 */
+		boolean mInFlight = false;
+
+		/**
+		 * Failures in a row counting towards MAX_FAILURES. Guarded by the
+		 * queue.
+		 */
+		int mFailures = 0;
+
+		/**
+		 * Current retry delay. Guarded by the queue.
+		 */
+		long mBackoffMillis = 0;
+
+		/**
+		 * The entry is not sent before this time. Guarded by the queue.
+		 */
+		long mRetryAt = 0;
+
+		Entry(long sequence, String key, String path,
+				List<NameValuePair> postData) {
+			mSequence = sequence;
+			mKey = key;
+			mPath = path;
+			mPostData = postData;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Bounded work queue of the asynchronous worker pool, which hands out
+ * AsyncRequests by RequestPriority.rank rather than in arrival order. Other
+ * tasks have normal priority.
+ * 
+ * @author Gopal Sharma
+ */
+class PriorityTaskQueue extends PriorityBlockingQueue<Runnable> {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = -3189406720564813905L;
+
+	private static final Comparator<Runnable> BY_RANK = new Comparator<Runnable>() {
+		public int compare(Runnable lhs, Runnable rhs) {
+			long left = ((RankedTask) lhs).mRank;
+			long right = ((RankedTask) rhs).mRank;
+			return left < right ? -1 : (left == right ? 0 : 1);
+		}
+	};
+
+	private final int mCapacity;
+
+	/**
+	 * @param capacity
+	 *            Most tasks the queue holds. Further ones are rejected.
+	 */
+	PriorityTaskQueue(int capacity) {
+		super(Math.max(1, capacity), BY_RANK);
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Queues task by its rank, unless the queue is full. Synchronized so
+	 * that concurrent offers cannot overfill it.
+	 * 
+	 * @see java.util.concurrent.PriorityBlockingQueue#offer(java.lang.Object)
+	 */
+	@Override
+	public synchronized boolean offer(Runnable task) {
+		if (size() >= mCapacity) {
+			return false;
+		}
+		if (task instanceof RankedTask) {
+			return super.offer(task);
+		}
+		RequestPriority priority = RequestPriority.NORMAL;
+		if (task instanceof AsyncRequest<?>) {
+			priority = ((AsyncRequest<?>) task).getPriority();
+		}
+		return super.offer(new RankedTask(task, priority.rank(System
+				.nanoTime())));
+	}
+
+	/**
+	 * Task in the queue, with its rank.
+	 */
+	private static class RankedTask implements Runnable {
+
+		private final Runnable mTask;
+
+		final long mRank;
+
+		RankedTask(Runnable task, long rank) {
+			mTask = task;
+			mRank = rank;
+		}
+
+		public void run() {
+			mTask.run();
+		}
+	}
+
+}
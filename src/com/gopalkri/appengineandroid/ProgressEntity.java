@@ -0,0 +1,94 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Request body which tells a ProgressListener as it is written, and aborts
+ * its request if the listener cancels.
+ * 
+ * @author Gopal Sharma
+ */
+class ProgressEntity extends HttpEntityWrapper {
+
+	private final ProgressListener mListener;
+
+	/**
+	 * Request this is the body of. Aborted on cancel, so that it is not
+	 * retried.
+	 */
+	private final HttpUriRequest mRequest;
+
+	ProgressEntity(HttpEntity wrapped, ProgressListener listener,
+			HttpUriRequest request) {
+		super(wrapped);
+		mListener = listener;
+		mRequest = request;
+	}
+
+	/**
+	 * @see org.apache.http.entity.HttpEntityWrapper#writeTo(java.io.OutputStream)
+	 */
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		ProgressOutputStream progress = new ProgressOutputStream(out,
+				getContentLength());
+		wrappedEntity.writeTo(progress);
+		progress.flush();
+	}
+
+	/**
+	 * Counts the bytes written through it and reports them.
+	 */
+	private class ProgressOutputStream extends FilterOutputStream {
+
+		private final long mTotal;
+
+		private long mSent = 0;
+
+		ProgressOutputStream(OutputStream out, long total) {
+			super(out);
+			mTotal = total;
+		}
+
+		/**
+		 * @see java.io.FilterOutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			report(1);
+		}
+
+		/**
+		 * Writes through in one go, rather than byte by byte as
+		 * FilterOutputStream does.
+		 * 
+		 * @see java.io.FilterOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			report(len);
+		}
+
+		private void report(int written) throws IOException {
+			mSent += written;
+			if (!mListener.onProgress(mSent, mTotal)) {
+				mRequest.abort();
+				throw new InterruptedIOException("Upload cancelled.");
+			}
+		}
+	}
+}
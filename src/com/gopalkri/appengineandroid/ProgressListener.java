@@ -0,0 +1,33 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Told about the progress of an upload or a download. Set one with
+ * RequestOptions.setProgressListener.
+ * 
+ * @author Gopal Sharma
+ */
+public interface ProgressListener {
+
+	/**
+	 * Called each time a buffer of the body has been transferred. For
+	 * uploads it is called on the thread sending the request, and if the
+	 * request is retried, the count starts again from 0. For downloads it
+	 * counts the bytes in the file, including any from an earlier attempt
+	 * which is being resumed, and when a download is split it is called
+	 * from several threads, one at a time.
+	 * 
+	 * @param bytesTransferred
+	 *            Bytes of the body transferred so far.
+	 * @param totalBytes
+	 *            Length of the body, or -1 if unknown.
+	 * @return True to carry on, false to cancel the transfer. A cancelled
+	 *         transfer is aborted and fails with a HttpRequestException.
+	 */
+	boolean onProgress(long bytesTransferred, long totalBytes);
+
+}
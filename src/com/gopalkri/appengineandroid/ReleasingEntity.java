@@ -0,0 +1,145 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Entity which runs a task once it is done with, i.e. once its content has
+ * been read to the end, closed, consumed or written out, or reading it has
+ * failed, ex: because the request was aborted. Used to hold on to resources
+ * for as long as the connection the content streams from is in use.
+ * 
+ * @author Gopal Sharma
+ */
+class ReleasingEntity extends HttpEntityWrapper {
+
+	private final Runnable mRelease;
+
+	private final AtomicBoolean mReleased = new AtomicBoolean(false);
+
+	/**
+	 * @param wrapped
+	 *            Entity to wrap.
+	 * @param release
+	 *            Task to run once wrapped is done with. Runs exactly once.
+	 */
+	ReleasingEntity(HttpEntity wrapped, Runnable release) {
+		super(wrapped);
+		mRelease = release;
+	}
+
+	/**
+	 * @see org.apache.http.entity.HttpEntityWrapper#getContent()
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		try {
+			return new ReleasingInputStream(super.getContent());
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.apache.http.entity.HttpEntityWrapper#writeTo(java.io.OutputStream)
+	 */
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		try {
+			super.writeTo(out);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @see org.apache.http.entity.HttpEntityWrapper#consumeContent()
+	 */
+	@Override
+	public void consumeContent() throws IOException {
+		try {
+			super.consumeContent();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Runs mRelease, unless it has run already.
+	 */
+	void release() {
+		if (mReleased.compareAndSet(false, true)) {
+			mRelease.run();
+		}
+	}
+
+	/**
+	 * Content of the entity, which releases it at its end, when closed or
+	 * when reading fails.
+	 */
+	private class ReleasingInputStream extends FilterInputStream {
+
+		ReleasingInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * @see java.io.FilterInputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			try {
+				int b = super.read();
+				if (b == -1) {
+					release();
+				}
+				return b;
+			} catch (IOException e) {
+				release();
+				throw e;
+			}
+		}
+
+		/**
+		 * @see java.io.FilterInputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			try {
+				int read = super.read(buffer, offset, length);
+				if (read == -1) {
+					release();
+				}
+				return read;
+			} catch (IOException e) {
+				release();
+				throw e;
+			}
+		}
+
+		/**
+		 * @see java.io.FilterInputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				release();
+			}
+		}
+	}
+}
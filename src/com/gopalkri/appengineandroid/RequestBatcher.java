@@ -0,0 +1,291 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+
+/**
+ * Coalesces small form POSTs into batches which are sent to the application
+ * as a single request, saving the per request HTTPS and App Engine overhead.
+ * Requests are collected until either the batch window has passed since the
+ * first one, or the batch is full, whichever comes first.
+ * 
+ * The application must serve a batch handler at the batch path. See
+ * BatchHandler in gopalkri-testing-appengine/helloworld.py for the reference
+ * implementation and the wire format.
+ * 
+ * @author Gopal Sharma
+ */
+public class RequestBatcher {
+
+	/**
+	 * Default path of the batch handler.
+	 */
+	public static final String DEFAULT_BATCH_PATH = "_batch";
+
+	/**
+	 * AppEngine instance batches are sent through.
+	 */
+	private final AppEngine mAppEngine;
+
+	/**
+	 * Path of the batch handler.
+	 */
+	private final String mBatchPath;
+
+	/**
+	 * Longest time a request waits for others to join its batch.
+	 */
+	private final long mWindowMillis;
+
+	/**
+	 * Most requests sent in one batch.
+	 */
+	private final int mMaxBatchSize;
+
+	/**
+	 * Timer which flushes batches at the end of their window.
+	 */
+	private final ScheduledExecutorService mTimer;
+
+	/**
+	 * Requests waiting to be sent. Guarded by this.
+	 */
+	private List<PendingRequest> mPending = new ArrayList<PendingRequest>();
+
+	/**
+	 * Timer task which flushes the pending requests at the end of their
+	 * window, null if none is scheduled. Guarded by this.
+	 */
+	private ScheduledFuture<?> mWindow = null;
+
+	/**
+	 * Whether close was called. Guarded by this.
+	 */
+	private boolean mClosed = false;
+
+	/**
+	 * @param appEngine
+	 *            AppEngine instance to send batches through.
+	 * @param batchPath
+	 *            Path of the batch handler. Ex: DEFAULT_BATCH_PATH.
+	 * @param windowMillis
+	 *            Longest time a request waits for others to join its batch.
+	 * @param maxBatchSize
+	 *            Most requests sent in one batch.
+	 */
+	public RequestBatcher(AppEngine appEngine, String batchPath,
+			long windowMillis, int maxBatchSize) {
+		mAppEngine = appEngine;
+		mBatchPath = batchPath;
+		mWindowMillis = windowMillis;
+		mMaxBatchSize = maxBatchSize;
+		mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AppEngineRequestBatcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues a HTTP POST of postData to path for the next batch.
+	 * 
+	 * @param path
+	 *            Path on which to perform HTTP POST. Ex: pass in "test" to do
+	 *            a HTTP POST on https://application-name/test.
+	 * @param postData
+	 *            PostData to add to HTTP POST.
+	 * @return Future for the response to this request.
+	 */
+	public Future<BatchResponse> post(String path, List<NameValuePair> postData) {
+		PendingRequest request = new PendingRequest(path, URLEncodedUtils
+				.format(postData, "UTF-8"));
+		List<PendingRequest> full = null;
+		synchronized (this) {
+			mPending.add(request);
+			if (mPending.size() >= mMaxBatchSize) {
+				full = takePending();
+			} else if (mPending.size() == 1 && !mClosed) {
+				mWindow = mTimer.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, mWindowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (full != null) {
+			send(full);
+		}
+		return request.mFuture;
+	}
+
+	/**
+	 * Sends all queued requests right away.
+	 */
+	public void flush() {
+		List<PendingRequest> batch;
+		synchronized (this) {
+			batch = takePending();
+		}
+		if (!batch.isEmpty()) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * Sends all queued requests and stops the batch timer. Requests posted
+	 * after this are only sent by explicit calls to flush.
+	 */
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+		}
+		flush();
+		mTimer.shutdown();
+	}
+
+	/**
+	 * Removes and returns all pending requests, and cancels their window.
+	 * Must hold the lock on this.
+	 */
+	private List<PendingRequest> takePending() {
+		if (mWindow != null) {
+			mWindow.cancel(false);
+			mWindow = null;
+		}
+		List<PendingRequest> batch = mPending;
+		mPending = new ArrayList<PendingRequest>();
+		return batch;
+	}
+
+	/**
+	 * Sends batch as one request, and completes the futures of its requests
+	 * from the response.
+	 */
+	private void send(final List<PendingRequest> batch) {
+		List<NameValuePair> postData = new ArrayList<NameValuePair>(
+				batch.size() * 2 + 1);
+		postData.add(new BasicNameValuePair("count", Integer.toString(batch
+				.size())));
+		for (int i = 0; i < batch.size(); i++) {
+			PendingRequest request = batch.get(i);
+			postData.add(new BasicNameValuePair("path" + i, request.mPath));
+			postData.add(new BasicNameValuePair("body" + i, request.mBody));
+		}
+		mAppEngine.doHttpPostAsync(mBatchPath, postData,
+				new BatchResponseHandler(batch.size()),
+				new AppEngineCallback<List<BatchResponse>>() {
+					public void onSuccess(List<BatchResponse> responses) {
+						for (int i = 0; i < batch.size(); i++) {
+							batch.get(i).mFuture.setResult(responses.get(i));
+						}
+					}
+
+					public void onFailure(AppEngineException e) {
+						for (PendingRequest request : batch) {
+							request.mFuture.setFailure(e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * A request waiting to be sent.
+	 */
+	private static class PendingRequest {
+
+		final String mPath;
+
+		final String mBody;
+
+		final ResultFuture<BatchResponse> mFuture = new ResultFuture<BatchResponse>();
+
+		PendingRequest(String path, String body) {
+			mPath = path;
+			mBody = body;
+		}
+	}
+
+	/**
+	 * Splits a batch response into the responses to its requests. The batch
+	 * response body is a sequence of records, one per request and in the same
+	 * order, each consisting of a header line "STATUS LENGTH CONTENT-TYPE\n"
+	 * followed by LENGTH bytes of body.
+	 */
+	private static class BatchResponseHandler extends
+			ResponseBodyHandler<List<BatchResponse>> {
+
+		/**
+		 * Number of requests in the batch.
+		 */
+		private final int mCount;
+
+		BatchResponseHandler(int count) {
+			mCount = count;
+		}
+
+		/**
+		 * @see com.gopalkri.appengineandroid.ResponseBodyHandler#handleBody(org.apache.http.HttpResponse,
+		 *      java.io.InputStream, java.lang.String)
+		 */
+		@Override
+		protected List<BatchResponse> handleBody(HttpResponse response,
+				InputStream body, String charset) throws IOException {
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				throw new IOException("Batch request failed: "
+						+ response.getStatusLine());
+			}
+			DataInputStream in = new DataInputStream(body);
+			List<BatchResponse> responses = new ArrayList<BatchResponse>(
+					mCount);
+			for (int i = 0; i < mCount; i++) {
+				String[] header = readLine(in).split(" ", 3);
+				if (header.length < 2) {
+					throw new IOException("Malformed batch record header.");
+				}
+				byte[] data = new byte[Integer.parseInt(header[1])];
+				in.readFully(data);
+				responses.add(new BatchResponse(Integer.parseInt(header[0]),
+						header.length > 2 ? header[2] : null, data));
+			}
+			return responses;
+		}
+
+		/**
+		 * Reads an ASCII line terminated by '\n'.
+		 */
+		private static String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b == -1) {
+					throw new IOException("Batch response ended early.");
+				}
+				line.write(b);
+			}
+			return line.toString("US-ASCII");
+		}
+	}
+}
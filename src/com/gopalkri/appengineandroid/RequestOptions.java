@@ -0,0 +1,175 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Per request settings which override the AppEngineConfig defaults for a
+ * single call. A null RequestOptions, or one left untouched, means the
+ * defaults apply.
+ * 
+ * @author Gopal Sharma
+ */
+public class RequestOptions {
+
+	/**
+	 * Whether to gzip the request body. Null to compress only bodies larger
+	 * than the configured threshold.
+	 */
+	private Boolean mCompressBody = null;
+
+	/**
+	 * Whether the request may safely be sent more than once.
+	 */
+	private boolean mIdempotent = false;
+
+	/**
+	 * Time budget for the whole call, 0 for the configured default.
+	 */
+	private long mDeadlineMillis = 0;
+
+	/**
+	 * Listener told about the progress of the request body. Null if none.
+	 */
+	private ProgressListener mProgressListener = null;
+
+	/**
+	 * Most segments a download is split into.
+	 */
+	private int mDownloadSegments = 1;
+
+	private RequestPriority mPriority = RequestPriority.NORMAL;
+
+	/**
+	 * @return Whether the request body is gzipped, or null if the configured
+	 *         threshold decides.
+	 */
+	public Boolean getCompressBody() {
+		return mCompressBody;
+	}
+
+	/**
+	 * @param compressBody
+	 *            Whether to gzip the request body. Null to compress only
+	 *            bodies larger than the configured threshold.
+	 * @return This object, so calls can be chained.
+	 */
+	public RequestOptions setCompressBody(Boolean compressBody) {
+		mCompressBody = compressBody;
+		return this;
+	}
+
+	/**
+	 * @return Whether the request was marked as safe to send more than once.
+	 */
+	public boolean isIdempotent() {
+		return mIdempotent;
+	}
+
+	/**
+	 * Marks the request as safe to send more than once, so that it is
+	 * retried according to the RetryPolicy. GET requests always are.
+	 * 
+	 * @param idempotent
+	 *            Whether the request may safely be sent more than once.
+	 * @return This object, so calls can be chained.
+	 */
+	public RequestOptions setIdempotent(boolean idempotent) {
+		mIdempotent = idempotent;
+		return this;
+	}
+
+	/**
+	 * @return Time budget in milliseconds for the whole call, or 0 to use
+	 *         the configured default.
+	 */
+	public long getDeadlineMillis() {
+		return mDeadlineMillis;
+	}
+
+	/**
+	 * Sets the time budget for the whole call: connecting, logging in again
+	 * if needed, retries and, when a ResponseHandler is passed, reading the
+	 * response. If it runs out, the request is aborted and a
+	 * RequestTimeoutException is thrown.
+	 * 
+	 * @param deadlineMillis
+	 *            Time budget in milliseconds, or 0 to use the configured
+	 *            default.
+	 * @return This object, so calls can be chained.
+	 */
+	public RequestOptions setDeadlineMillis(long deadlineMillis) {
+		mDeadlineMillis = deadlineMillis;
+		return this;
+	}
+
+	/**
+	 * @return Listener told about the progress of the request body, or null.
+	 */
+	public ProgressListener getProgressListener() {
+		return mProgressListener;
+	}
+
+	/**
+	 * Sets a listener which is told as the request body is sent, or as a
+	 * download is written to its file, and which can cancel the transfer.
+	 * Only used by the doHttpPost methods which take a HttpEntity and by the
+	 * doHttpDownload methods.
+	 * 
+	 * @param progressListener
+	 *            Listener to tell, or null for none.
+	 * @return This object, so calls can be chained.
+	 */
+	public RequestOptions setProgressListener(
+			ProgressListener progressListener) {
+		mProgressListener = progressListener;
+		return this;
+	}
+
+	/**
+	 * @return Most segments a download is split into.
+	 */
+	public int getDownloadSegments() {
+		return mDownloadSegments;
+	}
+
+	/**
+	 * Lets doHttpDownload split a large resource into up to downloadSegments
+	 * byte ranges, fetched in parallel over separate connections. Segments
+	 * are at least 1MB, and the server must send an ETag or Last-Modified
+	 * date, so that all of them come from the same version of the resource.
+	 * 
+	 * @param downloadSegments
+	 *            Most segments to fetch at once. 1, the default, downloads
+	 *            in one piece.
+	 * @return This object, so calls can be chained.
+	 */
+	public RequestOptions setDownloadSegments(int downloadSegments) {
+		mDownloadSegments = downloadSegments;
+		return this;
+	}
+
+	/**
+	 * @return Priority of the request.
+	 */
+	public RequestPriority getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * Sets the priority class of the request, which decides how it waits for
+	 * a connection slot and, if asynchronous, for a worker thread. See
+	 * RequestPriority.
+	 * 
+	 * @param priority
+	 *            Priority of the request. The default is NORMAL.
+	 * @return This object, so calls can be chained.
+	 */
+	public RequestOptions setPriority(RequestPriority priority) {
+		mPriority = priority;
+		return this;
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Priority classes of requests. Pass one to RequestOptions.setPriority.
+ * 
+ * Requests waiting for a connection slot, or for an asynchronous worker, go
+ * in order of priority, but a request only lets higher priority requests
+ * which arrived up to its class's grace period after it go ahead. A request
+ * that has waited longer than that goes next, so that background work still
+ * makes progress under a steady stream of interactive requests. Each class
+ * may also only take up a share of the slots, which keeps slots free for
+ * higher priority work arriving while a bulk job is running.
+ * 
+ * @author Gopal Sharma
+ */
+public enum RequestPriority {
+
+	/**
+	 * Requests a user is waiting on, ex: loading a screen. May use every slot.
+	 */
+	INTERACTIVE(0, 1),
+
+	/**
+	 * The default. May use three quarters of the slots, and gives way to
+	 * interactive requests for up to half a second.
+	 */
+	NORMAL(500, 0.75),
+
+	/**
+	 * Background work, ex: a sync or a large download. May use half of the
+	 * slots, and gives way to other requests for up to two seconds, well
+	 * within the connection pool timeout it may wait for at most.
+	 */
+	BULK(2000, 0.5);
+
+	/**
+	 * Time for which requests of this class let higher priority ones go
+	 * ahead.
+	 */
+	private final long mGraceNanos;
+
+	/**
+	 * Share of the slots requests of this class may take up.
+	 */
+	private final double mShare;
+
+	private RequestPriority(long graceMillis, double share) {
+		mGraceNanos = graceMillis * 1000000L;
+		mShare = share;
+	}
+
+	/**
+	 * @param queuedAtNanos
+	 *            System.nanoTime() at which a request of this class started
+	 *            waiting.
+	 * @return Rank of the request among waiting requests; the lowest goes
+	 *         first.
+	 */
+	long rank(long queuedAtNanos) {
+		return queuedAtNanos + mGraceNanos;
+	}
+
+	/**
+	 * @param slots
+	 *            Total number of slots.
+	 * @return Number of the slots requests of this class may take up, at
+	 *         least one.
+	 */
+	int getSlots(int slots) {
+		return Math.max(1, (int) (slots * mShare));
+	}
+
+}
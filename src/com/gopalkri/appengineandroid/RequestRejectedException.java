@@ -0,0 +1,26 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Thrown instead of sending a request when too many requests are already
+ * waiting for a slot under the concurrency limit, or when the request waited
+ * for one longer than the connection pool timeout.
+ * 
+ * @author Gopal Sharma
+ */
+public class RequestRejectedException extends HttpRequestException {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = 5529716409264337146L;
+
+	public RequestRejectedException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,25 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Thrown when a request does not complete within its deadline. Work still in
+ * flight for the request has been aborted.
+ * 
+ * @author Gopal Sharma
+ */
+public class RequestTimeoutException extends HttpRequestException {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = 2231878620958311722L;
+
+	public RequestTimeoutException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * ResponseHandler which hands the response body to handleBody as a stream,
+ * along with its charset, and always consumes the entity afterwards so that
+ * the connection can be reused, even if handleBody fails or stops reading
+ * early.
+ * 
+ * @author Gopal Sharma
+ */
+public abstract class ResponseBodyHandler<T> implements ResponseHandler<T> {
+
+	/**
+	 * Charset assumed when the response does not specify one.
+	 */
+	public static final String DEFAULT_CHARSET = "UTF-8";
+
+	/**
+	 * Empty body passed to handleBody for responses without an entity.
+	 */
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * @see org.apache.http.client.ResponseHandler#handleResponse(org.apache.http.HttpResponse)
+	 */
+	public final T handleResponse(HttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return handleBody(response, new ByteArrayInputStream(EMPTY),
+					DEFAULT_CHARSET);
+		}
+		try {
+			String charset = EntityUtils.getContentCharSet(entity);
+			InputStream body = entity.getContent();
+			return handleBody(response, body,
+					charset == null ? DEFAULT_CHARSET : charset);
+		} finally {
+			entity.consumeContent();
+		}
+	}
+
+	/**
+	 * Reads the response body. There is no need to close body.
+	 * 
+	 * @param response
+	 *            Response being handled, for its status line and headers.
+	 * @param body
+	 *            Stream of the response body.
+	 * @param charset
+	 *            Charset of the body, from the Content-Type header, or
+	 *            DEFAULT_CHARSET if it has none.
+	 * @return Result of handling the response.
+	 * @throws IOException
+	 *             If the body could not be read or handled.
+	 */
+	protected abstract T handleBody(HttpResponse response, InputStream body,
+			String charset) throws IOException;
+
+	/**
+	 * @param response
+	 *            Response to get the length of.
+	 * @return Length of the response body as announced by the server, or -1
+	 *         if unknown.
+	 */
+	protected static long getContentLength(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		return entity == null ? 0 : entity.getContentLength();
+	}
+}
@@ -0,0 +1,770 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Cache for responses to HTTP GET requests, with a bounded in memory LRU tier
+ * and an optional size capped tier on disk. Honours Cache-Control and Expires,
+ * and keeps ETag and Last-Modified so that stale entries can be revalidated
+ * with a conditional request instead of downloaded again.
+ * 
+ * Entries are keyed by account as well as URL, so one user's responses are
+ * never served to another.
+ * 
+ * @author Gopal Sharma
+ */
+public class ResponseCache {
+
+	private static final String TAG = "AppEngineAndroid";
+
+	/**
+	 * Version of the disk entry format. Entries with another version are
+	 * ignored.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Suffix of the files entries are written to before they are renamed into
+	 * place.
+	 */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Headers which are never stored: cookies, so that session cookies never
+	 * end up in the cache, headers describing the body as it was sent rather
+	 * than as it is stored, and hop-by-hop headers.
+	 */
+	private static final Set<String> UNSTORABLE_HEADERS = new HashSet<String>(
+			Arrays.asList("set-cookie", "set-cookie2", "content-length",
+					"content-encoding", "connection", "keep-alive",
+					"proxy-authenticate", "proxy-authorization", "te",
+					"trailer", "trailers", "transfer-encoding", "upgrade"));
+
+	/**
+	 * Bytes held by the in memory tier.
+	 */
+	private final long mMemoryMaxBytes;
+
+	/**
+	 * Directory of the disk tier. Null if there is none.
+	 */
+	private final File mDirectory;
+
+	/**
+	 * Bytes held by the disk tier.
+	 */
+	private final long mDiskMaxBytes;
+
+	/**
+	 * Largest response body which is cached.
+	 */
+	private final int mMaxEntryBytes;
+
+	/**
+	 * In memory tier, least recently used first. Guarded by this.
+	 */
+	private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/**
+	 * Bytes currently held by mMemory. Guarded by this.
+	 */
+	private long mMemoryBytes = 0;
+
+	/**
+	 * Guards the files of the disk tier and mDiskBytes. Entries are read and
+	 * written without holding any lock; a written entry is renamed into place
+	 * while holding this. Never acquire the lock on this while holding it.
+	 */
+	private final Object mDiskLock = new Object();
+
+	/**
+	 * Bytes currently held by the disk tier. Guarded by mDiskLock.
+	 */
+	private long mDiskBytes = 0;
+
+	private final AtomicLong mHits = new AtomicLong();
+
+	private final AtomicLong mMisses = new AtomicLong();
+
+	private final AtomicLong mRevalidations = new AtomicLong();
+
+	/**
+	 * Creates a cache held in memory only.
+	 * 
+	 * @param memoryMaxBytes
+	 *            Bytes held in memory.
+	 */
+	public ResponseCache(long memoryMaxBytes) {
+		this(memoryMaxBytes, null, 0);
+	}
+
+	/**
+	 * Creates a cache held in memory and on disk.
+	 * 
+	 * @param memoryMaxBytes
+	 *            Bytes held in memory.
+	 * @param directory
+	 *            Directory to keep the disk tier in, ex: a directory under
+	 *            Context.getCacheDir(). Created if it does not exist.
+	 * @param diskMaxBytes
+	 *            Bytes held on disk.
+	 */
+	public ResponseCache(long memoryMaxBytes, File directory, long diskMaxBytes) {
+		mMemoryMaxBytes = memoryMaxBytes;
+		mDirectory = directory;
+		mDiskMaxBytes = diskMaxBytes;
+		mMaxEntryBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(
+				memoryMaxBytes, diskMaxBytes) / 8);
+		if (mDirectory != null) {
+			mDirectory.mkdirs();
+			File[] files = mDirectory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.getName().endsWith(TEMP_SUFFIX)) {
+						// Left behind by a write that never finished.
+						file.delete();
+					} else {
+						mDiskBytes += file.length();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Number of requests answered from the cache without contacting
+	 *         the server.
+	 */
+	public long getHitCount() {
+		return mHits.get();
+	}
+
+	/**
+	 * @return Number of requests which had to be downloaded in full.
+	 */
+	public long getMissCount() {
+		return mMisses.get();
+	}
+
+	/**
+	 * @return Number of requests answered from the cache after the server
+	 *         confirmed with a 304 that the entry was still good.
+	 */
+	public long getRevalidationCount() {
+		return mRevalidations.get();
+	}
+
+	/**
+	 * Removes all entries, in memory and on disk.
+	 */
+	public synchronized void clear() {
+		mMemory.clear();
+		mMemoryBytes = 0;
+		if (mDirectory != null) {
+			synchronized (mDiskLock) {
+				File[] files = mDirectory.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+				mDiskBytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Builds the key of a request.
+	 * 
+	 * @param accountName
+	 *            Account the request is made as. May be null.
+	 * @param uri
+	 *            URI of the request.
+	 */
+	static String key(String accountName, String uri) {
+		return (accountName == null ? "" : accountName) + " " + uri;
+	}
+
+	/**
+	 * Looks up an entry in memory, then on disk. The disk is read without
+	 * holding the lock on this, so lookups of other entries are not held up.
+	 * 
+	 * @return The entry, or null if there is none.
+	 */
+	Entry get(String key) {
+		synchronized (this) {
+			Entry entry = mMemory.get(key);
+			if (entry != null || mDirectory == null) {
+				return entry;
+			}
+		}
+		Entry entry = readFromDisk(key);
+		if (entry != null) {
+			synchronized (this) {
+				// Keep an entry stored while the disk was being read.
+				Entry stored = mMemory.get(key);
+				if (stored != null) {
+					return stored;
+				}
+				putInMemory(key, entry);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Serves a fresh entry.
+	 */
+	HttpResponse serve(Entry entry) {
+		mHits.incrementAndGet();
+		return entry.toResponse();
+	}
+
+	/**
+	 * Updates entry from a 304 Not Modified response and serves it.
+	 */
+	HttpResponse revalidated(String key, Entry entry, HttpResponse notModified) {
+		mRevalidations.incrementAndGet();
+		Entry updated = entry.revalidate(notModified, System
+				.currentTimeMillis());
+		store(key, updated);
+		return updated.toResponse();
+	}
+
+	/**
+	 * Stores response if it may be cached.
+	 * 
+	 * @return Response to hand to the caller in place of response. Its body
+	 *         can be read as usual whether or not it was stored.
+	 */
+	HttpResponse put(String key, HttpResponse response) throws IOException {
+		mMisses.incrementAndGet();
+		long now = System.currentTimeMillis();
+		if (!isCacheable(response)) {
+			return response;
+		}
+		byte[] body = readBody(response, mMaxEntryBytes);
+		if (body == null) {
+			return response;
+		}
+
+		Entry entry = new Entry(response.getStatusLine().getStatusCode(),
+				response.getStatusLine().getReasonPhrase(),
+				storableHeaders(response), body, now, expiry(response, now));
+		store(key, entry);
+		return entry.toResponse();
+	}
+
+	/**
+	 * Reads the body of response into memory, unless it is longer than
+	 * maxBytes.
+	 * 
+	 * @return The body, or null if it is too long. In that case the body of
+	 *         response can still be read as usual.
+	 */
+	static byte[] readBody(HttpResponse response, long maxBytes)
+			throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return new byte[0];
+		}
+		long contentLength = entity.getContentLength();
+		if (contentLength > maxBytes) {
+			return null;
+		}
+
+		// Read at most maxBytes + 1 bytes. If the body turns out to be
+		// longer, hand back what was read followed by the rest of the stream.
+		InputStream content = entity.getContent();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				contentLength < 0 ? 1024 : (int) contentLength);
+		byte[] chunk = BufferPool.getBytes();
+		try {
+			int read;
+			while (buffer.size() <= maxBytes
+					&& (read = content.read(chunk)) != -1) {
+				buffer.write(chunk, 0, read);
+			}
+		} finally {
+			BufferPool.recycle(chunk);
+		}
+		byte[] body = buffer.toByteArray();
+		if (body.length > maxBytes) {
+			response.setEntity(new PrefixedEntity(entity, body, content));
+			return null;
+		}
+		entity.consumeContent();
+		return body;
+	}
+
+	/**
+	 * @return Headers of response worth storing.
+	 * @see #UNSTORABLE_HEADERS
+	 */
+	static Header[] storableHeaders(HttpResponse response) {
+		return storableHeaders(response.getAllHeaders());
+	}
+
+	/**
+	 * @return The headers among all worth storing.
+	 * @see #UNSTORABLE_HEADERS
+	 */
+	static Header[] storableHeaders(Header[] all) {
+		ArrayList<Header> headers = new ArrayList<Header>(all.length);
+		for (Header header : all) {
+			if (!UNSTORABLE_HEADERS.contains(header.getName().toLowerCase())) {
+				headers.add(header);
+			}
+		}
+		return headers.toArray(new Header[headers.size()]);
+	}
+
+	/**
+	 * Checks whether response may be stored at all.
+	 */
+	private static boolean isCacheable(HttpResponse response) {
+		if (response.getStatusLine().getStatusCode() != 200
+				|| response.getEntity() == null) {
+			return false;
+		}
+		for (Header header : response.getHeaders("Cache-Control")) {
+			for (HeaderElement element : header.getElements()) {
+				if ("no-store".equalsIgnoreCase(element.getName())) {
+					return false;
+				}
+			}
+		}
+		// Responses varying on anything but the encoding (which is undone
+		// before caching) cannot be matched against later requests.
+		for (Header header : response.getHeaders("Vary")) {
+			for (HeaderElement element : header.getElements()) {
+				if (!"Accept-Encoding".equalsIgnoreCase(element.getName())) {
+					return false;
+				}
+			}
+		}
+		boolean hasValidator = response.containsHeader("ETag")
+				|| response.containsHeader("Last-Modified");
+		return hasValidator
+				|| expiry(response, System.currentTimeMillis()) > System
+						.currentTimeMillis();
+	}
+
+	/**
+	 * Works out until when response is fresh, from Cache-Control: max-age or
+	 * Expires. Responses with no-cache, or no freshness information, are
+	 * stale right away and must be revalidated before use.
+	 */
+	private static long expiry(HttpResponse response, long now) {
+		for (Header header : response.getHeaders("Cache-Control")) {
+			for (HeaderElement element : header.getElements()) {
+				String name = element.getName();
+				if ("no-cache".equalsIgnoreCase(name)) {
+					return now;
+				}
+				if ("max-age".equalsIgnoreCase(name)
+						&& element.getValue() != null) {
+					try {
+						return now + Long.parseLong(element.getValue()) * 1000;
+					} catch (NumberFormatException e) {
+						return now;
+					}
+				}
+			}
+		}
+		Header expires = response.getFirstHeader("Expires");
+		if (expires != null) {
+			try {
+				Date expiresDate = DateUtils.parseDate(expires.getValue());
+				Header dateHeader = response.getFirstHeader("Date");
+				// Use the server's clock for the lifetime, since ours may be
+				// off.
+				long date = dateHeader == null ? now : DateUtils.parseDate(
+						dateHeader.getValue()).getTime();
+				return now + (expiresDate.getTime() - date);
+			} catch (DateParseException e) {
+				return now;
+			}
+		}
+		return now;
+	}
+
+	/**
+	 * Stores entry in memory and on disk. The disk is written without holding
+	 * the lock on this.
+	 */
+	private void store(String key, Entry entry) {
+		synchronized (this) {
+			putInMemory(key, entry);
+		}
+		if (mDirectory != null) {
+			writeToDisk(key, entry);
+		}
+	}
+
+	/**
+	 * Puts entry in the memory tier and evicts least recently used entries
+	 * until it fits. Must hold the lock on this.
+	 */
+	private void putInMemory(String key, Entry entry) {
+		Entry previous = mMemory.put(key, entry);
+		if (previous != null) {
+			mMemoryBytes -= previous.size();
+		}
+		mMemoryBytes += entry.size();
+		Iterator<Map.Entry<String, Entry>> it = mMemory.entrySet()
+				.iterator();
+		while (mMemoryBytes > mMemoryMaxBytes && it.hasNext()) {
+			mMemoryBytes -= it.next().getValue().size();
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return File which holds key's entry on disk.
+	 */
+	private File fileFor(String key) {
+		return new File(mDirectory, Integer.toHexString(key.hashCode()));
+	}
+
+	/**
+	 * Reads key's entry from disk. Entries are only ever replaced by renaming
+	 * a complete file over them, so this needs no lock.
+	 * 
+	 * @return The entry, or null if it is not on disk.
+	 */
+	private Entry readFromDisk(String key) {
+		File file = fileFor(key);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+					return null;
+				}
+				int statusCode = in.readInt();
+				String reason = in.readUTF();
+				Header[] headers = new Header[in.readInt()];
+				for (int i = 0; i < headers.length; i++) {
+					headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+				}
+				long storedAt = in.readLong();
+				long expiresAt = in.readLong();
+				byte[] body = new byte[in.readInt()];
+				in.readFully(body);
+				// Used as the least recently used order of the disk tier.
+				synchronized (mDiskLock) {
+					file.setLastModified(System.currentTimeMillis());
+				}
+				return new Entry(statusCode, reason, headers, body, storedAt,
+						expiresAt);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Dropping unreadable cache entry " + file, e);
+			synchronized (mDiskLock) {
+				mDiskBytes -= file.length();
+				file.delete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Writes key's entry to a file of its own, renames it over the previous
+	 * entry, then evicts least recently used files until the disk tier fits.
+	 */
+	private void writeToDisk(String key, Entry entry) {
+		File file = fileFor(key);
+		File temp = null;
+		try {
+			temp = File.createTempFile(file.getName() + "-", TEMP_SUFFIX,
+					mDirectory);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(VERSION);
+				out.writeUTF(key);
+				out.writeInt(entry.mStatusCode);
+				out.writeUTF(entry.mReasonPhrase);
+				out.writeInt(entry.mHeaders.length);
+				for (Header header : entry.mHeaders) {
+					out.writeUTF(header.getName());
+					out.writeUTF(header.getValue());
+				}
+				out.writeLong(entry.mStoredAt);
+				out.writeLong(entry.mExpiresAt);
+				out.writeInt(entry.mBody.length);
+				out.write(entry.mBody);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Failed to write cache entry " + file, e);
+			if (temp != null) {
+				temp.delete();
+			}
+			return;
+		}
+		synchronized (mDiskLock) {
+			long previous = file.length();
+			if (!temp.renameTo(file)) {
+				// Ex: the cache was cleared while writing.
+				temp.delete();
+				return;
+			}
+			mDiskBytes += file.length() - previous;
+			if (mDiskBytes > mDiskMaxBytes) {
+				trimDisk();
+			}
+		}
+	}
+
+	/**
+	 * Deletes least recently used files until the disk tier fits. Must hold
+	 * mDiskLock.
+	 */
+	private void trimDisk() {
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < files.length && mDiskBytes > mDiskMaxBytes; i++) {
+			if (files[i].getName().endsWith(TEMP_SUFFIX)) {
+				// Being written, not counted yet.
+				continue;
+			}
+			mDiskBytes -= files[i].length();
+			files[i].delete();
+		}
+	}
+
+	/**
+	 * A cached response.
+	 */
+	static class Entry {
+
+		final int mStatusCode;
+
+		final String mReasonPhrase;
+
+		final Header[] mHeaders;
+
+		final byte[] mBody;
+
+		/**
+		 * When the response was received or last revalidated.
+		 */
+		final long mStoredAt;
+
+		/**
+		 * Until when the response may be used without revalidation.
+		 */
+		final long mExpiresAt;
+
+		Entry(int statusCode, String reasonPhrase, Header[] headers,
+				byte[] body, long storedAt, long expiresAt) {
+			mStatusCode = statusCode;
+			mReasonPhrase = reasonPhrase == null ? "" : reasonPhrase;
+			mHeaders = headers;
+			mBody = body;
+			mStoredAt = storedAt;
+			mExpiresAt = expiresAt;
+		}
+
+		/**
+		 * @return Whether the entry may be used without revalidation.
+		 */
+		boolean isFresh() {
+			return System.currentTimeMillis() < mExpiresAt;
+		}
+
+		/**
+		 * @return Whether the entry can be revalidated with a conditional
+		 *         request.
+		 */
+		boolean hasValidator() {
+			return getHeader("ETag") != null
+					|| getHeader("Last-Modified") != null;
+		}
+
+		/**
+		 * Adds If-None-Match and If-Modified-Since headers for this entry to
+		 * request.
+		 */
+		void addConditionalHeaders(HttpRequest request) {
+			String etag = getHeader("ETag");
+			if (etag != null) {
+				request.setHeader("If-None-Match", etag);
+			}
+			String lastModified = getHeader("Last-Modified");
+			if (lastModified != null) {
+				request.setHeader("If-Modified-Since", lastModified);
+			}
+		}
+
+		/**
+		 * @return A copy of this entry updated with the headers and
+		 *         freshness of a 304 response. Each storable header the 304
+		 *         carries replaces all stored headers of the same name, and
+		 *         every other stored header is kept, repeated ones included.
+		 */
+		Entry revalidate(HttpResponse notModified, long now) {
+			Header[] updates = storableHeaders(notModified);
+			Set<String> updated = new HashSet<String>();
+			for (Header header : updates) {
+				updated.add(header.getName().toLowerCase());
+			}
+			ArrayList<Header> merged = new ArrayList<Header>(mHeaders.length
+					+ updates.length);
+			for (Header header : mHeaders) {
+				if (!updated.contains(header.getName().toLowerCase())) {
+					merged.add(header);
+				}
+			}
+			merged.addAll(Arrays.asList(updates));
+			return new Entry(mStatusCode, mReasonPhrase, merged
+					.toArray(new Header[merged.size()]), mBody, now, expiry(
+					notModified, now));
+		}
+
+		/**
+		 * @return A new response carrying this entry. Its body can be read
+		 *         independently of any other response built from the entry.
+		 */
+		HttpResponse toResponse() {
+			BasicHttpResponse response = new BasicHttpResponse(
+					HttpVersion.HTTP_1_1, mStatusCode, mReasonPhrase);
+			ByteArrayEntity entity = new ByteArrayEntity(mBody);
+			for (Header header : mHeaders) {
+				String name = header.getName();
+				if ("Content-Length".equalsIgnoreCase(name)
+						|| "Content-Encoding".equalsIgnoreCase(name)
+						|| "Transfer-Encoding".equalsIgnoreCase(name)) {
+					continue;
+				}
+				if ("Content-Type".equalsIgnoreCase(name)) {
+					entity.setContentType(header);
+				}
+				response.addHeader(header);
+			}
+			response.setEntity(entity);
+			return response;
+		}
+
+		/**
+		 * @return Approximate number of bytes held by this entry.
+		 */
+		long size() {
+			return mBody.length + 64 * (mHeaders.length + 1);
+		}
+
+		private String getHeader(String name) {
+			for (Header header : mHeaders) {
+				if (header.getName().equalsIgnoreCase(name)) {
+					return header.getValue();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Entity whose content is a prefix already read from the wrapped entity,
+	 * followed by the rest of the wrapped entity's stream. Used for bodies
+	 * which turned out too large to buffer.
+	 */
+	private static class PrefixedEntity extends HttpEntityWrapper {
+
+		private final InputStream mContent;
+
+		PrefixedEntity(HttpEntity wrapped, byte[] prefix, InputStream rest) {
+			super(wrapped);
+			mContent = new SequenceInputStream(
+					new ByteArrayInputStream(prefix), rest);
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#getContent()
+		 */
+		@Override
+		public InputStream getContent() {
+			return mContent;
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#isRepeatable()
+		 */
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		/**
+		 * @see org.apache.http.entity.HttpEntityWrapper#writeTo(java.io.OutputStream)
+		 */
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			byte[] buffer = BufferPool.getBytes();
+			try {
+				int read;
+				while ((read = mContent.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				BufferPool.recycle(buffer);
+			}
+		}
+	}
+}
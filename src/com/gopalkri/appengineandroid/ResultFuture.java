@@ -0,0 +1,41 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Future which is completed from the outside, by whoever produces its result,
+ * rather than by running a task.
+ * 
+ * @author Gopal Sharma
+ */
+class ResultFuture<T> extends FutureTask<T> {
+
+	ResultFuture() {
+		super(new Callable<T>() {
+			public T call() throws Exception {
+				throw new IllegalStateException(
+						"ResultFuture is completed with setResult.");
+			}
+		});
+	}
+
+	/**
+	 * Completes this future with result.
+	 */
+	void setResult(T result) {
+		set(result);
+	}
+
+	/**
+	 * Completes this future with a failure.
+	 */
+	void setFailure(Throwable cause) {
+		setException(cause);
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Socket factory for https which lets reconnects resume an earlier TLS
+ * session instead of doing a full handshake. TLS sessions are cached by host
+ * and port, but HttpClient's SSLSocketFactory creates sockets before it knows
+ * the host, so their sessions are never found again. This factory connects a
+ * plain socket first and then layers TLS over it, naming the host, with its
+ * own session cache.
+ * 
+ * @author Gopal Sharma
+ */
+class ResumingSSLSocketFactory implements LayeredSocketFactory {
+
+	/**
+	 * Creates the TLS sockets, with a session cache.
+	 */
+	private final javax.net.ssl.SSLSocketFactory mFactory;
+
+	/**
+	 * Same verifier HttpClient's SSLSocketFactory uses by default.
+	 */
+	private final X509HostnameVerifier mHostnameVerifier = SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+
+	/**
+	 * @param sessionCacheSize
+	 *            Maximum number of TLS sessions kept.
+	 * @param sessionTimeoutSeconds
+	 *            Time after which a cached TLS session is no longer resumed.
+	 * @throws GeneralSecurityException
+	 *             If TLS is not available.
+	 */
+	ResumingSSLSocketFactory(int sessionCacheSize, int sessionTimeoutSeconds)
+			throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, null, null);
+		SSLSessionContext sessions = context.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(sessionCacheSize);
+			sessions.setSessionTimeout(sessionTimeoutSeconds);
+		}
+		mFactory = context.getSocketFactory();
+	}
+
+	/**
+	 * Creates the plain socket which is connected and then layered with TLS
+	 * by connectSocket.
+	 * 
+	 * @see org.apache.http.conn.scheme.SocketFactory#createSocket()
+	 */
+	public Socket createSocket() {
+		return new Socket();
+	}
+
+	/**
+	 * @see org.apache.http.conn.scheme.SocketFactory#connectSocket(java.net.Socket,
+	 *      java.lang.String, int, java.net.InetAddress, int,
+	 *      org.apache.http.params.HttpParams)
+	 */
+	public Socket connectSocket(Socket sock, String host, int port,
+			InetAddress localAddress, int localPort, HttpParams params)
+			throws IOException {
+		Socket plain = sock != null ? sock : createSocket();
+		if (localAddress != null || localPort > 0) {
+			plain.bind(new InetSocketAddress(localAddress, Math.max(0,
+					localPort)));
+		}
+		plain.connect(new InetSocketAddress(host, port), HttpConnectionParams
+				.getConnectionTimeout(params));
+		// Also bounds the handshake.
+		plain.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+		try {
+			return createSocket(plain, host, port, true);
+		} catch (IOException e) {
+			plain.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @see org.apache.http.conn.scheme.LayeredSocketFactory#createSocket(java.net.Socket,
+	 *      java.lang.String, int, boolean)
+	 */
+	public Socket createSocket(Socket socket, String host, int port,
+			boolean autoClose) throws IOException {
+		SSLSocket sslSocket = (SSLSocket) mFactory.createSocket(socket, host,
+				port, autoClose);
+		// Does the handshake, then checks the certificate matches host.
+		mHostnameVerifier.verify(host, sslSocket);
+		return sslSocket;
+	}
+
+	/**
+	 * @see org.apache.http.conn.scheme.SocketFactory#isSecure(java.net.Socket)
+	 */
+	public boolean isSecure(Socket sock) {
+		if (!(sock instanceof SSLSocket)) {
+			throw new IllegalArgumentException(
+					"Socket not created by this factory.");
+		}
+		return true;
+	}
+
+}
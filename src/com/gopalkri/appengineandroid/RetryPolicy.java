@@ -0,0 +1,159 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.Serializable;
+
+/**
+ * Decides whether and when failed requests are retried. Only idempotent
+ * requests are retried: GETs, and POSTs marked idempotent through
+ * RequestOptions. They are retried when the request fails with an I/O error
+ * or App Engine answers with one of the transient errors it returns while
+ * spinning up instances or under quota pressure (500, 502, 503, 504).
+ * 
+ * Retries back off exponentially with full jitter, so that many clients
+ * failing at once do not all come back at the same moment. A Retry-After
+ * header sent by the server is honoured if it is within
+ * getMaxRetryAfterMillis.
+ * 
+ * @author Gopal Sharma
+ */
+public class RetryPolicy implements Serializable {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = 3957728616424019437L;
+
+	/**
+	 * Default number of attempts, including the first one.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/**
+	 * Default upper bound of the delay before the first retry.
+	 */
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 250;
+
+	/**
+	 * Default upper bound of the delay before any retry.
+	 */
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 8 * 1000;
+
+	/**
+	 * Default longest Retry-After honoured. Requests asked to wait longer
+	 * are not retried.
+	 */
+	public static final long DEFAULT_MAX_RETRY_AFTER_MILLIS = 30 * 1000;
+
+	private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	private long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+	private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+	private long mMaxRetryAfterMillis = DEFAULT_MAX_RETRY_AFTER_MILLIS;
+
+	/**
+	 * @return A policy which never retries.
+	 */
+	public static RetryPolicy noRetries() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setMaxAttempts(1);
+		return policy;
+	}
+
+	/**
+	 * @param statusCode
+	 *            Status code of a response.
+	 * @return Whether a response with statusCode is worth retrying.
+	 */
+	public boolean isRetryableStatus(int statusCode) {
+		return statusCode == 500 || statusCode == 502 || statusCode == 503
+				|| statusCode == 504;
+	}
+
+	/**
+	 * Works out how long to wait before the next attempt.
+	 * 
+	 * @param attempt
+	 *            Number of the attempt which just failed, starting at 1.
+	 * @param retryAfterMillis
+	 *            Delay asked for by the server, or -1 if none.
+	 * @return Delay in milliseconds.
+	 */
+	public long getBackoffMillis(int attempt, long retryAfterMillis) {
+		if (retryAfterMillis >= 0) {
+			return retryAfterMillis;
+		}
+		long ceiling = mInitialBackoffMillis << Math.min(attempt - 1, 20);
+		ceiling = Math.min(ceiling, mMaxBackoffMillis);
+		return (long) (Math.random() * ceiling);
+	}
+
+	/**
+	 * @return Number of attempts, including the first one.
+	 */
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            Number of attempts, including the first one.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		mMaxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return Upper bound of the delay before the first retry.
+	 */
+	public long getInitialBackoffMillis() {
+		return mInitialBackoffMillis;
+	}
+
+	/**
+	 * @param initialBackoffMillis
+	 *            Upper bound of the delay before the first retry. Doubles
+	 *            with every further retry.
+	 */
+	public void setInitialBackoffMillis(long initialBackoffMillis) {
+		mInitialBackoffMillis = initialBackoffMillis;
+	}
+
+	/**
+	 * @return Upper bound of the delay before any retry.
+	 */
+	public long getMaxBackoffMillis() {
+		return mMaxBackoffMillis;
+	}
+
+	/**
+	 * @param maxBackoffMillis
+	 *            Upper bound of the delay before any retry.
+	 */
+	public void setMaxBackoffMillis(long maxBackoffMillis) {
+		mMaxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * @return Longest Retry-After honoured.
+	 */
+	public long getMaxRetryAfterMillis() {
+		return mMaxRetryAfterMillis;
+	}
+
+	/**
+	 * @param maxRetryAfterMillis
+	 *            Longest Retry-After honoured. Requests asked to wait longer
+	 *            are not retried.
+	 */
+	public void setMaxRetryAfterMillis(long maxRetryAfterMillis) {
+		mMaxRetryAfterMillis = maxRetryAfterMillis;
+	}
+
+}
@@ -0,0 +1,49 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.http.cookie.Cookie;
+
+/**
+ * Persistent storage for the cookies of an authenticated AppEngine session,
+ * so that a session can outlive the process that created it.
+ * 
+ * @author Gopal Sharma
+ */
+public interface SessionStore {
+
+	/**
+	 * Saves cookies, replacing whatever was stored before.
+	 * 
+	 * @param cookies
+	 *            Cookies of the session.
+	 * @param expiry
+	 *            Time in milliseconds since the epoch after which the session
+	 *            must no longer be used.
+	 * @throws IOException
+	 *             If the cookies could not be saved.
+	 */
+	void save(List<Cookie> cookies, long expiry) throws IOException;
+
+	/**
+	 * Loads the stored session.
+	 * 
+	 * @return Stored cookies together with the expiry they were saved with,
+	 *         or null if nothing is stored or the stored session has expired.
+	 * @throws IOException
+	 *             If the cookies could not be read.
+	 */
+	StoredSession load() throws IOException;
+
+	/**
+	 * Removes the stored session.
+	 */
+	void clear();
+
+}
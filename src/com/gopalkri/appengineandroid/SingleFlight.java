@@ -0,0 +1,161 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Lets concurrent identical requests share one network call. The first caller
+ * for a key performs the request and buffers the response; callers arriving
+ * while it is in flight wait for it and each get their own copy, whose body
+ * can be read independently of the others.
+ * 
+ * @author Gopal Sharma
+ */
+class SingleFlight {
+
+	/**
+	 * Responses with longer bodies are not buffered, so they are not shared.
+	 * Waiting callers then make their own request.
+	 */
+	private static final long MAX_SHARED_BODY_BYTES = 1024 * 1024;
+
+	/**
+	 * Performs the request being shared.
+	 */
+	interface Fetch {
+		HttpResponse fetch() throws HttpRequestException;
+	}
+
+	/**
+	 * Calls in flight, by key.
+	 */
+	private final ConcurrentHashMap<String, Call> mCalls = new ConcurrentHashMap<String, Call>();
+
+	private final AppEngineMetrics mMetrics;
+
+	SingleFlight(AppEngineMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Performs fetch, unless a call for key is already in flight, in which
+	 * case its response is shared.
+	 * 
+	 * @param key
+	 *            Identifies identical requests.
+	 * @param request
+	 *            Request of the caller.
+	 * @param fetch
+	 *            Performs the request.
+	 * @param deadline
+	 *            Deadline of the caller. May be null.
+	 * @return Response for the caller alone.
+	 */
+	HttpResponse execute(String key, HttpUriRequest request, Fetch fetch,
+			Deadline deadline) throws HttpRequestException {
+		Call call = new Call();
+		Call inFlight = mCalls.putIfAbsent(key, call);
+		if (inFlight != null) {
+			ResponseCache.Entry shared = inFlight.await(deadline);
+			if (shared == null) {
+				return fetch.fetch();
+			}
+			mMetrics.recordSingleFlightShared();
+			return shared.toResponse();
+		}
+
+		ResponseCache.Entry shared = null;
+		HttpRequestException failure = null;
+		try {
+			HttpResponse response = fetch.fetch();
+			byte[] body;
+			try {
+				body = ResponseCache.readBody(response, MAX_SHARED_BODY_BYTES);
+			} catch (IOException e) {
+				throw new HttpRequestException(e);
+			}
+			if (body == null) {
+				return response;
+			}
+			long now = System.currentTimeMillis();
+			shared = new ResponseCache.Entry(response.getStatusLine()
+					.getStatusCode(), response.getStatusLine()
+					.getReasonPhrase(), ResponseCache
+					.storableHeaders(response), body, now, now);
+			return shared.toResponse();
+		} catch (HttpRequestException e) {
+			// A timeout or abort belongs to this caller alone. Waiting
+			// callers make their own request instead.
+			if (!(e instanceof RequestTimeoutException)
+					&& !request.isAborted()
+					&& (deadline == null || !deadline.isExpired())) {
+				failure = e;
+			}
+			throw e;
+		} finally {
+			// Remove before completing, so callers arriving from now on start
+			// a new call rather than getting this one's response.
+			mCalls.remove(key, call);
+			call.complete(shared, failure);
+		}
+	}
+
+	/**
+	 * A call in flight.
+	 */
+	private static class Call {
+
+		private final CountDownLatch mDone = new CountDownLatch(1);
+
+		private ResponseCache.Entry mResponse;
+
+		private HttpRequestException mFailure;
+
+		void complete(ResponseCache.Entry response,
+				HttpRequestException failure) {
+			mResponse = response;
+			mFailure = failure;
+			mDone.countDown();
+		}
+
+		/**
+		 * Waits for the call to complete.
+		 * 
+		 * @return The shared response, or null if it could not be shared.
+		 * @throws HttpRequestException
+		 *             If the call failed, or deadline expired first. A failure
+		 *             of the call is wrapped in an exception of this caller's
+		 *             own, so that waiters never share one instance, with
+		 *             the stack trace of another thread.
+		 */
+		ResponseCache.Entry await(Deadline deadline)
+				throws HttpRequestException {
+			try {
+				if (deadline == null) {
+					mDone.await();
+				} else if (!mDone.await(deadline.remainingMillis(),
+						TimeUnit.MILLISECONDS)) {
+					throw new RequestTimeoutException(
+							"Deadline expired waiting for identical request.");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new HttpRequestException(e);
+			}
+			if (mFailure != null) {
+				throw new HttpRequestException(mFailure);
+			}
+			return mResponse;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * AuthTokenSource which hands out a pre-issued auth token, ex: one obtained
+ * from ClientLogin by a load generator or a server. Once App Engine has
+ * rejected the token there is no other to fall back to.
+ * 
+ * @author Gopal Sharma
+ */
+public class StaticAuthTokenSource implements AuthTokenSource {
+
+	/**
+	 * Token to hand out. Null once it has been invalidated.
+	 */
+	private volatile String mAuthToken;
+
+	/**
+	 * @param authToken
+	 *            Auth token for the "ah" service.
+	 */
+	public StaticAuthTokenSource(String authToken) {
+		mAuthToken = authToken;
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.AuthTokenSource#getAuthToken()
+	 */
+	public String getAuthToken() throws AccountException {
+		String authToken = mAuthToken;
+		if (authToken == null) {
+			throw new AccountException("Auth token was rejected.");
+		}
+		return authToken;
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.AuthTokenSource#invalidateAuthToken(java.lang.String)
+	 */
+	public void invalidateAuthToken(String authToken) {
+		if (authToken.equals(mAuthToken)) {
+			mAuthToken = null;
+		}
+	}
+
+}
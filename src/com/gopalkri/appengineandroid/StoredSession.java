@@ -0,0 +1,54 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.cookie.Cookie;
+
+/**
+ * A session loaded from a SessionStore: its cookies, and the expiry it was
+ * saved with.
+ * 
+ * @author Gopal Sharma
+ */
+public final class StoredSession {
+
+	private final List<Cookie> mCookies;
+
+	private final long mExpiry;
+
+	/**
+	 * @param cookies
+	 *            Cookies of the session.
+	 * @param expiry
+	 *            Time in milliseconds since the epoch after which the session
+	 *            must no longer be used, as passed to SessionStore.save. 0 if
+	 *            the store does not know.
+	 */
+	public StoredSession(List<Cookie> cookies, long expiry) {
+		mCookies = Collections.unmodifiableList(cookies);
+		mExpiry = expiry;
+	}
+
+	/**
+	 * @return Cookies of the session.
+	 */
+	public List<Cookie> getCookies() {
+		return mCookies;
+	}
+
+	/**
+	 * @return Time in milliseconds since the epoch after which the session
+	 *         must no longer be used, or 0 if the store does not know, in
+	 *         which case it is worked out from the cookies.
+	 */
+	public long getExpiry() {
+		return mExpiry;
+	}
+
+}
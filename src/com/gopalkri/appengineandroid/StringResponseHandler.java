@@ -0,0 +1,54 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * ResponseHandler which returns the response body as a String, decoded with
+ * the charset from the Content-Type header.
+ * 
+ * @author Gopal Sharma
+ */
+public class StringResponseHandler extends ResponseBodyHandler<String> {
+
+	/**
+	 * Largest capacity reserved up front from Content-Length, so that a bogus
+	 * header cannot make us allocate a huge buffer.
+	 */
+	private static final int MAX_PRESIZE = 1024 * 1024;
+
+	/**
+	 * @see com.gopalkri.appengineandroid.ResponseBodyHandler#handleBody(org.apache.http.HttpResponse,
+	 *      java.io.InputStream, java.lang.String)
+	 */
+	@Override
+	protected String handleBody(HttpResponse response, InputStream body,
+			String charset) throws IOException {
+		// A body never has more chars than bytes, so Content-Length is enough
+		// capacity for the whole string.
+		long contentLength = getContentLength(response);
+		StringBuilder sb = new StringBuilder(contentLength < 0 ? 256
+				: (int) Math.min(contentLength, MAX_PRESIZE));
+		Reader reader = new InputStreamReader(body, charset);
+		char[] buffer = BufferPool.getChars();
+		try {
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+		} finally {
+			BufferPool.recycle(buffer);
+		}
+		return sb.toString();
+	}
+
+}
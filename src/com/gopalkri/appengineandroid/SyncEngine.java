@@ -0,0 +1,221 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps a SyncStore up to date with a collection of entities on the server,
+ * fetching only what changed since the last sync rather than the whole
+ * collection.
+ * 
+ * The server side is a handler speaking the protocol of SyncHandler in the
+ * gopalkri-testing-appengine application:
+ * 
+ * GET path?collection=name&cursor=c&limit=n answers with a JSON object
+ * {"cursor": "...", "more": bool, "reset": bool, "changes": [{"id": "...",
+ * "version": n, "deleted": bool, "data": {...}}, ...]} holding the changes
+ * made after cursor c, oldest first. The cursor is left out on the first
+ * sync. "reset" tells the client to drop what it has before applying the
+ * changes, ex: because the whole collection is being sent. "more" tells it
+ * to come back right away with the new cursor for further changes.
+ * 
+ * Each page of changes is applied to the store as one transaction, together
+ * with the cursor it ends at, so an interrupted sync resumes where it left
+ * off.
+ * 
+ * @author Gopal Sharma
+ */
+public class SyncEngine {
+
+	private static final String TAG = "AppEngineAndroid";
+
+	/**
+	 * Default number of changes to ask for per request.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private final AppEngine mAppEngine;
+
+	/**
+	 * Path of the sync handler, ex: "_sync".
+	 */
+	private final String mPath;
+
+	/**
+	 * Name of the collection on the server.
+	 */
+	private final String mCollection;
+
+	private final SyncStore mStore;
+
+	private final int mPageSize;
+
+	/**
+	 * @see #SyncEngine(AppEngine, String, String, SyncStore, int)
+	 */
+	public SyncEngine(AppEngine appEngine, String path, String collection,
+			SyncStore store) {
+		this(appEngine, path, collection, store, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * @param appEngine
+	 *            Instance to send the sync requests with.
+	 * @param path
+	 *            Path of the sync handler. Ex: "_sync".
+	 * @param collection
+	 *            Name of the collection to sync.
+	 * @param store
+	 *            Local store to keep up to date. It should not be shared with
+	 *            another collection.
+	 * @param pageSize
+	 *            Number of changes to ask for per request.
+	 */
+	public SyncEngine(AppEngine appEngine, String path, String collection,
+			SyncStore store, int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive.");
+		}
+		mAppEngine = appEngine;
+		mPath = path;
+		mCollection = collection;
+		mStore = store;
+		mPageSize = pageSize;
+	}
+
+	/**
+	 * @return Local store kept up to date by this.
+	 */
+	public SyncStore getStore() {
+		return mStore;
+	}
+
+	/**
+	 * Fetches and applies the changes made on the server since the last sync.
+	 * Blocks until there are no more, so call it off the UI thread. Only one
+	 * sync runs at a time; concurrent calls wait for each other.
+	 * 
+	 * @return Number of changes applied.
+	 * @throws HttpRequestException
+	 *             If a request failed or its response is malformed. The pages
+	 *             applied before it are kept.
+	 * @throws IOException
+	 *             If the store could not be written.
+	 */
+	public synchronized int sync() throws HttpRequestException, IOException {
+		int applied = 0;
+		while (true) {
+			String cursor = mStore.getCursor();
+			Object response = mAppEngine.doHttpGet(getPagePath(cursor),
+					JsonCodec.INSTANCE);
+			if (!(response instanceof Map<?, ?>)) {
+				throw new HttpRequestException("Malformed sync response.");
+			}
+			Map<?, ?> page = (Map<?, ?>) response;
+			Object nextCursor = page.get("cursor");
+			if (!(nextCursor instanceof String)) {
+				throw new HttpRequestException("Sync response has no cursor.");
+			}
+			List<SyncEntity> changes = parseChanges(page.get("changes"));
+			boolean reset = Boolean.TRUE.equals(page.get("reset"));
+			mStore.apply(reset, (String) nextCursor, changes);
+			applied += changes.size();
+			if (!Boolean.TRUE.equals(page.get("more"))) {
+				break;
+			}
+			if (nextCursor.equals(cursor)) {
+				// The server would send the same page forever.
+				throw new HttpRequestException(
+						"Sync response has more changes but the same cursor.");
+			}
+		}
+		AppEngineLog.i(TAG, "Synced " + applied + " changes to " + mCollection
+				+ ".");
+		return applied;
+	}
+
+	/**
+	 * Same as sync, on a thread of its own.
+	 * 
+	 * @param callback
+	 *            Callback to notify with the number of changes applied. May
+	 *            be null.
+	 * @param callbackExecutor
+	 *            Executor on which to deliver callback, ex: a
+	 *            MainThreadExecutor.
+	 * @return Future for the number of changes applied.
+	 */
+	public Future<Integer> syncAsync(AppEngineCallback<Integer> callback,
+			Executor callbackExecutor) {
+		AsyncRequest<Integer> task = new AsyncRequest<Integer>(null,
+				new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return Integer.valueOf(sync());
+					}
+				}, callback, callbackExecutor);
+		new Thread(task, "SyncEngine").start();
+		return task;
+	}
+
+	private String getPagePath(String cursor) {
+		StringBuilder path = new StringBuilder(mPath);
+		path.append("?collection=").append(encode(mCollection));
+		path.append("&limit=").append(mPageSize);
+		if (cursor != null) {
+			path.append("&cursor=").append(encode(cursor));
+		}
+		return path.toString();
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// Every JVM supports UTF-8.
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<SyncEntity> parseChanges(Object value)
+			throws HttpRequestException {
+		List<SyncEntity> changes = new ArrayList<SyncEntity>();
+		if (value == null) {
+			return changes;
+		}
+		if (!(value instanceof List<?>)) {
+			throw new HttpRequestException("Malformed sync changes.");
+		}
+		for (Object element : (List<?>) value) {
+			if (!(element instanceof Map<?, ?>)) {
+				throw new HttpRequestException("Malformed sync change.");
+			}
+			Map<?, ?> change = (Map<?, ?>) element;
+			Object id = change.get("id");
+			Object version = change.get("version");
+			Object data = change.get("data");
+			boolean deleted = Boolean.TRUE.equals(change.get("deleted"));
+			if (!(id instanceof String) || !(version instanceof Number)
+					|| (!deleted && !(data instanceof Map<?, ?>))) {
+				throw new HttpRequestException("Malformed sync change: "
+						+ change);
+			}
+			changes.add(new SyncEntity((String) id, ((Number) version)
+					.longValue(), deleted ? null : (Map<String, Object>) data));
+		}
+		return changes;
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Server entity kept in a SyncStore. Immutable: a change from the server
+ * replaces the entity with a new one.
+ * 
+ * @author Gopal Sharma
+ */
+public final class SyncEntity {
+
+	private final String mId;
+
+	private final long mVersion;
+
+	/**
+	 * Fields of the entity, as decoded by JsonCodec. Null if the entity was
+	 * deleted.
+	 */
+	private final Map<String, Object> mData;
+
+	/**
+	 * @param id
+	 *            Id of the entity, unique within its collection.
+	 * @param version
+	 *            Version the server gave the entity when it last changed.
+	 * @param data
+	 *            Fields of the entity, or null if it was deleted.
+	 */
+	SyncEntity(String id, long version, Map<String, Object> data) {
+		mId = id;
+		mVersion = version;
+		mData = data == null ? null : Collections.unmodifiableMap(data);
+	}
+
+	/**
+	 * @return Id of the entity, unique within its collection.
+	 */
+	public String getId() {
+		return mId;
+	}
+
+	/**
+	 * @return Version the server gave the entity when it last changed.
+	 *         Versions only go up.
+	 */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return Fields of the entity, as decoded by JsonCodec. Null for the
+	 *         deletions passed around while syncing; entities in a SyncStore
+	 *         always have data.
+	 */
+	public Map<String, Object> getData() {
+		return mData;
+	}
+
+	/**
+	 * @param field
+	 *            Name of a field.
+	 * @return Value of field, or null if the entity has no such field.
+	 */
+	public Object get(String field) {
+		return mData == null ? null : mData.get(field);
+	}
+
+	/**
+	 * @return Whether this is a deletion rather than an entity.
+	 */
+	boolean isDeleted() {
+		return mData == null;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return mId + "@" + mVersion + (mData == null ? " deleted" : mData);
+	}
+
+}
@@ -0,0 +1,503 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Local copy of one collection of server entities, kept up to date by a
+ * SyncEngine. Reads are answered from memory and never wait for the network;
+ * they only wait while a batch of changes is being applied.
+ * 
+ * Entities are indexed by id, and by the value of any field passed to
+ * addIndex. The store is persisted in a log file: each batch of changes from
+ * the server, together with the cursor to resume from, is appended as one
+ * checksummed transaction and synced to disk before it is applied in memory.
+ * When the store is opened, the log is replayed, and a transaction cut short
+ * by the process dying is dropped, so a batch is either applied in full or
+ * not at all. The log is compacted into a single snapshot once enough
+ * transactions have built up.
+ * 
+ * @author Gopal Sharma
+ */
+public class SyncStore {
+
+	private static final String TAG = "AppEngineAndroid";
+
+	/**
+	 * Transaction flag: the store was emptied before the changes were
+	 * applied.
+	 */
+	private static final int FLAG_RESET = 1;
+
+	/**
+	 * Number of transactions in the log after which it is compacted.
+	 */
+	private static final int COMPACT_THRESHOLD = 256;
+
+	/**
+	 * Log file holding the store.
+	 */
+	private final File mFile;
+
+	/**
+	 * Lets reads run concurrently while changes are applied in one go.
+	 * Writers also hold the lock on this, which serializes their disk I/O
+	 * without blocking reads.
+	 */
+	private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Entities by id. Guarded by mLock.
+	 */
+	private final Map<String, SyncEntity> mEntities = new HashMap<String, SyncEntity>();
+
+	/**
+	 * Ids of the entities by field and value, for the indexed fields.
+	 * Guarded by mLock.
+	 */
+	private final Map<String, Map<Object, Set<String>>> mIndexes = new HashMap<String, Map<Object, Set<String>>>();
+
+	/**
+	 * Server cursor to fetch the next changes from. Null before the first
+	 * sync. Guarded by mLock.
+	 */
+	private String mCursor = null;
+
+	/**
+	 * Stream appending to mFile. Guarded by this.
+	 */
+	private FileOutputStream mLog;
+
+	/**
+	 * Number of transactions in the log. Guarded by this.
+	 */
+	private int mTransactions = 0;
+
+	/**
+	 * Opens the store, replaying the log left in file by an earlier process.
+	 * 
+	 * @param file
+	 *            File holding the store, ex: one under Context.getFilesDir().
+	 * @throws IOException
+	 *             If the log could not be read or opened.
+	 */
+	public SyncStore(File file) throws IOException {
+		mFile = file;
+		replay();
+		if (mTransactions >= COMPACT_THRESHOLD) {
+			compact();
+		} else {
+			mLog = new FileOutputStream(mFile, true);
+		}
+	}
+
+	/**
+	 * @param id
+	 *            Id of an entity.
+	 * @return The entity, or null if the store has none with that id.
+	 */
+	public SyncEntity get(String id) {
+		mLock.readLock().lock();
+		try {
+			return mEntities.get(id);
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return All entities, in no particular order.
+	 */
+	public List<SyncEntity> getAll() {
+		mLock.readLock().lock();
+		try {
+			return new ArrayList<SyncEntity>(mEntities.values());
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the entities whose field has value. Uses the index on field if
+	 * addIndex was called for it, and looks at every entity otherwise.
+	 * 
+	 * @param field
+	 *            Name of a field.
+	 * @param value
+	 *            Value to look for, as decoded by JsonCodec, ex: a Long
+	 *            rather than an Integer for whole numbers.
+	 * @return The entities found, in no particular order.
+	 */
+	public List<SyncEntity> find(String field, Object value) {
+		mLock.readLock().lock();
+		try {
+			List<SyncEntity> found = new ArrayList<SyncEntity>();
+			Map<Object, Set<String>> index = mIndexes.get(field);
+			if (index != null) {
+				Set<String> ids = index.get(value);
+				if (ids != null) {
+					for (String id : ids) {
+						found.add(mEntities.get(id));
+					}
+				}
+				return found;
+			}
+			for (SyncEntity entity : mEntities.values()) {
+				Object fieldValue = entity.get(field);
+				if (fieldValue == null ? value == null : fieldValue
+						.equals(value)) {
+					found.add(entity);
+				}
+			}
+			return found;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes the entities by the value of field, so that find on it does not
+	 * have to look at every entity. Indexes live in memory only; add them
+	 * again each time the store is opened.
+	 * 
+	 * @param field
+	 *            Name of the field to index.
+	 */
+	public void addIndex(String field) {
+		mLock.writeLock().lock();
+		try {
+			if (mIndexes.containsKey(field)) {
+				return;
+			}
+			Map<Object, Set<String>> index = new HashMap<Object, Set<String>>();
+			mIndexes.put(field, index);
+			for (SyncEntity entity : mEntities.values()) {
+				index(field, index, entity);
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of entities.
+	 */
+	public int size() {
+		mLock.readLock().lock();
+		try {
+			return mEntities.size();
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Server cursor to fetch the next changes from, or null if the
+	 *         store has never been synced.
+	 */
+	public String getCursor() {
+		mLock.readLock().lock();
+		try {
+			return mCursor;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Empties the store and forgets its cursor, so that the next sync
+	 * fetches the whole collection again.
+	 * 
+	 * @throws IOException
+	 *             If the log could not be written.
+	 */
+	public synchronized void clear() throws IOException {
+		apply(true, null, Collections.<SyncEntity> emptyList());
+		compact();
+	}
+
+	/**
+	 * Closes the log. The store must not be changed afterwards, but can
+	 * still be read.
+	 */
+	public synchronized void close() {
+		try {
+			mLog.close();
+		} catch (IOException e) {
+			AppEngineLog.w(TAG, "Failed to close sync store " + mFile, e);
+		}
+	}
+
+	/**
+	 * Applies a batch of changes from the server as one transaction: it is
+	 * written to the log and synced to disk, then applied in memory. Changes
+	 * to an entity which are older than the version in the store are
+	 * ignored, so a batch may safely be applied twice.
+	 * 
+	 * @param reset
+	 *            Whether to empty the store first.
+	 * @param cursor
+	 *            Cursor to fetch the next changes from.
+	 * @param changes
+	 *            Changed entities, and deletions.
+	 * @throws IOException
+	 *             If the log could not be written. The store is unchanged.
+	 */
+	synchronized void apply(boolean reset, String cursor,
+			Collection<SyncEntity> changes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeTransaction(reset, cursor, changes, out);
+		writeRecord(bytes.toByteArray(), mLog);
+		mLog.getFD().sync();
+		mLock.writeLock().lock();
+		try {
+			applyInMemory(reset, cursor, changes);
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		if (++mTransactions >= COMPACT_THRESHOLD) {
+			compact();
+		}
+	}
+
+	/**
+	 * Applies a transaction to the in memory maps. Must hold the write lock.
+	 */
+	private void applyInMemory(boolean reset, String cursor,
+			Collection<SyncEntity> changes) {
+		if (reset) {
+			mEntities.clear();
+			for (Map<Object, Set<String>> index : mIndexes.values()) {
+				index.clear();
+			}
+		}
+		for (SyncEntity change : changes) {
+			SyncEntity old = mEntities.get(change.getId());
+			if (old != null) {
+				if (old.getVersion() > change.getVersion()) {
+					continue;
+				}
+				for (String field : mIndexes.keySet()) {
+					unindex(field, mIndexes.get(field), old);
+				}
+			}
+			if (change.isDeleted()) {
+				mEntities.remove(change.getId());
+				continue;
+			}
+			mEntities.put(change.getId(), change);
+			for (String field : mIndexes.keySet()) {
+				index(field, mIndexes.get(field), change);
+			}
+		}
+		mCursor = cursor;
+	}
+
+	private static void index(String field, Map<Object, Set<String>> index,
+			SyncEntity entity) {
+		Object value = entity.get(field);
+		Set<String> ids = index.get(value);
+		if (ids == null) {
+			ids = new HashSet<String>();
+			index.put(value, ids);
+		}
+		ids.add(entity.getId());
+	}
+
+	private static void unindex(String field, Map<Object, Set<String>> index,
+			SyncEntity entity) {
+		Object value = entity.get(field);
+		Set<String> ids = index.get(value);
+		if (ids != null) {
+			ids.remove(entity.getId());
+			if (ids.isEmpty()) {
+				index.remove(value);
+			}
+		}
+	}
+
+	/**
+	 * Reads the log, applying every complete transaction, and truncates it
+	 * after the last one so that later transactions are not appended after
+	 * a torn one.
+	 */
+	private void replay() throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mFile), BufferPool.BUFFER_SIZE));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		long size = mFile.length();
+		long good = 0;
+		CRC32 crc = new CRC32();
+		try {
+			while (true) {
+				int length = in.readInt();
+				// A length running past the end of the log is as torn as a
+				// bad checksum, and must not be allocated.
+				if (length < 0 || length > size - good - 12) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				long checksum = in.readLong();
+				crc.reset();
+				crc.update(payload);
+				if (crc.getValue() != checksum) {
+					break;
+				}
+				readTransaction(payload);
+				good += 4 + length + 8;
+				mTransactions++;
+			}
+		} catch (EOFException e) {
+			// End of log, or a transaction cut short by the process dying
+			// while writing it. Either way, everything before it is good.
+		} finally {
+			in.close();
+		}
+		if (good < size) {
+			AppEngineLog.w(TAG, "Dropping torn transaction at the end of "
+					+ mFile);
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			try {
+				file.setLength(good);
+			} finally {
+				file.close();
+			}
+		}
+		AppEngineLog.i(TAG, "Replayed " + mEntities.size()
+				+ " synced entities from " + mFile);
+	}
+
+	/**
+	 * Rewrites the log as a single transaction holding the whole store, and
+	 * reopens it for appending. Must hold the lock on this.
+	 */
+	private void compact() throws IOException {
+		if (mLog != null) {
+			mLog.close();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTransaction(true, mCursor, mEntities.values(),
+				new DataOutputStream(bytes));
+		File temp = new File(mFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			writeRecord(bytes.toByteArray(), out);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(mFile)) {
+			throw new IOException("Could not replace " + mFile);
+		}
+		mLog = new FileOutputStream(mFile, true);
+		mTransactions = 1;
+	}
+
+	/**
+	 * Writes payload as a record: its length, itself and its CRC32.
+	 */
+	private static void writeRecord(byte[] payload, FileOutputStream file)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				file, BufferPool.BUFFER_SIZE));
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeLong(crc.getValue());
+		out.flush();
+	}
+
+	private static void writeTransaction(boolean reset, String cursor,
+			Collection<SyncEntity> changes, DataOutputStream out)
+			throws IOException {
+		out.writeByte(reset ? FLAG_RESET : 0);
+		out.writeBoolean(cursor != null);
+		if (cursor != null) {
+			out.writeUTF(cursor);
+		}
+		out.writeInt(changes.size());
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (SyncEntity change : changes) {
+			out.writeUTF(change.getId());
+			out.writeLong(change.getVersion());
+			out.writeBoolean(change.isDeleted());
+			if (!change.isDeleted()) {
+				data.reset();
+				BinaryCodec.INSTANCE.encode(change.getData(), data);
+				out.writeInt(data.size());
+				data.writeTo(out);
+			}
+		}
+	}
+
+	/**
+	 * Reads a transaction written by writeTransaction from payload and
+	 * applies it in memory. Counts and lengths are checked against what is
+	 * left of payload before anything is allocated for them.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readTransaction(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		boolean reset = (in.readByte() & FLAG_RESET) != 0;
+		String cursor = in.readBoolean() ? in.readUTF() : null;
+		int count = in.readInt();
+		// Each change takes at least an id length, a version and a flag.
+		if (count < 0 || count > in.available() / 11) {
+			throw new IOException("Corrupt transaction in " + mFile);
+		}
+		List<SyncEntity> changes = new ArrayList<SyncEntity>(count);
+		for (int i = 0; i < count; i++) {
+			String id = in.readUTF();
+			long version = in.readLong();
+			Map<String, Object> data = null;
+			if (!in.readBoolean()) {
+				int length = in.readInt();
+				if (length < 0 || length > in.available()) {
+					throw new IOException("Corrupt transaction in " + mFile);
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				data = (Map<String, Object>) BinaryCodec.INSTANCE.decode(
+						new ByteArrayInputStream(bytes), null);
+			}
+			changes.add(new SyncEntity(id, version, data));
+		}
+		applyInMemory(reset, cursor, changes);
+	}
+
+}
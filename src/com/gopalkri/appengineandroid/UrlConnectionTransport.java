@@ -0,0 +1,426 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.MalformedCookieException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BestMatchSpec;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HttpTransport backed by the platform's HttpURLConnection. Redirects and
+ * cookies are handled here rather than by HttpURLConnection, so that login
+ * redirects and the cookie store behave as with HttpClient.
+ * 
+ * HttpURLConnection pools connections for the whole process, so connection
+ * reuse and pool waits are not reported to AppEngineMetrics.
+ * 
+ * @author Gopal Sharma
+ */
+class UrlConnectionTransport implements HttpTransport {
+
+	private static final String TAG = "AppEngineAndroid";
+
+	/**
+	 * Number of redirects followed before a request fails.
+	 */
+	private static final int MAX_REDIRECTS = 10;
+
+	/**
+	 * Request headers HttpURLConnection sets itself.
+	 */
+	private static final String[] RESTRICTED_HEADERS = { "Connection",
+			"Content-Length", "Host", "Transfer-Encoding" };
+
+	/**
+	 * Cookies of the session.
+	 */
+	private final CookieStore mCookieStore = new BasicCookieStore();
+
+	private final int mConnectTimeoutMillis;
+
+	private final int mSocketTimeoutMillis;
+
+	/**
+	 * Whether shutdown has been called.
+	 */
+	private volatile boolean mShutdown = false;
+
+	/**
+	 * @param config
+	 *            Configuration of the AppEngine instance.
+	 */
+	UrlConnectionTransport(AppEngineConfig config) {
+		mConnectTimeoutMillis = config.getConnectTimeoutMillis();
+		mSocketTimeoutMillis = config.getSocketTimeoutMillis();
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.HttpTransport#execute(org.apache.http.client.methods.HttpUriRequest,
+	 *      org.apache.http.protocol.HttpContext)
+	 */
+	public HttpResponse execute(HttpUriRequest request, HttpContext context)
+			throws IOException {
+		if (mShutdown) {
+			throw new IOException("Transport has been shut down.");
+		}
+		CookieStore cookieStore = mCookieStore;
+		if (context != null
+				&& context.getAttribute(ClientContext.COOKIE_STORE) != null) {
+			cookieStore = (CookieStore) context
+					.getAttribute(ClientContext.COOKIE_STORE);
+		}
+		boolean followRedirects = request.getParams().getBooleanParameter(
+				ClientPNames.HANDLE_REDIRECTS, true);
+		String method = request.getMethod();
+		URI uri = request.getURI();
+		HttpEntity entity = null;
+		if (request instanceof HttpEntityEnclosingRequest) {
+			entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		}
+		for (int redirects = 0;; redirects++) {
+			HttpResponse response = send(request, method, uri, entity,
+					cookieStore);
+			if (!followRedirects || !isRedirectRequested(response, method)) {
+				return response;
+			}
+			consume(response);
+			if (redirects == MAX_REDIRECTS) {
+				throw new ClientProtocolException("More than " + MAX_REDIRECTS
+						+ " redirects for " + request.getURI());
+			}
+			try {
+				uri = uri.resolve(response.getFirstHeader("Location")
+						.getValue());
+			} catch (IllegalArgumentException e) {
+				throw new ClientProtocolException("Invalid redirect: "
+						+ e.getMessage());
+			}
+			if (response.getStatusLine().getStatusCode() == 303) {
+				method = "GET";
+				entity = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether response is a redirect which should be followed. Same
+	 * rules as LoginRedirectHandler.
+	 */
+	private static boolean isRedirectRequested(HttpResponse response,
+			String method) {
+		if (response.getFirstHeader("Location") == null
+				|| LoginRedirectHandler.isLoginRedirect(response)) {
+			return false;
+		}
+		switch (response.getStatusLine().getStatusCode()) {
+		case 301:
+		case 302:
+		case 307:
+			return method.equals("GET") || method.equals("HEAD");
+		case 303:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Sends one request over a HttpURLConnection, without following
+	 * redirects.
+	 */
+	private HttpResponse send(HttpUriRequest request, String method, URI uri,
+			HttpEntity entity, CookieStore cookieStore) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) uri.toURL()
+				.openConnection();
+		if (request instanceof AbortableHttpRequest) {
+			// Fails if the request has been aborted already.
+			((AbortableHttpRequest) request)
+					.setReleaseTrigger(new ConnectionReleaseTrigger() {
+						public void abortConnection() {
+							connection.disconnect();
+						}
+
+						public void releaseConnection() {
+							// Closing the response stream releases it.
+						}
+					});
+		}
+		HttpParams params = request.getParams();
+		connection.setConnectTimeout(params.getIntParameter(
+				CoreConnectionPNames.CONNECTION_TIMEOUT,
+				mConnectTimeoutMillis));
+		connection.setReadTimeout(params.getIntParameter(
+				CoreConnectionPNames.SO_TIMEOUT, mSocketTimeoutMillis));
+		connection.setInstanceFollowRedirects(false);
+		connection.setUseCaches(false);
+		connection.setRequestMethod(method);
+		for (Header header : request.getAllHeaders()) {
+			if (!isRestricted(header.getName())) {
+				connection.addRequestProperty(header.getName(), header
+						.getValue());
+			}
+		}
+		if (connection.getRequestProperty("User-Agent") == null) {
+			// App Engine only gzips responses for user agents mentioning gzip.
+			connection.setRequestProperty("User-Agent", AppEngine.USER_AGENT);
+		}
+
+		CookieSpec cookieSpec = new BestMatchSpec();
+		CookieOrigin origin = getCookieOrigin(uri);
+		addCookies(connection, cookieStore, cookieSpec, origin);
+
+		if (entity != null) {
+			writeEntity(connection, entity);
+		}
+
+		int status = connection.getResponseCode();
+		BasicHttpResponse response = new BasicHttpResponse(
+				new BasicStatusLine(HttpVersion.HTTP_1_1, status, connection
+						.getResponseMessage()));
+		for (int i = 0;; i++) {
+			String name = connection.getHeaderFieldKey(i);
+			String value = connection.getHeaderField(i);
+			if (name == null && value == null) {
+				break;
+			}
+			if (name != null) {
+				// Key 0 is the status line.
+				response.addHeader(name, value);
+			}
+		}
+		storeCookies(response, cookieStore, cookieSpec, origin);
+
+		if (!method.equals("HEAD") && status != 204 && status != 304) {
+			response.setEntity(createEntity(connection, response));
+		}
+		return response;
+	}
+
+	/**
+	 * @return Whether HttpURLConnection sets header name itself.
+	 */
+	private static boolean isRestricted(String name) {
+		for (String restricted : RESTRICTED_HEADERS) {
+			if (restricted.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Origin cookies for uri are matched against.
+	 */
+	private static CookieOrigin getCookieOrigin(URI uri) {
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		int port = uri.getPort();
+		if (port < 0) {
+			port = secure ? 443 : 80;
+		}
+		String path = uri.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		return new CookieOrigin(uri.getHost(), port, path, secure);
+	}
+
+	/**
+	 * Adds the unexpired cookies of cookieStore matching origin to
+	 * connection.
+	 */
+	private static void addCookies(HttpURLConnection connection,
+			CookieStore cookieStore, CookieSpec cookieSpec,
+			CookieOrigin origin) {
+		List<Cookie> matched = new ArrayList<Cookie>();
+		Date now = new Date();
+		for (Cookie cookie : cookieStore.getCookies()) {
+			if (!cookie.isExpired(now) && cookieSpec.match(cookie, origin)) {
+				matched.add(cookie);
+			}
+		}
+		if (matched.isEmpty()) {
+			return;
+		}
+		for (Header header : cookieSpec.formatCookies(matched)) {
+			connection.addRequestProperty(header.getName(), header.getValue());
+		}
+	}
+
+	/**
+	 * Adds the cookies set by response to cookieStore, skipping invalid
+	 * ones.
+	 */
+	private static void storeCookies(HttpResponse response,
+			CookieStore cookieStore, CookieSpec cookieSpec,
+			CookieOrigin origin) {
+		for (Header header : response.getHeaders("Set-Cookie")) {
+			try {
+				for (Cookie cookie : cookieSpec.parse(header, origin)) {
+					cookieSpec.validate(cookie, origin);
+					cookieStore.addCookie(cookie);
+				}
+			} catch (MalformedCookieException e) {
+				AppEngineLog.w(TAG, "Ignoring cookie: " + header.getValue(),
+						e);
+			}
+		}
+	}
+
+	/**
+	 * Streams entity to connection as the request body.
+	 */
+	private static void writeEntity(HttpURLConnection connection,
+			HttpEntity entity) throws IOException {
+		connection.setDoOutput(true);
+		if (entity.getContentType() != null) {
+			connection.setRequestProperty("Content-Type", entity
+					.getContentType().getValue());
+		}
+		if (entity.getContentEncoding() != null) {
+			connection.setRequestProperty("Content-Encoding", entity
+					.getContentEncoding().getValue());
+		}
+		long length = entity.getContentLength();
+		if (length >= 0 && length <= Integer.MAX_VALUE) {
+			connection.setFixedLengthStreamingMode((int) length);
+		} else {
+			connection.setChunkedStreamingMode(0);
+		}
+		OutputStream out = connection.getOutputStream();
+		boolean written = false;
+		try {
+			entity.writeTo(out);
+			written = true;
+		} finally {
+			if (!written) {
+				// Closing would only complain that the body is incomplete,
+				// hiding why.
+				connection.disconnect();
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * Creates the entity of response, streaming from connection.
+	 */
+	private static HttpEntity createEntity(HttpURLConnection connection,
+			HttpResponse response) throws IOException {
+		InputStream content;
+		if (response.getStatusLine().getStatusCode() >= 400) {
+			content = connection.getErrorStream();
+		} else {
+			content = connection.getInputStream();
+		}
+		if (content == null) {
+			content = new ByteArrayInputStream(new byte[0]);
+		}
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(content);
+		entity.setContentLength(-1);
+		Header length = response.getFirstHeader("Content-Length");
+		if (length != null) {
+			try {
+				entity.setContentLength(Long.parseLong(length.getValue()
+						.trim()));
+			} catch (NumberFormatException e) {
+				// Leave it unknown.
+			}
+		}
+		entity.setContentType(response.getFirstHeader("Content-Type"));
+		entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+		return entity;
+	}
+
+	/**
+	 * Consumes the entity of response, if any.
+	 */
+	private static void consume(HttpResponse response) throws IOException {
+		if (response.getEntity() != null) {
+			response.getEntity().consumeContent();
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.HttpTransport#getCookieStore()
+	 */
+	public CookieStore getCookieStore() {
+		return mCookieStore;
+	}
+
+	/**
+	 * Resolves the host of uri. For https, also does a TLS handshake with it,
+	 * so that the first request can resume the session rather than do a
+	 * full handshake. HttpURLConnection has no way to put a connection in its
+	 * pool without sending a request.
+	 * 
+	 * @see com.gopalkri.appengineandroid.HttpTransport#warmUp(java.net.URI)
+	 */
+	public void warmUp(URI uri) throws IOException {
+		InetAddress address = InetAddress.getByName(uri.getHost());
+		if (!"https".equalsIgnoreCase(uri.getScheme())) {
+			return;
+		}
+		int port = uri.getPort() < 0 ? 443 : uri.getPort();
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(address, port),
+					mConnectTimeoutMillis);
+			socket.setSoTimeout(mSocketTimeoutMillis);
+			SSLSocket sslSocket = (SSLSocket) HttpsURLConnection
+					.getDefaultSSLSocketFactory().createSocket(socket,
+							uri.getHost(), port, true);
+			sslSocket.startHandshake();
+			sslSocket.close();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @see com.gopalkri.appengineandroid.HttpTransport#shutdown()
+	 */
+	public void shutdown() {
+		mShutdown = true;
+	}
+}
@@ -0,0 +1,43 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import android.content.Intent;
+
+/**
+ * Thrown when the AccountManager needs the user to grant access to an account
+ * before it hands out an auth token. Start the intent from getIntent, ex: from
+ * a notification if there is no activity in front, and log in again once the
+ * user has agreed.
+ * 
+ * @author Gopal Sharma
+ */
+public class UserConsentRequiredException extends AccountException {
+
+	/**
+	 * Eclipse warns me to add this. Not sure why.
+	 */
+	private static final long serialVersionUID = 4811538291164378012L;
+
+	/**
+	 * Intent asking the user for consent. Not serialized.
+	 */
+	private final transient Intent mIntent;
+
+	public UserConsentRequiredException(String message, Intent intent) {
+		super(message);
+		mIntent = intent;
+	}
+
+	/**
+	 * @return Intent which asks the user for consent, or null if this
+	 *         exception was deserialized.
+	 */
+	public Intent getIntent() {
+		return mIntent;
+	}
+
+}
@@ -18,8 +18,11 @@ import android.widget.TextView;
 
 import com.gopalkri.appengineandroid.AppEngine;
 import com.gopalkri.appengineandroid.AppEngineActivity;
+import com.gopalkri.appengineandroid.AppEngineCallback;
 import com.gopalkri.appengineandroid.AppEngineException;
+import com.gopalkri.appengineandroid.MainThreadExecutor;
 import com.gopalkri.appengineandroid.R;
+import com.gopalkri.appengineandroid.StringResponseHandler;
 
 /**
  * @author Gopal Sharma.
@@ -42,6 +45,12 @@ public class Home extends Activity {
 	 */
 	private boolean mTriedAuthenticating = false;
 
+	/**
+	 * Executor used to deliver results of asynchronous requests on the UI
+	 * thread.
+	 */
+	private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
+
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -90,36 +99,46 @@ public class Home extends Activity {
 	}
 
 	/**
-	 * Do a test get request.
+	 * Do a test get request. The request runs on a worker thread and the
+	 * result is delivered back on the UI thread.
 	 */
 	private void testGet() {
 		AppEngine ae = AppEngine.getInstance();
-		try {
-			String result = AppEngine.getStringFromHttpResponse(ae.doHttpGet(""));
-			mStatus.setText(result);
-			Log.d(TAG, "Result for test GET: " + result);
-		} catch (AppEngineException e) {
-			e.printStackTrace();
-			mStatus.setText(e.getMessage());
-		}
+		ae.doHttpGetAsync("", new StringResponseHandler(),
+				new AppEngineCallback<String>() {
+					public void onSuccess(String result) {
+						mStatus.setText(result);
+						Log.d(TAG, "Result for test GET: " + result);
+					}
+
+					public void onFailure(AppEngineException e) {
+						e.printStackTrace();
+						mStatus.setText(e.getMessage());
+					}
+				}, mMainThreadExecutor);
 	}
 	
 	/**
-	 * Do a test post request.
+	 * Do a test post request. The request runs on a worker thread and the
+	 * result is delivered back on the UI thread.
 	 */
 	private void testPost() {	
-		try {
-			AppEngine ae = AppEngine.getInstance();
-			ArrayList<NameValuePair> postData = new ArrayList<NameValuePair>();
-			postData.add(new BasicNameValuePair("testKey1", "testValue1"));
-			postData.add(new BasicNameValuePair("testKey2", "testValue2"));
-			String result = AppEngine.getStringFromHttpResponse(ae.doHttpPost("", postData));
-			mStatus.setText(result);
-			Log.d(TAG, "Result of test POST: " + result);
-		} catch (AppEngineException e) {
-			e.printStackTrace();
-			mStatus.setText(e.getMessage());
-		}
+		AppEngine ae = AppEngine.getInstance();
+		ArrayList<NameValuePair> postData = new ArrayList<NameValuePair>();
+		postData.add(new BasicNameValuePair("testKey1", "testValue1"));
+		postData.add(new BasicNameValuePair("testKey2", "testValue2"));
+		ae.doHttpPostAsync("", postData, new StringResponseHandler(),
+				new AppEngineCallback<String>() {
+					public void onSuccess(String result) {
+						mStatus.setText(result);
+						Log.d(TAG, "Result of test POST: " + result);
+					}
+
+					public void onFailure(AppEngineException e) {
+						e.printStackTrace();
+						mStatus.setText(e.getMessage());
+					}
+				}, mMainThreadExecutor);
 	}
 
 	/**
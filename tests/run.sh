@@ -0,0 +1,40 @@
+#!/bin/sh
+#
+# This file is part of the AppEngineAndroid project.
+#
+# Copyright (c) Gopal Sharma 2010.
+#
+# Compiles the Android-free part of the library together with the tests and
+# runs every test suite on a plain JVM. HttpClient is part of Android but not
+# of the JVM, so point HTTPCLIENT_CLASSPATH at its jars (httpclient, httpcore,
+# commons-logging and commons-codec), ex:
+#
+#	HTTPCLIENT_CLASSPATH=lib/httpclient.jar:lib/httpcore.jar:... tests/run.sh
+#
+# Pass suite names, ex: TransportConformanceTest, to run only those.
+
+if [ -z "$HTTPCLIENT_CLASSPATH" ]; then
+	echo "Set HTTPCLIENT_CLASSPATH to the HttpClient jars." >&2
+	exit 2
+fi
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+PACKAGE=com/gopalkri/appengineandroid
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -nowarn -encoding UTF-8 -d "$OUT" -cp "$HTTPCLIENT_CLASSPATH" \
+	$(grep -L "import android" "$ROOT"/src/$PACKAGE/*.java) \
+	"$ROOT"/tests/src/$PACKAGE/*.java || exit 2
+
+SUITES="$*"
+if [ -z "$SUITES" ]; then
+	SUITES=$(cd "$ROOT/tests/src/$PACKAGE" && ls *Test.java | sed 's/\.java$//')
+fi
+
+STATUS=0
+for SUITE in $SUITES; do
+	java -cp "$OUT:$HTTPCLIENT_CLASSPATH" com.gopalkri.appengineandroid.$SUITE \
+		|| STATUS=1
+done
+exit $STATUS
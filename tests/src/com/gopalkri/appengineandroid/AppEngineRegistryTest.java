@@ -0,0 +1,129 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Checks that AppEngineRegistry only registers instances once they have
+ * logged in, so that an instance still logging in is neither handed out by
+ * get nor shut down by one registered after it.
+ * 
+ * @author Gopal Sharma
+ */
+class AppEngineRegistryTest {
+
+	private static final String ACCOUNT = "test@example.com";
+
+	private final StubServer mServer;
+
+	private AppEngineRegistryTest(StubServer server) {
+		mServer = server;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubServer server = new StubServer();
+		installHandlers(server);
+		final AppEngineRegistryTest test = new AppEngineRegistryTest(server);
+		TestRunner runner = new TestRunner("AppEngineRegistryTest");
+		try {
+			runner.run("registeredOnceLoggedIn", new TestRunner.Test() {
+				public void run() throws Exception {
+					test.testRegisteredOnceLoggedIn();
+				}
+			});
+			runner.run("publishLeavesLoginInProgressAlone",
+					new TestRunner.Test() {
+						public void run() throws Exception {
+							test.testPublishLeavesLoginInProgressAlone();
+						}
+					});
+		} finally {
+			AppEngineRegistry.shutdownAll();
+			server.stop();
+		}
+		runner.exit();
+	}
+
+	private void testRegisteredOnceLoggedIn() throws Exception {
+		AppEngine instance = AppEngineRegistry.getOrCreate(mServer.getUrl(),
+				newConfig(), ACCOUNT);
+		try {
+			TestRunner.check(AppEngineRegistry.get(mServer.getUrl(), ACCOUNT)
+					== null, "Instance handed out before logging in.");
+			TestRunner.check(AppEngineRegistry.getOrCreate(mServer.getUrl(),
+					newConfig(), ACCOUNT) == instance,
+					"Callers got different instances.");
+			instance.setAuthTokenSource(new StaticAuthTokenSource("token"));
+			instance.login();
+			TestRunner.check(AppEngineRegistry.get(mServer.getUrl(), ACCOUNT)
+					== instance, "Instance not registered after login.");
+		} finally {
+			instance.shutdown();
+		}
+		TestRunner.check(AppEngineRegistry.get(mServer.getUrl(), ACCOUNT)
+				== null, "Instance still registered after shutdown.");
+	}
+
+	/**
+	 * An instance set up elsewhere for the same account, ex: by
+	 * AppEngineAuthenticator, is published while one from getOrCreate is
+	 * still logging in. Neither may shut down the other.
+	 */
+	private void testPublishLeavesLoginInProgressAlone() throws Exception {
+		AppEngine pending = AppEngineRegistry.getOrCreate(mServer.getUrl(),
+				newConfig(), ACCOUNT);
+		AppEngine published = AppEngine.newInstance(mServer.getUrl(),
+				newConfig(), ACCOUNT);
+		try {
+			published.setAuthTokenSource(new StaticAuthTokenSource("token"));
+			published.login();
+			AppEngine.publish(published);
+
+			pending.setAuthTokenSource(new StaticAuthTokenSource("token"));
+			pending.login();
+			TestRunner.checkEquals("secret", pending.doHttpGet("private",
+					new StringResponseHandler()));
+			TestRunner.check(AppEngineRegistry.get(mServer.getUrl(), ACCOUNT)
+					== published, "Published instance was replaced.");
+			TestRunner.checkEquals("secret", published.doHttpGet("private",
+					new StringResponseHandler()));
+		} finally {
+			pending.shutdown();
+			published.shutdown();
+		}
+	}
+
+	private static AppEngineConfig newConfig() {
+		AppEngineConfig config = new AppEngineConfig();
+		config.setRetryPolicy(RetryPolicy.noRetries());
+		return config;
+	}
+
+	/**
+	 * Sets up the handlers of the stub application.
+	 */
+	private static void installHandlers(StubServer server) {
+		server.handle("/_ah/login", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().add("Set-Cookie",
+						"SACSID=session; Path=/");
+				exchange.getResponseHeaders().set("Location",
+						"http://localhost/");
+				StubServer.respond(exchange, 302, "");
+			}
+		});
+		server.handle("/private", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StubServer.respond(exchange, 200, "secret");
+			}
+		});
+	}
+
+}
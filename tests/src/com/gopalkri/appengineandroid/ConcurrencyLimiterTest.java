@@ -0,0 +1,227 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Checks that requests hold their ConcurrencyLimiter slot for as long as
+ * their connection is leased, i.e. until the response body is done with, so
+ * that bulk downloads cannot take up the connection pool ahead of
+ * interactive requests.
+ * 
+ * @author Gopal Sharma
+ */
+class ConcurrencyLimiterTest {
+
+	/**
+	 * Slots and pooled connections. BULK requests may use half of them.
+	 */
+	private static final int SLOTS = 4;
+
+	/**
+	 * Longest a request waits for a slot or a connection.
+	 */
+	private static final long POOL_TIMEOUT_MILLIS = 3000;
+
+	/**
+	 * Longest an interactive request may take while bulk streams are
+	 * running.
+	 */
+	private static final long INTERACTIVE_MILLIS = 1000;
+
+	private final StubServer mServer;
+
+	/**
+	 * Bulk streams the server is sending.
+	 */
+	private final AtomicInteger mStreaming = new AtomicInteger();
+
+	/**
+	 * Lets the server finish the bulk streams.
+	 */
+	private volatile CountDownLatch mFinishStreams;
+
+	private ConcurrencyLimiterTest(StubServer server) {
+		mServer = server;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubServer server = new StubServer();
+		final ConcurrencyLimiterTest test = new ConcurrencyLimiterTest(server);
+		test.installHandlers();
+		TestRunner runner = new TestRunner("ConcurrencyLimiterTest");
+		try {
+			runner.run("interactiveNotDelayedByBulkStreams",
+					new TestRunner.Test() {
+						public void run() throws Exception {
+							test.testInteractiveNotDelayedByBulkStreams();
+						}
+					});
+			runner.run("slotReleasedWhenBodyConsumed", new TestRunner.Test() {
+				public void run() throws Exception {
+					test.testSlotReleasedWhenBodyConsumed();
+				}
+			});
+		} finally {
+			server.stop();
+		}
+		runner.exit();
+	}
+
+	/**
+	 * Starts more BULK downloads than BULK may have slots for, whose bodies
+	 * the server holds back. Only BULK's share of them may start, leaving
+	 * slots and connections for an INTERACTIVE request.
+	 */
+	private void testInteractiveNotDelayedByBulkStreams() throws Exception {
+		final AppEngine appEngine = newAppEngine();
+		mStreaming.set(0);
+		mFinishStreams = new CountDownLatch(1);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> downloads = new ArrayList<Thread>();
+		try {
+			for (int i = 0; i < SLOTS; i++) {
+				final String path = "stream?n=" + i;
+				Thread download = new Thread(new Runnable() {
+					public void run() {
+						try {
+							String body = appEngine.doHttpGet(path,
+									new RequestOptions()
+											.setPriority(RequestPriority.BULK),
+									new StringResponseHandler());
+							TestRunner.checkEquals("startend", body);
+						} catch (Throwable t) {
+							synchronized (failures) {
+								failures.add(t);
+							}
+						}
+					}
+				});
+				download.start();
+				downloads.add(download);
+			}
+			int bulkSlots = RequestPriority.BULK.getSlots(SLOTS);
+			waitFor(mStreaming, bulkSlots);
+			// Give any download that got past the limiter time to show up.
+			Thread.sleep(200);
+			TestRunner.checkEquals(bulkSlots, mStreaming.get());
+
+			long start = System.currentTimeMillis();
+			TestRunner.checkEquals("quick", appEngine.doHttpGet("quick",
+					new RequestOptions()
+							.setPriority(RequestPriority.INTERACTIVE),
+					new StringResponseHandler()));
+			long elapsed = System.currentTimeMillis() - start;
+			TestRunner.check(elapsed < INTERACTIVE_MILLIS,
+					"Interactive request took " + elapsed + " ms.");
+		} finally {
+			mFinishStreams.countDown();
+			for (Thread download : downloads) {
+				download.join();
+			}
+			appEngine.shutdown();
+		}
+		synchronized (failures) {
+			if (!failures.isEmpty()) {
+				throw new AssertionError(failures.get(0));
+			}
+		}
+	}
+
+	/**
+	 * With a single slot, each request can only go once the body of the one
+	 * before has been consumed.
+	 */
+	private void testSlotReleasedWhenBodyConsumed() throws Exception {
+		AppEngineConfig config = newConfig();
+		config.setMaxConcurrentRequests(1);
+		AppEngine appEngine = AppEngine.newInstance(mServer.getUrl(), config,
+				"test@example.com");
+		try {
+			for (int i = 0; i < 3; i++) {
+				HttpResponse response = appEngine.doHttpGet("quick?n=" + i);
+				TestRunner.checkEquals(200, response.getStatusLine()
+						.getStatusCode());
+				response.getEntity().consumeContent();
+			}
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private AppEngine newAppEngine() {
+		return AppEngine.newInstance(mServer.getUrl(), newConfig(),
+				"test@example.com");
+	}
+
+	private static AppEngineConfig newConfig() {
+		AppEngineConfig config = new AppEngineConfig();
+		config.setRetryPolicy(RetryPolicy.noRetries());
+		config.setAdaptiveConcurrency(false);
+		config.setMaxConcurrentRequests(SLOTS);
+		config.setMaxConnectionsPerRoute(SLOTS);
+		config.setMaxTotalConnections(SLOTS);
+		config.setConnectionPoolTimeoutMillis(POOL_TIMEOUT_MILLIS);
+		return config;
+	}
+
+	/**
+	 * Waits until counter reaches value, failing after POOL_TIMEOUT_MILLIS.
+	 */
+	private static void waitFor(AtomicInteger counter, int value)
+			throws InterruptedException {
+		long waitUntil = System.currentTimeMillis() + POOL_TIMEOUT_MILLIS;
+		while (counter.get() < value) {
+			TestRunner.check(System.currentTimeMillis() < waitUntil,
+					"Only " + counter.get() + " of " + value
+							+ " streams started.");
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Sets up the handlers of the stub application.
+	 */
+	private void installHandlers() {
+		mServer.handle("/stream", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; charset=UTF-8");
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = exchange.getResponseBody();
+				out.write("start".getBytes("UTF-8"));
+				out.flush();
+				mStreaming.incrementAndGet();
+				try {
+					mFinishStreams.await(2 * POOL_TIMEOUT_MILLIS,
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				out.write("end".getBytes("UTF-8"));
+				out.close();
+			}
+		});
+		mServer.handle("/quick", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StubServer.respond(exchange, 200, "quick");
+			}
+		});
+	}
+
+}
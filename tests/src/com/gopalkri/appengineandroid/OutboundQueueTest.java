@@ -0,0 +1,235 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Checks that an OutboundQueue replays the POSTs in its log up to the first
+ * torn or corrupt record, as left behind by a process dying mid-write, and
+ * sends them.
+ * 
+ * @author Gopal Sharma
+ */
+class OutboundQueueTest {
+
+	/**
+	 * POSTs queued in each log.
+	 */
+	private static final int POSTS = 3;
+
+	/**
+	 * Longest the queue may take to send the replayed POSTs.
+	 */
+	private static final long DELIVERY_MILLIS = 5000;
+
+	private final StubServer mServer;
+
+	/**
+	 * Bodies of the POSTs the server received, in order.
+	 */
+	private final List<String> mReceived = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private OutboundQueueTest(StubServer server) {
+		mServer = server;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubServer server = new StubServer();
+		final OutboundQueueTest test = new OutboundQueueTest(server);
+		test.installHandlers();
+		TestRunner runner = new TestRunner("OutboundQueueTest");
+		try {
+			runner.run("replayIntactLog", new TestRunner.Test() {
+				public void run() throws Exception {
+					test.testReplayIntactLog();
+				}
+			});
+			runner.run("replayTornRecord", new TestRunner.Test() {
+				public void run() throws Exception {
+					test.testReplayTornRecord();
+				}
+			});
+			runner.run("replayGarbageLength", new TestRunner.Test() {
+				public void run() throws Exception {
+					test.testReplayGarbageLength();
+				}
+			});
+			runner.run("replayBadChecksum", new TestRunner.Test() {
+				public void run() throws Exception {
+					test.testReplayBadChecksum();
+				}
+			});
+		} finally {
+			server.stop();
+		}
+		runner.exit();
+	}
+
+	private void testReplayIntactLog() throws Exception {
+		File log = writeLog();
+		try {
+			TestRunner.checkEquals(expected(POSTS), replay(log));
+		} finally {
+			log.delete();
+		}
+	}
+
+	/**
+	 * The last record was cut short while being written.
+	 */
+	private void testReplayTornRecord() throws Exception {
+		File log = writeLog();
+		try {
+			RandomAccessFile file = new RandomAccessFile(log, "rw");
+			try {
+				file.setLength(file.length() - 3);
+			} finally {
+				file.close();
+			}
+			TestRunner.checkEquals(expected(POSTS - 1), replay(log));
+		} finally {
+			log.delete();
+		}
+	}
+
+	/**
+	 * The log ends in a length far beyond the end of the file, which must
+	 * not be allocated.
+	 */
+	private void testReplayGarbageLength() throws Exception {
+		File log = writeLog();
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					log, true));
+			try {
+				out.writeInt(0x7ffffff0);
+			} finally {
+				out.close();
+			}
+			TestRunner.checkEquals(expected(POSTS), replay(log));
+		} finally {
+			log.delete();
+		}
+	}
+
+	/**
+	 * A byte of the last record's payload was flipped.
+	 */
+	private void testReplayBadChecksum() throws Exception {
+		File log = writeLog();
+		try {
+			RandomAccessFile file = new RandomAccessFile(log, "rw");
+			try {
+				// Last byte of the payload, just before the checksum.
+				file.seek(file.length() - 9);
+				int b = file.read();
+				file.seek(file.length() - 9);
+				file.write(b ^ 0xff);
+			} finally {
+				file.close();
+			}
+			TestRunner.checkEquals(expected(POSTS - 1), replay(log));
+		} finally {
+			log.delete();
+		}
+	}
+
+	/**
+	 * Queues POSTS POSTs through an instance which cannot reach any server,
+	 * so that they all stay in the log.
+	 */
+	private static File writeLog() throws IOException {
+		File log = File.createTempFile("outbound-", ".log");
+		log.delete();
+		AppEngine unreachable = AppEngine.newInstance("http://127.0.0.1:1/",
+				newConfig(), "test@example.com");
+		try {
+			OutboundQueue queue = new OutboundQueue(unreachable, log, 1);
+			for (int i = 0; i < POSTS; i++) {
+				List<NameValuePair> postData = new ArrayList<NameValuePair>();
+				postData.add(new BasicNameValuePair("n", Integer.toString(i)));
+				queue.enqueue(null, "post", postData);
+			}
+			queue.close();
+		} finally {
+			unreachable.shutdown();
+		}
+		return log;
+	}
+
+	/**
+	 * Opens a queue on log against the stub server and waits for it to send
+	 * everything it replayed.
+	 * 
+	 * @return Bodies of the POSTs the server received.
+	 */
+	private List<String> replay(File log) throws Exception {
+		mReceived.clear();
+		AppEngine appEngine = AppEngine.newInstance(mServer.getUrl(),
+				newConfig(), "test@example.com");
+		try {
+			OutboundQueue queue = new OutboundQueue(appEngine, log, 1);
+			try {
+				long waitUntil = System.currentTimeMillis() + DELIVERY_MILLIS;
+				while (queue.size() > 0) {
+					TestRunner.check(System.currentTimeMillis() < waitUntil,
+							queue.size() + " POSTs not sent.");
+					Thread.sleep(10);
+				}
+			} finally {
+				queue.close();
+			}
+		} finally {
+			appEngine.shutdown();
+		}
+		return new ArrayList<String>(mReceived);
+	}
+
+	/**
+	 * @return Bodies of the first count POSTs queued by writeLog.
+	 */
+	private static List<String> expected(int count) {
+		List<String> bodies = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			bodies.add("n=" + i);
+		}
+		return bodies;
+	}
+
+	private static AppEngineConfig newConfig() {
+		AppEngineConfig config = new AppEngineConfig();
+		config.setRetryPolicy(RetryPolicy.noRetries());
+		return config;
+	}
+
+	/**
+	 * Sets up the handlers of the stub application.
+	 */
+	private void installHandlers() {
+		mServer.handle("/post", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				mReceived.add(StubServer.readBody(exchange));
+				StubServer.respond(exchange, 200, "");
+			}
+		});
+	}
+
+}
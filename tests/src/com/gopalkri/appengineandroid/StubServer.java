@@ -0,0 +1,100 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server standing in for an App Engine application in tests.
+ * Handlers are registered by path prefix, and each exchange runs on a thread
+ * of its own, so slow handlers do not hold up others.
+ * 
+ * @author Gopal Sharma
+ */
+class StubServer {
+
+	private final HttpServer mServer;
+
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+	/**
+	 * Starts a server on a free port of the loopback interface.
+	 */
+	StubServer() throws IOException {
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.setExecutor(mExecutor);
+		mServer.start();
+	}
+
+	/**
+	 * @return URL of the application, ending with a slash.
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Serves requests to paths starting with path with handler.
+	 */
+	void handle(String path, HttpHandler handler) {
+		mServer.createContext(path, handler);
+	}
+
+	/**
+	 * Stops the server, dropping requests still being handled.
+	 */
+	void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Sends a text/plain response and ends the exchange.
+	 */
+	static void respond(HttpExchange exchange, int status, String body)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/plain; charset=UTF-8");
+		respond(exchange, status, body.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Sends a response with the headers set so far and ends the exchange.
+	 */
+	static void respond(HttpExchange exchange, int status, byte[] body)
+			throws IOException {
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1
+				: body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * @return Body of the request, decoded as UTF-8.
+	 */
+	static String readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			body.write(buffer, 0, read);
+		}
+		return body.toString("UTF-8");
+	}
+
+}
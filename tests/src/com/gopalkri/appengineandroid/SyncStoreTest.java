@@ -0,0 +1,137 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks that a SyncStore replays its log up to the first torn transaction,
+ * as left behind by a process dying mid-write, and drops the rest.
+ * 
+ * @author Gopal Sharma
+ */
+class SyncStoreTest {
+
+	/**
+	 * Transactions written to each log, one entity each.
+	 */
+	private static final int TRANSACTIONS = 3;
+
+	public static void main(String[] args) {
+		TestRunner runner = new TestRunner("SyncStoreTest");
+		runner.run("replayIntactLog", new TestRunner.Test() {
+			public void run() throws Exception {
+				testReplayIntactLog();
+			}
+		});
+		runner.run("replayTornTransaction", new TestRunner.Test() {
+			public void run() throws Exception {
+				testReplayTornTransaction();
+			}
+		});
+		runner.run("replayGarbageLength", new TestRunner.Test() {
+			public void run() throws Exception {
+				testReplayGarbageLength();
+			}
+		});
+		runner.exit();
+	}
+
+	private static void testReplayIntactLog() throws Exception {
+		File log = writeLog();
+		try {
+			checkReplays(log, TRANSACTIONS);
+		} finally {
+			log.delete();
+		}
+	}
+
+	/**
+	 * The last transaction was cut short while being written.
+	 */
+	private static void testReplayTornTransaction() throws Exception {
+		File log = writeLog();
+		try {
+			RandomAccessFile file = new RandomAccessFile(log, "rw");
+			try {
+				file.setLength(file.length() - 3);
+			} finally {
+				file.close();
+			}
+			checkReplays(log, TRANSACTIONS - 1);
+		} finally {
+			log.delete();
+		}
+	}
+
+	/**
+	 * The log ends in a length far beyond the end of the file, which must
+	 * not be allocated.
+	 */
+	private static void testReplayGarbageLength() throws Exception {
+		File log = writeLog();
+		try {
+			long length = log.length();
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					log, true));
+			try {
+				out.writeInt(0x7ffffff0);
+			} finally {
+				out.close();
+			}
+			checkReplays(log, TRANSACTIONS);
+			TestRunner.checkEquals(length, log.length());
+		} finally {
+			log.delete();
+		}
+	}
+
+	/**
+	 * Applies TRANSACTIONS transactions to a new store.
+	 */
+	private static File writeLog() throws IOException {
+		File log = File.createTempFile("sync-", ".log");
+		log.delete();
+		SyncStore store = new SyncStore(log);
+		try {
+			for (int i = 0; i < TRANSACTIONS; i++) {
+				Map<String, Object> data = new HashMap<String, Object>();
+				data.put("n", Long.valueOf(i));
+				store.apply(false, "cursor-" + i, Collections
+						.singletonList(new SyncEntity("id-" + i, 1, data)));
+			}
+		} finally {
+			store.close();
+		}
+		return log;
+	}
+
+	/**
+	 * Opens a store on log and checks that it holds the entities of the
+	 * first count transactions.
+	 */
+	private static void checkReplays(File log, int count) throws IOException {
+		SyncStore store = new SyncStore(log);
+		try {
+			TestRunner.checkEquals(count, store.size());
+			TestRunner.checkEquals("cursor-" + (count - 1), store.getCursor());
+			for (int i = 0; i < TRANSACTIONS; i++) {
+				TestRunner.check((store.get("id-" + i) != null) == (i < count),
+						"Wrong entities replayed.");
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+/**
+ * Runs the test cases of a suite on a plain JVM and reports the results.
+ * Suites are classes whose main method runs their cases through a TestRunner
+ * and ends with exit(). See tests/run.sh.
+ * 
+ * @author Gopal Sharma
+ */
+class TestRunner {
+
+	/**
+	 * A test case. Fails by throwing.
+	 */
+	interface Test {
+		void run() throws Exception;
+	}
+
+	private final String mSuite;
+
+	private int mPassed = 0;
+
+	private int mFailed = 0;
+
+	/**
+	 * @param suite
+	 *            Name of the suite, used in the report.
+	 */
+	TestRunner(String suite) {
+		mSuite = suite;
+	}
+
+	/**
+	 * Runs test, reporting whether it passed.
+	 */
+	void run(String name, Test test) {
+		long start = System.nanoTime();
+		try {
+			test.run();
+			mPassed++;
+			System.out.println("PASS " + mSuite + "." + name + " ("
+					+ (System.nanoTime() - start) / 1000000 + " ms)");
+		} catch (Throwable t) {
+			mFailed++;
+			System.out.println("FAIL " + mSuite + "." + name);
+			t.printStackTrace(System.out);
+		}
+	}
+
+	/**
+	 * Reports the totals and exits, with status 1 if any test failed.
+	 */
+	void exit() {
+		System.out.println(mSuite + ": " + mPassed + " passed, " + mFailed
+				+ " failed.");
+		System.exit(mFailed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Fails the running test with message unless condition holds.
+	 */
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	/**
+	 * Fails the running test unless actual equals expected.
+	 */
+	static void checkEquals(Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError("Expected <" + expected + "> but was <"
+					+ actual + ">");
+		}
+	}
+
+}
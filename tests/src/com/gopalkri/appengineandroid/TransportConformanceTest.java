@@ -0,0 +1,364 @@
+/**
+ * This file is part of the AppEngineAndroid project.
+ * 
+ * Copyright (c) Gopal Sharma 2010.
+ */
+package com.gopalkri.appengineandroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Runs the same requests through every transport in HttpTransports against
+ * a StubServer, checking that logins, cookies, redirects, compression, POSTs,
+ * error statuses and deadlines behave the same on all of them. A new
+ * transport should be added to TRANSPORTS and pass all of these.
+ * 
+ * @author Gopal Sharma
+ */
+class TransportConformanceTest {
+
+	/**
+	 * Transports under test.
+	 */
+	private static final HttpTransport.Factory[] TRANSPORTS = HttpTransports
+			.values();
+
+	/**
+	 * Auth token the stub server accepts.
+	 */
+	private static final String GOOD_TOKEN = "good-token";
+
+	private static final String SESSION_COOKIE = "SACSID=session-1";
+
+	/**
+	 * Time the slow handler takes to answer.
+	 */
+	private static final long SLOW_MILLIS = 5000;
+
+	private final StubServer mServer;
+
+	private final HttpTransport.Factory mTransport;
+
+	private TransportConformanceTest(StubServer server,
+			HttpTransport.Factory transport) {
+		mServer = server;
+		mTransport = transport;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubServer server = new StubServer();
+		installHandlers(server);
+		TestRunner runner = new TestRunner("TransportConformanceTest");
+		try {
+			for (HttpTransport.Factory transport : TRANSPORTS) {
+				new TransportConformanceTest(server, transport).run(runner);
+			}
+		} finally {
+			server.stop();
+		}
+		runner.exit();
+	}
+
+	private void run(TestRunner runner) {
+		String prefix = mTransport + ".";
+		runner.run(prefix + "login", new TestRunner.Test() {
+			public void run() throws Exception {
+				testLogin();
+			}
+		});
+		runner.run(prefix + "loginRejected", new TestRunner.Test() {
+			public void run() throws Exception {
+				testLoginRejected();
+			}
+		});
+		runner.run(prefix + "loginOnLoginRedirect", new TestRunner.Test() {
+			public void run() throws Exception {
+				testLoginOnLoginRedirect();
+			}
+		});
+		runner.run(prefix + "cookies", new TestRunner.Test() {
+			public void run() throws Exception {
+				testCookies();
+			}
+		});
+		runner.run(prefix + "redirect", new TestRunner.Test() {
+			public void run() throws Exception {
+				testRedirect();
+			}
+		});
+		runner.run(prefix + "gzip", new TestRunner.Test() {
+			public void run() throws Exception {
+				testGzip();
+			}
+		});
+		runner.run(prefix + "post", new TestRunner.Test() {
+			public void run() throws Exception {
+				testPost();
+			}
+		});
+		runner.run(prefix + "errorStatus", new TestRunner.Test() {
+			public void run() throws Exception {
+				testErrorStatus();
+			}
+		});
+		runner.run(prefix + "deadlineAbort", new TestRunner.Test() {
+			public void run() throws Exception {
+				testDeadlineAbort();
+			}
+		});
+	}
+
+	private void testLogin() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			appEngine.setAuthTokenSource(new StaticAuthTokenSource(GOOD_TOKEN));
+			appEngine.login();
+			TestRunner.check(appEngine.isReady(), "Not ready after login.");
+			TestRunner.checkEquals("secret", appEngine.doHttpGet("private",
+					new StringResponseHandler()));
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private void testLoginRejected() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			appEngine.setAuthTokenSource(new StaticAuthTokenSource(
+					"bad-token"));
+			try {
+				appEngine.login();
+				TestRunner.check(false, "Login with a bad token succeeded.");
+			} catch (AppEngineException e) {
+				// Expected: the token is invalidated and a static source has
+				// no other.
+			}
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	/**
+	 * The transport must hand back redirects to the login page rather than
+	 * follow them, so that AppEngine logs in and retries.
+	 */
+	private void testLoginOnLoginRedirect() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			appEngine.setAuthTokenSource(new StaticAuthTokenSource(GOOD_TOKEN));
+			TestRunner.checkEquals("secret", appEngine.doHttpGet("private",
+					new StringResponseHandler()));
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private void testCookies() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			appEngine.doHttpGet("cookie/set", new StringResponseHandler());
+			String cookies = appEngine.doHttpGet("cookie/echo",
+					new StringResponseHandler());
+			TestRunner.check(cookies.indexOf("flavour=mint") >= 0,
+					"Cookie not sent back: " + cookies);
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private void testRedirect() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			TestRunner.checkEquals("target", appEngine.doHttpGet("redirect",
+					new StringResponseHandler()));
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private void testGzip() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			TestRunner.checkEquals("compressed", appEngine.doHttpGet("gzip",
+					new StringResponseHandler()));
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private void testPost() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			List<NameValuePair> postData = new ArrayList<NameValuePair>();
+			postData.add(new BasicNameValuePair("a", "1"));
+			postData.add(new BasicNameValuePair("b", "two words"));
+			TestRunner.checkEquals("a=1&b=two+words", appEngine.doHttpPost(
+					"echo", postData, new StringResponseHandler()));
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private void testErrorStatus() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			HttpResponse response = appEngine.doHttpGet("status/404");
+			TestRunner.checkEquals(404, response.getStatusLine()
+					.getStatusCode());
+			TestRunner.checkEquals("error 404", EntityUtils.toString(response
+					.getEntity()));
+			response = appEngine.doHttpPost("status/500",
+					new ArrayList<NameValuePair>());
+			TestRunner.checkEquals(500, response.getStatusLine()
+					.getStatusCode());
+			TestRunner.checkEquals("error 500", EntityUtils.toString(response
+					.getEntity()));
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	/**
+	 * The transport must give up on a request as soon as it is aborted when
+	 * its deadline expires, rather than wait for the response.
+	 */
+	private void testDeadlineAbort() throws Exception {
+		AppEngine appEngine = newAppEngine();
+		try {
+			long start = System.currentTimeMillis();
+			try {
+				appEngine.doHttpGet("slow",
+						new RequestOptions().setDeadlineMillis(500),
+						new StringResponseHandler());
+				TestRunner.check(false, "Request outlived its deadline.");
+			} catch (HttpRequestException e) {
+				// Expected.
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			TestRunner.check(elapsed < SLOW_MILLIS / 2, "Abort took "
+					+ elapsed + " ms.");
+		} finally {
+			appEngine.shutdown();
+		}
+	}
+
+	private AppEngine newAppEngine() {
+		AppEngineConfig config = new AppEngineConfig();
+		config.setTransportFactory(mTransport);
+		config.setRetryPolicy(RetryPolicy.noRetries());
+		return AppEngine.newInstance(mServer.getUrl(), config,
+				"test@example.com");
+	}
+
+	/**
+	 * Sets up the handlers of the stub application.
+	 */
+	private static void installHandlers(StubServer server) {
+		server.handle("/_ah/login", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String query = exchange.getRequestURI().getRawQuery();
+				if (query != null && query.indexOf("auth=" + GOOD_TOKEN) >= 0) {
+					exchange.getResponseHeaders().add("Set-Cookie",
+							SESSION_COOKIE + "; Path=/");
+					exchange.getResponseHeaders().set("Location",
+							"http://localhost/");
+				} else {
+					exchange.getResponseHeaders().set("Location",
+							"https://www.google.com/accounts/ServiceLogin");
+				}
+				StubServer.respond(exchange, 302, "");
+			}
+		});
+		server.handle("/private", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+				if (cookie != null && cookie.indexOf(SESSION_COOKIE) >= 0) {
+					StubServer.respond(exchange, 200, "secret");
+				} else {
+					exchange.getResponseHeaders().set("Location",
+							"/_ah/login?continue=/private");
+					StubServer.respond(exchange, 302, "");
+				}
+			}
+		});
+		server.handle("/cookie/set", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().add("Set-Cookie",
+						"flavour=mint; Path=/");
+				StubServer.respond(exchange, 200, "set");
+			}
+		});
+		server.handle("/cookie/echo", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+				StubServer.respond(exchange, 200, cookie == null ? "" : cookie);
+			}
+		});
+		server.handle("/redirect", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Location", "/target");
+				StubServer.respond(exchange, 302, "");
+			}
+		});
+		server.handle("/target", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StubServer.respond(exchange, 200, "target");
+			}
+		});
+		server.handle("/gzip", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String accept = exchange.getRequestHeaders().getFirst(
+						"Accept-Encoding");
+				if (accept == null || accept.indexOf("gzip") < 0) {
+					StubServer.respond(exchange, 200, "not compressed");
+					return;
+				}
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+				gzip.write("compressed".getBytes("UTF-8"));
+				gzip.close();
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; charset=UTF-8");
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				StubServer.respond(exchange, 200, bytes.toByteArray());
+			}
+		});
+		server.handle("/echo", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StubServer.respond(exchange, 200, StubServer
+						.readBody(exchange));
+			}
+		});
+		server.handle("/status/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				int status = Integer.parseInt(path.substring(path
+						.lastIndexOf('/') + 1));
+				StubServer.respond(exchange, status, "error " + status);
+			}
+		});
+		server.handle("/slow", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(SLOW_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				StubServer.respond(exchange, 200, "slow");
+			}
+		});
+	}
+
+}